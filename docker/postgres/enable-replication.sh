@@ -0,0 +1,4 @@
+#!/bin/sh
+# Lets standbys, e.g. db-replica of docker-compose.yml, stream the WAL of this database.
+# Runs only when the database is initialized.
+echo "host replication all all md5" >> "$PGDATA/pg_hba.conf"
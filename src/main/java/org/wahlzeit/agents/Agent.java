@@ -68,7 +68,7 @@ public abstract class Agent implements Runnable {
 		while(!isToStop) {
 			try {
 				SysLog.logSysInfo("going to sleep for: " + (period / 1000) + " seconds");
-				Thread.sleep(period);
+				doSleep();
 			} catch (Exception ex) {
 				// do nothing
 			}
@@ -77,6 +77,13 @@ public abstract class Agent implements Runnable {
 		}
 	}
 	
+	/**
+	 * @methodproperty hook
+	 */
+	protected void doSleep() throws InterruptedException {
+		Thread.sleep(period);
+	}
+	
 	/**
 	 * @methodproperty hook
 	 */
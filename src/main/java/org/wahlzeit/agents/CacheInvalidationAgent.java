@@ -0,0 +1,49 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.agents;
+
+import java.sql.SQLException;
+
+import org.wahlzeit.services.*;
+
+/**
+ * The CacheInvalidationAgent picks up the writes of other nodes every SysConfig.CACHE_INVALIDATION_PERIOD millis
+ * and drops the objects they wrote from this node's caches; see CacheInvalidator.
+ */
+public class CacheInvalidationAgent extends Agent {
+
+	/**
+	 *
+	 */
+	public static final String NAME = "CacheInvalidation";
+
+	/**
+	 *
+	 */
+	protected CacheInvalidator cacheInvalidator;
+
+	/**
+	 *
+	 */
+	public CacheInvalidationAgent(CacheInvalidator myCacheInvalidator) {
+		initialize(NAME, SysConfig.getCacheInvalidationPeriodAsLong());
+		cacheInvalidator = myCacheInvalidator;
+	}
+
+	/**
+	 * A failed poll closes the listening connection; the next poll opens a new one.
+	 */
+	protected void doRun() {
+		try {
+			cacheInvalidator.poll();
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		} catch (RuntimeException ex) {
+			SysLog.logThrowable(ex);
+		}
+	}
+
+}
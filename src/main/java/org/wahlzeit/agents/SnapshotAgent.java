@@ -0,0 +1,46 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.agents;
+
+import org.wahlzeit.main.ModelMain;
+import org.wahlzeit.services.*;
+
+/**
+ * The SnapshotAgent writes the manager caches to the model snapshot every SysConfig.SNAPSHOT_PERIOD millis,
+ * which also keeps the snapshot's write-ahead log short; see ModelSnapshot.
+ */
+public class SnapshotAgent extends Agent {
+
+	/**
+	 *
+	 */
+	public static final String NAME = "Snapshot";
+
+	/**
+	 *
+	 */
+	protected ModelMain modelMain;
+
+	/**
+	 *
+	 */
+	public SnapshotAgent(ModelMain myModelMain) {
+		initialize(NAME, SysConfig.getSnapshotPeriodAsLong());
+		modelMain = myModelMain;
+	}
+
+	/**
+	 *
+	 */
+	protected void doRun() {
+		try {
+			modelMain.saveSnapshot();
+		} catch (RuntimeException ex) {
+			SysLog.logThrowable(ex);
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.agents;
+
+import java.util.*;
+
+import org.wahlzeit.model.*;
+import org.wahlzeit.services.*;
+
+/**
+ * The WriteBehindAgent writes dirty objects to the database in the background.
+ * It flushes the DirtyObjectRegistry at least every period millis, or earlier once maxChanges changes accumulated.
+ * Request threads hence only mark objects dirty; a final flush runs when the agent is stopped, also if it was stopped
+ * during a flush.
+ */
+public class WriteBehindAgent extends Agent {
+
+	/**
+	 *
+	 */
+	public static final String NAME = "WriteBehind";
+
+	/**
+	 * Statistics
+	 */
+	protected long noFlushes = 0;
+	protected long noFlushedObjects = 0;
+	protected long lastFlushTime = 0; // in millis
+	protected long maxFlushTime = 0; // in millis
+	protected long totalFlushTime = 0; // in millis
+
+	/**
+	 *
+	 */
+	public WriteBehindAgent() {
+		initialize(NAME, SysConfig.getWriteBehindPeriodAsLong());
+		DirtyObjectRegistry.getInstance().setMaxChanges(SysConfig.getWriteBehindMaxChangesAsInt());
+	}
+
+	/**
+	 *
+	 */
+	public void run() {
+		DirtyObjectRegistry.getInstance().setEnabled(true);
+		super.run();
+		DirtyObjectRegistry.getInstance().setEnabled(false);
+		flush();
+	}
+
+	/**
+	 *
+	 */
+	protected void doSleep() throws InterruptedException {
+		DirtyObjectRegistry.getInstance().awaitChanges(period);
+	}
+
+	/**
+	 *
+	 */
+	protected void doRun() {
+		flush();
+	}
+
+	/**
+	 * Writes all registered objects, grouped by type; locations first, as photos refer to them.
+	 * A failing group is logged and stays dirty, so it does not stop the agent or the other groups.
+	 */
+	public void flush() {
+		List<Persistent> dirtyObjects = DirtyObjectRegistry.getInstance().drainDirtyObjects();
+		if (dirtyObjects.isEmpty()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+
+		List<Location> locations = new ArrayList<Location>();
+		List<Photo> photos = new ArrayList<Photo>();
+		List<User> users = new ArrayList<User>();
+		List<PhotoCase> photoCases = new ArrayList<PhotoCase>();
+		for (Persistent obj : dirtyObjects) {
+			if (obj instanceof Location) {
+				locations.add((Location) obj);
+			} else if (obj instanceof Photo) {
+				photos.add((Photo) obj);
+			} else if (obj instanceof User) {
+				users.add((User) obj);
+			} else if (obj instanceof PhotoCase) {
+				photoCases.add((PhotoCase) obj);
+			} else {
+				SysLog.logSysError("no manager for dirty object: " + obj.getIdAsString() + "(" + obj.toString() + ")");
+			}
+		}
+
+		if (!locations.isEmpty()) {
+			try {
+				LocationManager.getInstance().saveLocations(locations);
+			} catch (RuntimeException ex) {
+				SysLog.logThrowable(ex);
+			}
+		}
+		if (!photos.isEmpty()) {
+			try {
+				PhotoManager.getInstance().savePhotos(photos);
+			} catch (RuntimeException ex) {
+				SysLog.logThrowable(ex);
+			}
+		}
+		if (!users.isEmpty()) {
+			try {
+				UserManager.getInstance().saveUsers(users);
+			} catch (RuntimeException ex) {
+				SysLog.logThrowable(ex);
+			}
+		}
+		if (!photoCases.isEmpty()) {
+			try {
+				PhotoCaseManager.getInstance().savePhotoCases(photoCases);
+			} catch (RuntimeException ex) {
+				SysLog.logThrowable(ex);
+			}
+		}
+
+		long flushTime = System.currentTimeMillis() - startTime;
+		synchronized(this) {
+			noFlushes++;
+			noFlushedObjects += dirtyObjects.size();
+			lastFlushTime = flushTime;
+			maxFlushTime = Math.max(maxFlushTime, flushTime);
+			totalFlushTime += flushTime;
+		}
+
+		SysLog.logSysInfo("write-behind", String.valueOf(dirtyObjects.size()), asStatisticsString());
+	}
+
+	/**
+	 * Number of objects waiting for the next flush
+	 */
+	public int getQueueDepth() {
+		return DirtyObjectRegistry.getInstance().getNoDirtyObjects();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoFlushes() {
+		return noFlushes;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoFlushedObjects() {
+		return noFlushedObjects;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized long getLastFlushTime() {
+		return lastFlushTime;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized long getMaxFlushTime() {
+		return maxFlushTime;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized double getAverageFlushTime() {
+		return (noFlushes == 0) ? 0.0 : (double) totalFlushTime / noFlushes;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized String asStatisticsString() {
+		return "queueDepth=" + getQueueDepth()
+			+ ", flushes=" + noFlushes
+			+ ", flushedObjects=" + noFlushedObjects
+			+ ", lastFlushTime=" + lastFlushTime
+			+ ", avgFlushTime=" + getAverageFlushTime()
+			+ ", maxFlushTime=" + maxFlushTime;
+	}
+
+}
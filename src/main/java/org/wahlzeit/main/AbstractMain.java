@@ -5,6 +5,7 @@
 
 package org.wahlzeit.main;
 
+import java.io.*;
 import java.util.Optional;
 
 import org.wahlzeit.services.*;
@@ -15,6 +16,14 @@ import org.wahlzeit.services.*;
 public abstract class AbstractMain {
 	
 	private static final String DB_HOST = Optional.ofNullable(System.getenv("WAHLZEIT_DB_HOST")).orElse("localhost");
+	private static final String OBJECT_STORE = System.getenv("WAHLZEIT_OBJECT_STORE");
+	private static final String DB_REPLICA_HOST = System.getenv("WAHLZEIT_DB_REPLICA_HOST"); // host or host:port
+	private static final String CACHE_INVALIDATION_CHANNEL = System.getenv("WAHLZEIT_CACHE_INVALIDATION_CHANNEL");
+	
+	/**
+	 * 
+	 */
+	public static final String LOG_STORE_FILE_NAME = "objects.log";
 	
 	/**
 	 * 
@@ -33,20 +42,54 @@ public abstract class AbstractMain {
 	 */
 	protected void startUp(String rootDir) throws Exception {
 		SysConfig.setInstance(new SysConfig(rootDir, DB_HOST));
+		if (OBJECT_STORE != null) {
+			SysConfig.getInstance().setValue(SysConfig.OBJECT_STORE, OBJECT_STORE);
+		}
+		if (DB_REPLICA_HOST != null) {
+			SysConfig.getInstance().setValue(SysConfig.DB_REPLICA_CONNECTION, "jdbc:postgresql://" + DB_REPLICA_HOST + "/wahlzeit");
+		}
+		if (CACHE_INVALIDATION_CHANNEL != null) {
+			SysConfig.getInstance().setValue(SysConfig.CACHE_INVALIDATION_CHANNEL, CACHE_INVALIDATION_CHANNEL);
+		}
 		
-		boolean dbAvailable = DatabaseConnection.waitForDatabaseIsReady(30, 1000);
-		if (!dbAvailable) {
-			throw new RuntimeException("Unable to proceed with wahlzeit app. DB connection could not be established.");
-		}		
+		configureObjectStore();
+		if (ObjectManager.hasRelationalStore()) {
+			boolean dbAvailable = DatabaseConnection.waitForDatabaseIsReady(30, 1000);
+			if (!dbAvailable) {
+				throw new RuntimeException("Unable to proceed with wahlzeit app. DB connection could not be established.");
+			}
+		}
 
 		mainSession = new SysSession("system");
 		SessionManager.setThreadLocalSession(mainSession);
 	}
 	
+	/**
+	 * Opens a LogObjectStore in the store directory if SysConfig.OBJECT_STORE is "log"; otherwise, objects are kept in the database.
+	 */
+	protected void configureObjectStore() throws IOException {
+		String objectStore = SysConfig.getObjectStoreAsString();
+		if ("log".equals(objectStore)) {
+			LogObjectStore store = new LogObjectStore(new File(SysConfig.getStoreDir().asString(), LOG_STORE_FILE_NAME));
+			store.open();
+			ObjectManager.setObjectStore(store);
+		} else if (!"jdbc".equals(objectStore)) {
+			throw new IllegalArgumentException("unknown object store: " + objectStore);
+		}
+	}
+	
 	/**
 	 * 
 	 */
 	protected void shutDown() throws Exception {
+		if (mainSession != null) {
+			mainSession.returnDatabaseConnection();
+		}
+		DatabaseConnectionPool.dropInstance();
+		
+		ObjectManager.getObjectStore().close();
+		ObjectManager.setObjectStore(new JdbcObjectStore());
+		
 		SysConfig.dropInstance();
 	}
 	
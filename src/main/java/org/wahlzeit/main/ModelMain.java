@@ -7,7 +7,9 @@ package org.wahlzeit.main;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.sql.*;
+import java.util.*;
 
 import org.wahlzeit.model.*;
 import org.wahlzeit.services.*;
@@ -24,14 +26,30 @@ public abstract class ModelMain extends AbstractMain {
 	protected void startUp(String rootDir) throws Exception {
 		super.startUp(rootDir);
 
-		if (!hasGlobals()) {
-			tearDownDatabase();
-			setUpDatabase();
+		configureCaches();
+		configureIdAllocators();
+
+		if (ObjectManager.hasRelationalStore()) {
+			if (!hasGlobals()) {
+				tearDownDatabase();
+				setUpDatabase();
+			}
+			
+			migrateDatabase();
+			
+			loadGlobals();
+		} else {
+			loadGlobalsFromStore();
 		}
-		
- 		loadGlobals();
 
 		PhotoFactory.initialize();
+		
+		if (ObjectManager.hasRelationalStore()) {
+			configureCacheInvalidator();
+			configureModelSnapshot();
+		} else {
+			PhotoManager.getInstance().loadPhotoIndex(); // the indexes answer all queries by column then
+		}
 	}
 	
 	/**
@@ -50,10 +68,182 @@ public abstract class ModelMain extends AbstractMain {
 	 */
 	protected void shutDown() throws Exception {
 		saveAll();
+		saveSnapshot();
+		logCacheStatistics();
+
+		ModelSnapshot snapshot = ObjectManager.getModelSnapshot();
+		if (snapshot != null) {
+			snapshot.close();
+			ObjectManager.setModelSnapshot(null);
+		}
+
+		CacheInvalidator invalidator = ObjectManager.getCacheInvalidator();
+		if (invalidator != null) {
+			invalidator.logStatistics();
+			invalidator.close();
+			ObjectManager.setCacheInvalidator(null);
+		}
 
 		super.shutDown();
 	}
 
+	/**
+	 * 
+	 */
+	public void configureCaches() {
+		PhotoManager.getInstance().configureCache();
+		CatPhotoManager.getInstance().configureCache();
+		LocationManager.getInstance().configureCache();
+		UserManager.getInstance().configureCache();
+		CatManager.getInstance().configureCache();
+	}
+
+	/**
+	 * 
+	 */
+	public void configureIdAllocators() {
+		IdAllocator.setReservesInDatabase(ObjectManager.hasRelationalStore());
+		int blockSize = SysConfig.getIdBlockSizeAsInt();
+		for (IdAllocator allocator : getIdAllocators()) {
+			allocator.setBlockSize(blockSize);
+		}
+	}
+
+	/**
+	 * 
+	 */
+	public IdAllocator[] getIdAllocators() {
+		return new IdAllocator[] {
+			User.getIdAllocator(),
+			PhotoId.getIdAllocator(),
+			Case.getIdAllocator(),
+			AbstractServlet.getSessionIdAllocator(),
+			LocationId.getIdAllocator()
+		};
+	}
+
+	/**
+	 * The allocators of the ids of model objects, i.e. all but the session ids
+	 */
+	public IdAllocator[] getModelIdAllocators() {
+		return new IdAllocator[] {
+			User.getIdAllocator(),
+			PhotoId.getIdAllocator(),
+			Case.getIdAllocator(),
+			LocationId.getIdAllocator()
+		};
+	}
+
+	/**
+	 * The managers whose caches are kept in model snapshots, in the order of restoring: objects before objects referring to them.
+	 * Open photo cases are not kept; PhotoCaseManager reads them with a single query when it is created.
+	 */
+	public ObjectManager[] getSnapshotManagers() {
+		return new ObjectManager[] {
+			LocationManager.getInstance(),
+			PhotoManager.getInstance(),
+			CatPhotoManager.getInstance(),
+			UserManager.getInstance()
+		};
+	}
+
+	/**
+	 * Lets the managers of cached tables hear of the writes of other nodes sharing the database, if
+	 * SysConfig.CACHE_INVALIDATION_CHANNEL is set; the CacheInvalidationAgent listens.
+	 */
+	protected void configureCacheInvalidator() {
+		String channel = SysConfig.getCacheInvalidationChannelAsString();
+		if (channel.isEmpty()) {
+			return;
+		}
+
+		CacheInvalidator invalidator = new CacheInvalidator(channel);
+		for (ObjectManager manager : getSnapshotManagers()) {
+			invalidator.addManager(manager);
+		}
+		ObjectManager.setCacheInvalidator(invalidator);
+	}
+
+	/**
+	 * Restores the manager caches from the model snapshot in the store directory and logs committed objects to it from now on;
+	 * nothing is done if SysConfig.SNAPSHOT_PERIOD is 0, or if other nodes share the database, as a snapshot cannot
+	 * tell what they wrote while this node was down.
+	 */
+	protected void configureModelSnapshot() throws IOException, SQLException {
+		if (SysConfig.getSnapshotPeriodAsLong() <= 0) {
+			return;
+		}
+		
+		if (ObjectManager.getCacheInvalidator() != null) {
+			SysLog.logSysInfo("model snapshots are disabled, as other nodes share the database");
+			return;
+		}
+
+		ModelSnapshot snapshot = new ModelSnapshot(new File(SysConfig.getStoreDir().asString()));
+		restoreSnapshot(snapshot);
+		ObjectManager.setModelSnapshot(snapshot);
+	}
+
+	/**
+	 * Restores the manager caches from snapshot, unless the globals row is behind its id counters, e.g. because the
+	 * database was restored from a backup; then the snapshot is discarded, and objects are read from the database as needed.
+	 */
+	protected boolean restoreSnapshot(ModelSnapshot snapshot) throws IOException, SQLException {
+		if (!snapshot.load()) {
+			return false;
+		}
+
+		Map<String, Integer> globals = snapshot.getGlobals();
+		for (IdAllocator allocator : getModelIdAllocators()) {
+			Integer snapshotId = globals.get(allocator.getColumnName());
+			if ((snapshotId == null) || (allocator.getLastId() < snapshotId)) {
+				SysLog.logSysError("snapshot does not match globals: " + allocator.getColumnName() + " is " + allocator.getLastId() + ", snapshot has " + snapshotId);
+				snapshot.discard();
+				return false;
+			}
+		}
+
+		for (ObjectManager manager : getSnapshotManagers()) {
+			manager.restoreSnapshot(snapshot);
+		}
+		snapshot.dropRows();
+		return true;
+	}
+
+	/**
+	 * Writes the manager caches to the model snapshot, if any, with the highest ids reserved so far.
+	 */
+	public void saveSnapshot() {
+		ModelSnapshot snapshot = ObjectManager.getModelSnapshot();
+		if (snapshot == null) {
+			return;
+		}
+
+		Map<String, Integer> globals = new HashMap<String, Integer>();
+		for (IdAllocator allocator : getModelIdAllocators()) {
+			globals.put(allocator.getColumnName(), allocator.getMaxId());
+		}
+
+		try {
+			snapshot.save(Arrays.asList(getSnapshotManagers()), globals);
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+		}
+	}
+
+	/**
+	 * 
+	 */
+	public void logCacheStatistics() {
+		PhotoManager.getInstance().getPhotoCache().logStatistics();
+		CatPhotoManager.getInstance().getPhotoCache().logStatistics();
+		LocationManager.getInstance().getLocationCache().logStatistics();
+		UserManager.getInstance().getUserCache().logStatistics();
+		UserManager.getInstance().getUnknownEmailAddresses().logStatistics();
+		CatManager.getInstance().getCatCache().logStatistics();
+		StatementCache.logTotalStatistics();
+	}
+
 	/**
 	 * 
 	 */
@@ -68,6 +258,14 @@ public abstract class ModelMain extends AbstractMain {
 		runScript("DropTables.sql");
 	}
 	
+	/**
+	 * Applies the migrations of the scripts directory not yet applied, see SchemaMigrator.
+	 */
+	public void migrateDatabase() throws SQLException {
+		Connection conn = mainSession.ensureDatabaseConnection().getRdbmsConnection();
+		new SchemaMigrator(SysConfig.getScriptsDir()).migrate(conn);
+	}
+	
 	/**
 	 * 
 	 */
@@ -129,39 +327,58 @@ public abstract class ModelMain extends AbstractMain {
 	}
 
 	/**
-	 *
+	 * A LogObjectStore has no globals table, so ids continue after the highest ones stored; an empty store gets the admin user.
+	 */
+	public void loadGlobalsFromStore() throws SQLException {
+		LogObjectStore store = (LogObjectStore) ObjectManager.getObjectStore();
+		User.setLastUserId(store.getMaxId("users"));
+		PhotoId.setCurrentIdFromInt(store.getMaxId("photos"));
+		Case.setLastCaseId(new CaseId(store.getMaxId("cases")));
+		LocationId.setCurrentIdFromInt(store.getMaxId("locations"));
+		SysLog.logSysInfo("loaded global variables from store: lastUserId=" + User.getLastUserId() + ", lastPhotoId=" + PhotoId.getCurrentIdAsInt());
+		
+		if (store.getNoRows("users") == 0) {
+			User admin = new Administrator("admin", "admin", "root@localhost", 0);
+			admin.setStatus(admin.getStatus().asConfirmed());
+			UserManager.getInstance().addUser(admin);
+			UserManager.getInstance().saveUser(admin);
+		}
+	}
+
+	/**
+	 * Ids are reserved in the globals table block by block, so this only raises columns that lag behind the ids handed out,
+	 * e.g. after setLastId(); it never lowers a column, which might hand out ids reserved by another server again.
 	 */
 	public synchronized void saveGlobals() throws SQLException {
+		if (!ObjectManager.hasRelationalStore()) {
+			return;
+		}
+		
 		DatabaseConnection dbc = SessionManager.getDatabaseConnection();
 		Connection conn = dbc.getRdbmsConnection();
 
-		String query = "SELECT * FROM globals";
-		SysLog.logQuery(query);
+		IdAllocator[] allocators = getIdAllocators();
+		StringBuilder query = new StringBuilder("UPDATE globals SET ");
+		for (int i = 0; i < allocators.length; i++) {
+			String columnName = allocators[i].getColumnName();
+			query.append((i == 0) ? "" : ", ").append(columnName).append(" = GREATEST(COALESCE(").append(columnName).append(", 0), ?)");
+		}
+		query.append(" WHERE id = 0");
+		SysLog.logQuery(query.toString());
 
-		Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-		ResultSet rset = stmt.executeQuery(query);
-		if (rset.next()) {
-			int lastUserId = User.getLastUserId();
-			rset.updateInt("last_user_id", lastUserId);
-			SysLog.logSysInfo("saved global variable lastUserId: " + lastUserId);
-			int lastPhotoId = PhotoId.getCurrentIdAsInt();
-			rset.updateInt("last_photo_id", lastPhotoId);
-			SysLog.logSysInfo("saved global variable lastPhotoId: " + lastPhotoId);
-			int lastCaseId = Case.getLastCaseId().asInt();
-			rset.updateInt("last_case_id", lastCaseId);
-			SysLog.logSysInfo("saved global variable lastCaseId: " + lastCaseId);
-			int lastSessionId = AbstractServlet.getLastSessionId();
-			rset.updateInt("last_session_id", lastSessionId);
-			SysLog.logSysInfo("saved global variable lastSessionId: " + lastSessionId);
-			int lastLocationId = LocationId.getCurrentIdAsInt();
-			rset.updateInt("last_location_id", lastLocationId);
-			SysLog.logSysInfo("saved global variable lastLocationId: " + lastLocationId);
-			rset.updateRow();
-		} else {
-			SysLog.logSysError("Could not save globals!");
+		PreparedStatement stmt = conn.prepareStatement(query.toString());
+		try {
+			for (int i = 0; i < allocators.length; i++) {
+				int lastId = allocators[i].getLastId();
+				stmt.setInt(i + 1, lastId);
+				SysLog.logSysInfo("saved global variable " + allocators[i].getColumnName() + ": " + lastId);
+			}
+			if (stmt.executeUpdate() == 0) {
+				SysLog.logSysError("Could not save globals!");
+			}
+		} finally {
+			stmt.close();
 		}
-		
-		stmt.close();
 	}
 	
 	/**
@@ -169,6 +386,8 @@ public abstract class ModelMain extends AbstractMain {
 	 */
 	public void saveAll() throws SQLException {
 		PhotoCaseManager.getInstance().savePhotoCases();
+		LocationManager.getInstance().saveLocations();
+		PhotoManager.getInstance().savePhotos();
 		CatPhotoManager.getInstance().savePhotos();
 		UserManager.getInstance().saveUsers();
 
@@ -6,6 +6,8 @@
 package org.wahlzeit.main;
 
 import org.wahlzeit.agents.AgentManager;
+import org.wahlzeit.agents.CacheInvalidationAgent;
+import org.wahlzeit.agents.SnapshotAgent;
 import org.wahlzeit.handlers.*;
 import org.wahlzeit.model.*;
 import org.wahlzeit.webparts.*;
@@ -73,7 +75,16 @@ public class ServiceMain extends ModelMain {
 		configureWebPartHandlers();
 		configureLanguageModels();
 
+		PhotoManager.getInstance().loadTagIndex();
+		PhotoManager.getInstance().loadPhotoIndex();
+
 		AgentManager am = AgentManager.getInstance();
+		if (ObjectManager.getModelSnapshot() != null) {
+			am.addAgent(new SnapshotAgent(this));
+		}
+		if (ObjectManager.getCacheInvalidator() != null) {
+			am.addAgent(new CacheInvalidationAgent(ObjectManager.getCacheInvalidator()));
+		}
 		am.startAllThreads();
 	}
 	
@@ -17,6 +17,18 @@ public abstract class Case extends DataObject {
 	 */
 	protected static CaseId lastCaseId = CaseId.NULL_ID;
 	
+	/**
+	 * 
+	 */
+	protected static final IdAllocator caseIds = new IdAllocator("last_case_id");
+	
+	/**
+	 * 
+	 */
+	public static IdAllocator getIdAllocator() {
+		return caseIds;
+	}
+	
 	/**
 	 * @methodtype get
 	 */
@@ -29,13 +41,14 @@ public abstract class Case extends DataObject {
 	 */
 	public static synchronized void setLastCaseId(CaseId newId) {
 		lastCaseId = newId;
+		caseIds.setLastId(newId.asInt());
 	}
 	
 	/**
 	 * @methodtype idiom
 	 */
 	public static synchronized CaseId getNextCaseId() {
-		return lastCaseId = lastCaseId.getNextId();
+		return lastCaseId = new CaseId(caseIds.getNextId());
 	}
 
 }
@@ -1,8 +1,10 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.main.ServiceMain;
+import org.wahlzeit.services.ObjectCache;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.SysConfig;
 import org.wahlzeit.services.SysLog;
 
 import java.io.File;
@@ -16,7 +18,8 @@ public class CatManager extends ObjectManager {
     //Manager-Collaboration with Cat; Bound role: Manager
     protected static final CatManager instance = new CatManager();
 
-    protected Map<CatId, Cat> catCache = new HashMap<CatId, Cat>();
+    //Cats are not persisted, so the configured size should stay unbounded; see configureCache()
+    protected ObjectCache<CatId, Cat> catCache = new ObjectCache<CatId, Cat>("cats");
 
     //LinkedHashMap here to prevent the ordering of the keys. (Would lead to failed tests, and i dont want to redo the CompareArrays)
     protected Map<String, CatType> catTypes = new LinkedHashMap<String, CatType>();
@@ -66,6 +69,18 @@ public class CatManager extends ObjectManager {
         //Postconditions: None
     }
 
+    public void configureCache() {
+        //Preconditions: None
+        catCache.setMaxSize(SysConfig.getCatCacheSizeAsInt());
+        //Postconditions: None
+    }
+
+    public ObjectCache<CatId, Cat> getCatCache() {
+        //Preconditions: None
+        //Postconditions: None
+        return catCache;
+    }
+
     public Cat getCatFromId(CatId id) {
         //Preconditions: The argument id is not null
         ContractEnforcerUtil.assertArgumentNonNull(id);
@@ -89,7 +104,7 @@ public class CatManager extends ObjectManager {
         catCache.put(cat.getId(), cat);
 
         //Postconditions: Cat is now added to the Cache
-        assert catCache.get(id) != null;
+        assert catCache.containsKey(id);
     }
 
     public void addType(CatType type) {
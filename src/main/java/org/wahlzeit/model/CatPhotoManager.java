@@ -1,9 +1,8 @@
 package org.wahlzeit.model;
 
-import org.wahlzeit.services.SysLog;
+import org.wahlzeit.services.ObjectCache;
 
 import java.io.File;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
@@ -38,33 +37,14 @@ public class CatPhotoManager extends PhotoManager{
         //Preconditions: None
         //Postconditions: None
         super();
+        photoCache = new ObjectCache<PhotoId, Photo>("cat-photos");
     }
 
     @Override
     public CatPhoto getPhotoFromId(PhotoId id) {
-        //Preconditions: The argument id is not null
-        ContractEnforcerUtil.assertArgumentNonNull(id);
-        if (id.isNullId()) {
-            return null;
-        }
-
-        CatPhoto result = doGetPhotoFromId(id);
-
-        if (result == null) {
-            try {
-                PreparedStatement stmt = getReadingStatement("SELECT * FROM photos WHERE id = ?");
-                result = (CatPhoto) readObject(stmt, id.asInt());
-            } catch (SQLException sex) {
-                SysLog.logThrowable(sex);
-            }
-            if (result != null) {
-                doAddPhoto(result);
-            }
-        }
-
-        //Postconditions: Location is now added to the Cache, if the result was not null
-        if(result!=null)assert photoCache.get(id) != null;
-        return result;
+        //Preconditions: None, checked in PhotoManager.getPhotoFromId
+        //Postconditions: None, checked in PhotoManager.getPhotoFromId
+        return (CatPhoto) super.getPhotoFromId(id);
     }
 
     @Override
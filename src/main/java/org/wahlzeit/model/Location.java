@@ -29,8 +29,8 @@ public class Location extends DataObject{
         ContractEnforcerUtil.assertArgumentNonNull(id, name);
         this.id = id;
         this.name = name;
-        incWriteCount();
         coordinate = CartesianCoordinate.getCartesianCoordinate(x, y, z);
+        incWriteCount();
         //Postconditions: None
         assertClassInvariants();
     }
@@ -40,8 +40,8 @@ public class Location extends DataObject{
         ContractEnforcerUtil.assertArgumentNonNull(id, name, c);
         this.id = id;
         this.name = name;
-        incWriteCount();
         coordinate = c;
+        incWriteCount();
         //Postconditions: None
         assertClassInvariants();
     }
@@ -51,8 +51,8 @@ public class Location extends DataObject{
         ContractEnforcerUtil.assertArgumentNonNull(name);
         this.id = LocationId.getNextId();
         this.name = name;
-        incWriteCount();
         coordinate = CartesianCoordinate.getCartesianCoordinate(x, y, z);
+        incWriteCount();
         //Postconditions: None
         assertClassInvariants();
     }
@@ -62,8 +62,8 @@ public class Location extends DataObject{
         ContractEnforcerUtil.assertArgumentNonNull(name, c);
         this.id = LocationId.getNextId();
         this.name = name;
-        incWriteCount();
         coordinate = c;
+        incWriteCount();
         //Postconditions: None
         assertClassInvariants();
     }
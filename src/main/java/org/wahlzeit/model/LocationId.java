@@ -1,18 +1,22 @@
 package org.wahlzeit.model;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.wahlzeit.services.IdAllocator;
+import org.wahlzeit.utils.IdRegistry;
 
 //Just a copy of PhotoId for Location to enable the usage of ids in the database table.
 public class LocationId {
     /**
      * 0 is never returned from nextValue; first value is 1
      */
-    protected static int currentId = 0;
+    protected static final AtomicInteger currentId = new AtomicInteger();
 
     /**
      *
      */
-    public static final int BUFFER_SIZE_INCREMENT = 64;
+    protected static final IdAllocator allocator = new IdAllocator("last_location_id");
 
     /**
      *
@@ -22,7 +26,11 @@ public class LocationId {
     /**
      *
      */
-    protected static LocationId[] ids = new LocationId[BUFFER_SIZE_INCREMENT];
+    protected static final IdRegistry<LocationId> ids = new IdRegistry<LocationId>() {
+        protected LocationId createObject(int id) {
+            return new LocationId(id);
+        }
+    };
 
     /**
      * What a hack :-)
@@ -40,58 +48,61 @@ public class LocationId {
     public static int getCurrentIdAsInt() {
         //Preconditions: None
         //Postconditions: None
-        return currentId;
+        return currentId.get();
+    }
+
+    /**
+     * Highest id reserved by this server; other servers sharing the database may hand out higher ones
+     */
+    public static int getMaxIdAsInt() {
+        //Preconditions: None
+        //Postconditions: None
+        return Math.max(currentId.get(), allocator.getMaxId());
     }
 
     /**
      *
      */
-    public static synchronized void setCurrentIdFromInt(int id) {
+    public static IdAllocator getIdAllocator() {
+        return allocator;
+    }
+
+    /**
+     *
+     */
+    public static void setCurrentIdFromInt(int id) {
         //Preconditions: None
-        currentId = id;
-        ids = new LocationId[currentId + BUFFER_SIZE_INCREMENT];
-        ids[0] = NULL_ID;
+        currentId.set(id);
+        allocator.setLastId(id);
         //Postconditions: None
     }
 
     /**
      *
      */
-    public static synchronized int getNextIdAsInt() {
+    public static int getNextIdAsInt() {
         //Preconditions: None
-        currentId += 1;
-        if (currentId >= ids.length) {
-            LocationId[] nids = new LocationId[currentId + BUFFER_SIZE_INCREMENT];
-            System.arraycopy(ids, 0, nids, 0, currentId);
-            ids = nids;
+        int id = allocator.getNextId();
+        int current = currentId.get();
+        while ((current < id) && !currentId.compareAndSet(current, id)) {
+            current = currentId.get();
         }
         //Postconditions: None
-        return currentId;
+        return id;
     }
 
     /**
-     *
+     * Accepts any positive id, as another server sharing the database may have handed it out from a block above
+     * getMaxIdAsInt(); whether a location with that id exists is up to the lookup.
      */
     public static LocationId getIdFromInt(int id) {
         //Preconditions: None
-        if ((id < 0) || (id > currentId)) {
+        if (id <= 0) {
             return NULL_ID;
         }
 
-        // @FIXME http://en.wikipedia.org/wiki/Double-checked_locking
-        LocationId result = ids[id];
-        if (result == null) {
-            synchronized(ids) {
-                result = ids[id];
-                if (result == null) {
-                    result = new LocationId(id);
-                    ids[id] = result;
-                }
-            }
-        }
-
         //Postconditions: None
-        return result;
+        return ids.get(id);
     }
 
     /**
@@ -214,23 +225,22 @@ public class LocationId {
      */
     public static String getFromInt(int id) {
         //Preconditions: None
-        StringBuffer result = new StringBuffer(10);
+        char[] result = new char[8]; // "x" and at most 7 digits, filled from the end
+        int pos = result.length;
 
         id += ID_START;
-        for ( ; id > 0;	id = id / 36 ) {
-            char letterOrDigit;
+        for ( ; id > 0;    id = id / 36 ) {
             int modulus = id % 36;
             if (modulus < 10) {
-                letterOrDigit = (char) ((int) '0' + modulus);
+                result[--pos] = (char) ((int) '0' + modulus);
             } else {
-                letterOrDigit = (char) ((int) 'a' - 10 + modulus);
+                result[--pos] = (char) ((int) 'a' - 10 + modulus);
             }
-            result.insert(0, letterOrDigit);
-
         }
+        result[--pos] = 'x';
 
         //Postconditions: None
-        return "x" + result.toString();
+        return new String(result, pos, result.length - pos);
     }
 
     /**
@@ -35,7 +35,14 @@ public class LocationManager extends ObjectManager {
 
     protected static final LocationManager instance = new LocationManager();
 
-    protected Map<LocationId, Location> locationCache = new HashMap<LocationId, Location>();
+    //Bounded, see configureCache()
+    protected ObjectCache<LocationId, Location> locationCache = new ObjectCache<LocationId, Location>("locations");
+
+    protected ObjectLoader<LocationId, Location> locationLoader = new ObjectLoader<LocationId, Location>() {
+        public Location load(LocationId id) throws SQLException {
+            return doLoadLocation(id);
+        }
+    };
 
     public static final LocationManager getInstance() {
         //Preconditions: None
@@ -71,6 +78,21 @@ public class LocationManager extends ObjectManager {
         //Do nothing
     }
 
+    /**
+     * Applies the configured cache size; called on startup, once the SysConfig exists.
+     */
+    public void configureCache() {
+        //Preconditions: None
+        locationCache.setMaxSize(SysConfig.getLocationCacheSizeAsInt());
+        //Postconditions: None
+    }
+
+    public ObjectCache<LocationId, Location> getLocationCache() {
+        //Preconditions: None
+        //Postconditions: None
+        return locationCache;
+    }
+
     protected boolean doHasLocation(LocationId id) {
         //Preconditions: None, null check for id is done in calling method
         //Postconditions: None
@@ -84,25 +106,27 @@ public class LocationManager extends ObjectManager {
             return null;
         }
 
-        Location result = doGetLocationFromId(id);
-
-        if (result == null) {
-            try {
-                PreparedStatement stmt = getReadingStatement("SELECT * FROM locations WHERE id = ?");
-                result = (Location) readObject(stmt, id.asInt());
-            } catch (SQLException sex) {
-                SysLog.logThrowable(sex);
-            }
-            if (result != null) {
-                doAddLocation(result);
-            }
+        Location result = null;
+        try {
+            result = locationCache.getOrLoad(id, locationLoader);
+        } catch (SQLException sex) {
+            SysLog.logThrowable(sex);
         }
 
         //Postconditions: Location is now added to the Cache, if the result was not null
-        if(result!=null)assert locationCache.get(id) != null;
+        if(result!=null)assert locationCache.containsKey(id);
         return result;
     }
 
+    /**
+     * Reads a location that is not in the cache; concurrent misses of the same id share one read.
+     */
+    protected Location doLoadLocation(LocationId id) throws SQLException {
+        //Preconditions: None, null check for id is done in calling method
+        //Postconditions: None
+        return (Location) readObject("locations", "id", id.asInt());
+    }
+
     protected Location doGetLocationFromId(LocationId id) {
         //Preconditions: None, null check for id is done in calling method
         //Postconditions: None
@@ -123,14 +147,12 @@ public class LocationManager extends ObjectManager {
         doAddLocation(location);
 
         try {
-            PreparedStatement stmt = getReadingStatement("INSERT INTO locations(id) VALUES(?)");
-            createObject(location, stmt, id.asInt());
-            ServiceMain.getInstance().saveGlobals();
+            insertObject(location, "locations");
         } catch (SQLException sex) {
             SysLog.logThrowable(sex);
         }
         //Postconditions: Location is now added to the Cache
-        assert locationCache.get(id) != null;
+        assert locationCache.containsKey(id);
     }
 
     protected void doAddLocation(Location myLocation) {
@@ -139,38 +161,129 @@ public class LocationManager extends ObjectManager {
         //Postconditions: None
     }
 
-    public void loadLocations(Collection<Location> result) {
-        //Preconditions: The argument result is not null
-        ContractEnforcerUtil.assertArgumentNonNull(result);
+    /**
+     * Loads the locations of all photos that match photoCondition with one query,
+     * so that reading these photos finds their locations in the cache.
+     */
+    public void loadLocationsOfPhotos(String photoCondition, Array param) {
+        //Preconditions: The argument photoCondition is not null
+        ContractEnforcerUtil.assertArgumentNonNull(photoCondition);
+        if (!hasRelationalStore()) {
+            return; // photos read their locations one by one then
+        }
+
         try {
-            PreparedStatement stmt = getReadingStatement("SELECT * FROM locations");
+            PreparedStatement stmt = getReadingStatement("SELECT * FROM locations WHERE id IN (SELECT location FROM photos WHERE " + photoCondition + ")");
+            if (param != null) {
+                stmt.setArray(1, param);
+            }
+            Collection<Location> result = new ArrayList<Location>();
             readObjects(result, stmt);
-            for (Iterator<Location> i = result.iterator(); i.hasNext(); ) {
-                Location location = i.next();
-                if (!doHasLocation(location.getId())) {
-                    doAddLocation(location);
-                } else {
-                    SysLog.logSysInfo("location", location.getId().asString(), "location had already been loaded");
-                }
+            for (Location location : result) {
+                locationCache.putIfAbsent(location.getId(), location);
             }
         } catch (SQLException sex) {
             SysLog.logThrowable(sex);
         }
+        //Postconditions: None
+    }
 
-        //Postconditions: All locations are now in the Cache
-        for (Location location : result) {
-            assert locationCache.get(location.getId()) != null;
+    public void loadLocations(final Collection<Location> result) {
+        //Preconditions: The argument result is not null
+        ContractEnforcerUtil.assertArgumentNonNull(result);
+        try {
+            scanObjects("locations", new ObjectConsumer() {
+                public void consume(Persistent obj) {
+                    Location location = (Location) obj;
+                    if (locationCache.putIfAbsent(location.getId(), location) != location) {
+                        SysLog.logSysInfo("location", location.getId().asString(), "location had already been loaded");
+                    }
+                    result.add(location);
+                }
+            });
+        } catch (SQLException sex) {
+            SysLog.logThrowable(sex);
         }
+
+        //Postconditions: None, the cache keeps only the most recently loaded locations if bounded
         SysLog.logSysInfo("loaded all locations");
 
     }
 
+    /**
+     * Returns the ids of all locations named name; without a relational store, this scans all locations.
+     */
+    public List<LocationId> findLocationIdsByName(final String name) {
+        //Preconditions: The argument name is not null
+        ContractEnforcerUtil.assertArgumentNonNull(name);
+        final List<LocationId> result = new ArrayList<LocationId>();
+        try {
+            if (hasRelationalStore()) {
+                PreparedStatement stmt = getReadingStatement("SELECT id FROM locations WHERE name = ?");
+                stmt.setString(1, name);
+                SysLog.logQuery(stmt);
+                ResultSet rset = stmt.executeQuery();
+                while (rset.next()) {
+                    result.add(LocationId.getIdFromInt(rset.getInt("id")));
+                }
+            } else {
+                scanObjects("locations", new ObjectConsumer() {
+                    public void consume(Persistent obj) {
+                        Location location = (Location) obj;
+                        if (name.equals(location.getName())) {
+                            result.add(location.getId());
+                        }
+                    }
+                });
+            }
+        } catch (SQLException sex) {
+            SysLog.logThrowable(sex);
+        }
+
+        //Postconditions: None
+        return result;
+    }
+
+    protected void forgetObject(Persistent obj) {
+        locationCache.remove(((Location) obj).getId());
+    }
+
+    protected int getWriteRank() {
+        return 1;
+    }
+
+    public String getCacheTableName() {
+        return "locations";
+    }
+
+    public String getCacheKey(Persistent obj) {
+        return ((Location) obj).getId().asString();
+    }
+
+    protected void invalidateObject(String key, long version) {
+        locationCache.invalidate(LocationId.getIdFromString(key), version);
+    }
+
+    protected void invalidateAllObjects() {
+        locationCache.invalidateAll();
+    }
+
+    public Collection<? extends Persistent> getCachedObjects() {
+        return locationCache.values();
+    }
+
+    protected void restoreObjects(Collection<Persistent> objects) {
+        for (Persistent obj : objects) {
+            Location location = (Location) obj;
+            locationCache.putIfAbsent(location.getId(), location);
+        }
+    }
+
     public void saveLocation(Location location) {
         //Preconditions: The argument location is not null
         ContractEnforcerUtil.assertArgumentNonNull(location);
         try {
-            PreparedStatement stmt = getUpdatingStatement("SELECT * FROM locations WHERE id = ?");
-            updateObject(location, stmt);
+            updateObject(location, "locations");
         } catch (SQLException sex) {
             SysLog.logThrowable(sex);
         }
@@ -178,10 +291,13 @@ public class LocationManager extends ObjectManager {
     }
 
     public void saveLocations() {
+        saveLocations(locationCache.values());
+    }
+
+    public void saveLocations(Collection<? extends Location> locations) {
         //Preconditions: None
         try {
-            PreparedStatement stmt = getUpdatingStatement("SELECT * FROM locations WHERE id = ?");
-            updateObjects(locationCache.values(), stmt);
+            updateObjects(locations, "locations");
         } catch (SQLException sex) {
             SysLog.logThrowable(sex);
         }
@@ -190,16 +306,9 @@ public class LocationManager extends ObjectManager {
 
     protected PreparedStatement getUpdatingStatementFromConditions(int no) throws SQLException {
         //Preconditions: None
-        String query = "SELECT * FROM tags";
+        String query = "SELECT photo_id FROM photo_tags";
         if (no > 0) {
-            query += " WHERE";
-        }
-
-        for (int i = 0; i < no; i++) {
-            if (i > 0) {
-                query += " OR";
-            }
-            query += " (tag = ?)";
+            query = "SELECT p.photo_id FROM photo_tags p JOIN tag_dictionary d ON d.id = p.tag_id WHERE d.text = ANY(?)";
         }
 
         //Postconditions: None
@@ -96,6 +96,12 @@ public class Photo extends DataObject {
 	protected int praiseSum = 10;
 	protected int noVotes = 1;
 	
+	/**
+	 * Praise as the row of the photo's version has it; the votes since can be added to a row another writer changed
+	 */
+	protected int storedPraiseSum = praiseSum;
+	protected int storedNoVotes = noVotes;
+	
 	/**
 	 * 
 	 */
@@ -179,6 +185,7 @@ public class Photo extends DataObject {
 		status = PhotoStatus.getFromInt(rset.getInt("status"));
 		praiseSum = rset.getInt("praise_sum");
 		noVotes = rset.getInt("no_votes");
+		setStoredPraise(praiseSum, noVotes);
 
 		creationTime = rset.getLong("creation_time");
 
@@ -211,10 +218,8 @@ public class Photo extends DataObject {
 		rset.updateInt("no_votes", noVotes);
 		rset.updateLong("creation_time", creationTime);
 		if(location!=null){
-			//Saving the location of the photo
-			//By calling the saving of the location here, the functions to save photos did not need to be adapted.
-			LocationManager.getInstance().saveLocation(location);
 			//The id of the location will be added to the database for association.
+			//The location itself is saved by PhotoManager.updateDependents(), so writeOn() has no side effects.
 			rset.updateInt("location", location.getId().asInt());
 		}
 		//Postconditions: We would need to check if the data is now present in the database,
@@ -264,7 +269,7 @@ public class Photo extends DataObject {
 		assertClassInvariants();
 		//Preconditions: None
 		ownerId = newId;
-		incWriteCount();
+		incWriteCount("owner_id");
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -289,7 +294,8 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newName is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newName);
 		ownerName = newName;
-		incWriteCount();
+		incWriteCount("owner_name");
+		PhotoIndex.getInstance().updatePhoto(this);
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -336,7 +342,7 @@ public class Photo extends DataObject {
 		assertClassInvariants();
 		//Preconditions: None
 		ownerNotifyAboutPraise = newNotifyAboutPraise;
-		incWriteCount();
+		incWriteCount("owner_notify_about_praise");
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -361,7 +367,7 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newEmailAddress is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newEmailAddress);
 		ownerEmailAddress = newEmailAddress;
-		incWriteCount();
+		incWriteCount("owner_email_address");
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -384,7 +390,7 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newLanguage is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newLanguage);
 		ownerLanguage = newLanguage;
-		incWriteCount();
+		incWriteCount("owner_language");
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -409,7 +415,24 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newHomePage is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newHomePage);
 		ownerHomePage = newHomePage;
-		incWriteCount();
+		incWriteCount("owner_home_page");
+		//Postconditions: None
+		assertClassInvariants();
+	}
+	
+	/**
+	 * Takes on the fields copied from owner without making this photo dirty, as UserManager.updateDependents() writes
+	 * them to the rows of all photos of owner with one statement.
+	 * @methodtype set
+	 */
+	public void setOwnerFieldsFrom(User owner) {
+		assertClassInvariants();
+		//Preconditions: The argument owner is not null
+		ContractEnforcerUtil.assertArgumentNonNull(owner);
+		ownerNotifyAboutPraise = owner.getNotifyAboutPraise();
+		ownerEmailAddress = owner.getEmailAddress();
+		ownerLanguage = owner.getLanguage();
+		ownerHomePage = owner.getHomePage();
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -493,7 +516,7 @@ public class Photo extends DataObject {
 
 		maxPhotoSize = PhotoSize.getFromWidthHeight(width, height);
 
-		incWriteCount();
+		incWriteCount("width", "height");
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -553,11 +576,45 @@ public class Photo extends DataObject {
 		//Preconditions: None
 		praiseSum += value;
 		noVotes += 1;
-		incWriteCount();
+		incWriteCount("praise_sum", "no_votes");
+		//Postconditions: None
+		assertClassInvariants();
+	}
+	
+	/**
+	 * Adds the votes since the photo's version to the praise of storedPhoto, whose row another writer changed;
+	 * the praise of storedPhoto counts as stored once it was merged, see setStoredPraise().
+	 */
+	public void reapplyPraiseTo(Photo storedPhoto) {
+		assertClassInvariants();
+		//Preconditions: The argument storedPhoto is not null
+		ContractEnforcerUtil.assertArgumentNonNull(storedPhoto);
+		praiseSum = storedPhoto.praiseSum + (praiseSum - storedPraiseSum);
+		noVotes = storedPhoto.noVotes + (noVotes - storedNoVotes);
 		//Postconditions: None
 		assertClassInvariants();
 	}
 	
+	/**
+	 * @methodtype set
+	 */
+	public void setStoredPraise(Photo storedPhoto) {
+		//Preconditions: The argument storedPhoto is not null
+		ContractEnforcerUtil.assertArgumentNonNull(storedPhoto);
+		setStoredPraise(storedPhoto.praiseSum, storedPhoto.noVotes);
+		//Postconditions: None
+	}
+	
+	/**
+	 * @methodtype set
+	 */
+	public void setStoredPraise(int newPraiseSum, int newNoVotes) {
+		//Preconditions: None
+		storedPraiseSum = newPraiseSum;
+		storedNoVotes = newNoVotes;
+		//Postconditions: None
+	}
+	
 	/**
 	 * 
 	 * @methodtype boolean-query
@@ -589,7 +646,8 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newStatus is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newStatus);
 		status = newStatus;
-		incWriteCount();
+		incWriteCount("status");
+		PhotoIndex.getInstance().updatePhoto(this);
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -626,7 +684,7 @@ public class Photo extends DataObject {
 		//Preconditions: The argument newTags is not null
 		ContractEnforcerUtil.assertArgumentNonNull(newTags);
 		tags = newTags;
-		incWriteCount();
+		incWriteCount("tags");
 		assertClassInvariants();
 		//Postconditions: None
 		assertClassInvariants();
@@ -663,7 +721,8 @@ public class Photo extends DataObject {
 		//Preconditions: The argument loc is not null
 		ContractEnforcerUtil.assertArgumentNonNull(loc);
 		location = loc;
-		incWriteCount();
+		incWriteCount("location");
+		PhotoIndex.getInstance().updatePhoto(this);
 		//Postconditions: None
 		assertClassInvariants();
 	}
@@ -132,7 +132,7 @@ public class PhotoCase extends Case {
 =	 */
 	public void setFlagger(String newFlagger) {
 		flagger = newFlagger;
-		incWriteCount();
+		incWriteCount("flagger");
 	}
 	
 	/**
@@ -147,7 +147,7 @@ public class PhotoCase extends Case {
 =	 */
 	public void setReason(FlagReason newReason) {
 		reason = newReason;
-		incWriteCount();
+		incWriteCount("reason");
 	}
 	
 	/**
@@ -162,7 +162,7 @@ public class PhotoCase extends Case {
 =	 */
 	public void setExplanation(String newExplanation) {
 		explanation = newExplanation;
-		incWriteCount();
+		incWriteCount("explanation");
 	}
 	
 	/**
@@ -178,7 +178,7 @@ public class PhotoCase extends Case {
 	public void setDecided() {
 		wasDecided = true;
 		decidedOn = System.currentTimeMillis();
-		incWriteCount();
+		incWriteCount("was_decided", "decision_time");
 	}
 	
 	/**
@@ -69,8 +69,7 @@ public class PhotoCaseManager extends ObjectManager {
 		PhotoCase result = openPhotoCases.get(id);
 		if (result == null) {
 			try {
-				PreparedStatement stmt = getReadingStatement("SELECT * FROM cases WHERE id = ?");
-				result = (PhotoCase) readObject(stmt, id);
+				result = (PhotoCase) readObject("cases", "id", id);
 			} catch (SQLException sex) {
 				SysLog.logThrowable(sex);
 			}
@@ -86,10 +85,8 @@ public class PhotoCaseManager extends ObjectManager {
 	public void addPhotoCase(PhotoCase myCase) {
 		openPhotoCases.put(myCase.getId(), myCase);
 		try {
-			PreparedStatement stmt1 = getReadingStatement("INSERT INTO cases(id) VALUES(?)");
-			createObject(myCase, stmt1, myCase.getId().asInt());
-			PreparedStatement stmt2 = getUpdatingStatement("SELECT * FROM cases WHERE id = ?");
-			updateObject(myCase, stmt2);
+			insertObject(myCase, "cases");
+			updateObject(myCase, "cases");
 			// @FIXME Main.saveGlobals();
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
@@ -103,21 +100,31 @@ public class PhotoCaseManager extends ObjectManager {
 	public void removePhotoCase(PhotoCase myCase) {
 		openPhotoCases.remove(myCase.getId());
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM cases WHERE id = ?");
-			updateObject(myCase, stmt);
+			updateObject(myCase, "cases");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 	}	
 	
 	/**
-	 * 
+	 * Without a relational store, this scans all cases.
 	 * @methodtype command
 	 */
-	public void loadOpenPhotoCases(Collection<PhotoCase> result) {
+	public void loadOpenPhotoCases(final Collection<PhotoCase> result) {
 		try {
-			PreparedStatement stmt = getReadingStatement("SELECT * FROM cases WHERE was_decided = FALSE");
-			readObjects(result, stmt);
+			if (hasRelationalStore()) {
+				PreparedStatement stmt = getReadingStatement("SELECT * FROM cases WHERE was_decided = FALSE");
+				readObjects(result, stmt);
+			} else {
+				scanObjects("cases", new ObjectConsumer() {
+					public void consume(Persistent obj) {
+						PhotoCase photoCase = (PhotoCase) obj;
+						if (!photoCase.wasDecided()) {
+							result.add(photoCase);
+						}
+					}
+				});
+			}
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -125,14 +132,35 @@ public class PhotoCaseManager extends ObjectManager {
 		SysLog.logSysInfo("loaded all open photo cases");
 	}
 	
+	/**
+	 * 
+	 */
+	protected void forgetObject(Persistent obj) {
+		openPhotoCases.remove(((PhotoCase) obj).getId());
+	}
+	
+	/**
+	 * Cases refer to photos
+	 */
+	protected int getWriteRank() {
+		return 4;
+	}
+	
 	/**
 	 * 
 	 * @methodtype command
 	 */
 	public void savePhotoCases() {
+		savePhotoCases(openPhotoCases.values());
+	}
+	
+	/**
+	 * 
+	 * @methodtype command
+	 */
+	public void savePhotoCases(Collection<? extends PhotoCase> photoCases) {
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM cases WHERE id = ?");
-			updateObjects(openPhotoCases.values(), stmt);
+			updateObjects(photoCases, "cases");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -6,23 +6,27 @@
 package org.wahlzeit.model;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.wahlzeit.services.IdAllocator;
+import org.wahlzeit.utils.IdRegistry;
 
 /**
  * A photo id identifies a photo with a unique number.
  * The number has an equivalent string for web access. 
- * This class also hands out the ids.
+ * This class also hands out the ids, in blocks reserved by its IdAllocator.
  */
 public class PhotoId {
 	
 	/**
 	 * 0 is never returned from nextValue; first value is 1
 	 */
-	protected static int currentId = 0;
+	protected static final AtomicInteger currentId = new AtomicInteger();
 	
 	/**
 	 * 
 	 */
-	public static final int BUFFER_SIZE_INCREMENT = 64;
+	protected static final IdAllocator allocator = new IdAllocator("last_photo_id");
 	
 	/**
 	 * 
@@ -32,7 +36,11 @@ public class PhotoId {
 	/**
 	 * 
 	 */
-	protected static PhotoId[] ids = new PhotoId[BUFFER_SIZE_INCREMENT];
+	protected static final IdRegistry<PhotoId> ids = new IdRegistry<PhotoId>() {
+		protected PhotoId createObject(int id) {
+			return new PhotoId(id);
+		}
+	};
 	
 	/**
 	 * What a hack :-)
@@ -50,58 +58,61 @@ public class PhotoId {
 	public static int getCurrentIdAsInt() {
 		//Preconditions: None
 		//Postconditions: None
-		return currentId;
+		return currentId.get();
+	}
+	
+	/**
+	 * Highest id reserved by this server; other servers sharing the database may hand out higher ones
+	 */
+	public static int getMaxIdAsInt() {
+		//Preconditions: None
+		//Postconditions: None
+		return Math.max(currentId.get(), allocator.getMaxId());
 	}
 	
 	/**
 	 * 
 	 */
-	public static synchronized void setCurrentIdFromInt(int id) {
+	public static IdAllocator getIdAllocator() {
+		return allocator;
+	}
+	
+	/**
+	 * 
+	 */
+	public static void setCurrentIdFromInt(int id) {
 		//Preconditions: None
-		currentId = id;
-		ids = new PhotoId[currentId + BUFFER_SIZE_INCREMENT];
-		ids[0] = NULL_ID;
+		currentId.set(id);
+		allocator.setLastId(id);
 		//Postconditions: None
 	}
 	
 	/**
 	 * 
 	 */
-	public static synchronized int getNextIdAsInt() {
+	public static int getNextIdAsInt() {
 		//Preconditions: None
-		currentId += 1;
-		if (currentId >= ids.length) {
-			PhotoId[] nids = new PhotoId[currentId + BUFFER_SIZE_INCREMENT];
-			System.arraycopy(ids, 0, nids, 0, currentId);
-			ids = nids;
+		int id = allocator.getNextId();
+		int current = currentId.get();
+		while ((current < id) && !currentId.compareAndSet(current, id)) {
+			current = currentId.get();
 		}
 		//Postconditions: None
-		return currentId;
+		return id;
 	}
 
 	/**
-	 * 
+	 * Accepts any positive id, as another server sharing the database may have handed it out from a block above
+	 * getMaxIdAsInt(); whether a photo with that id exists is up to the lookup.
 	 */
 	public static PhotoId getIdFromInt(int id) {
 		//Preconditions: None
-		if ((id < 0) || (id > currentId)) {
+		if (id <= 0) {
 			return NULL_ID;
 		}
 		
-		// @FIXME http://en.wikipedia.org/wiki/Double-checked_locking
-		PhotoId result = ids[id];
-		if (result == null) {
-			synchronized(ids) {
-				result = ids[id];
-				if (result == null) {
-					result = new PhotoId(id);
-					ids[id] = result;
-				}
-			}
-		}
-
 		//Postconditions: None
-		return result;
+		return ids.get(id);
 	}
 	
 	/**
@@ -224,23 +235,22 @@ public class PhotoId {
 	 */
 	public static String getFromInt(int id) {
 		//Preconditions: None
-		StringBuffer result = new StringBuffer(10);
-		
+		char[] result = new char[8]; // "x" and at most 7 digits, filled from the end
+		int pos = result.length;
+
 		id += ID_START;
 		for ( ; id > 0;	id = id / 36 ) {
-			char letterOrDigit;
 			int modulus = id % 36;
 			if (modulus < 10) {
-				letterOrDigit = (char) ((int) '0' + modulus);
+				result[--pos] = (char) ((int) '0' + modulus);
 			} else {
-				letterOrDigit = (char) ((int) 'a' - 10 + modulus);
+				result[--pos] = (char) ((int) 'a' - 10 + modulus);
 			}
-			result.insert(0, letterOrDigit);
-
 		}
+		result[--pos] = 'x';
 
 		//Postconditions: None
-		return "x" + result.toString();
+		return new String(result, pos, result.length - pos);
 	}
 	
 	/**
@@ -0,0 +1,271 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.model;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import org.wahlzeit.utils.*;
+
+/**
+ * The PhotoIndex maps owner names, photo status values, and location ids to the ids of all photos that have them.
+ * Unlike the photo cache, it covers all photos, so PhotoManager can answer such lookups without querying the photos table.
+ * It is loaded once on startup and then kept up to date by PhotoManager.doAddPhoto() and the setters of Photo.
+ */
+public class PhotoIndex {
+
+	/**
+	 *
+	 */
+	protected static final PhotoIndex instance = new PhotoIndex();
+
+	/**
+	 *
+	 */
+	public static PhotoIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The indexed attributes of one photo
+	 */
+	protected static class Entry {
+		protected String ownerName;
+		protected PhotoStatus status;
+		protected int locationId;
+
+		protected Entry(String myOwnerName, PhotoStatus myStatus, int myLocationId) {
+			ownerName = myOwnerName;
+			status = myStatus;
+			locationId = myLocationId;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected volatile boolean isLoaded = false;
+
+	/**
+	 *
+	 */
+	protected Map<Integer, Entry> entriesByPhotoId = new HashMap<Integer, Entry>();
+	protected Map<String, IntBitmap> photoIdsByOwner = new HashMap<String, IntBitmap>();
+	protected Map<PhotoStatus, IntBitmap> photoIdsByStatus = new EnumMap<PhotoStatus, IntBitmap>(PhotoStatus.class);
+	protected Map<Integer, IntBitmap> photoIdsByLocation = new HashMap<Integer, IntBitmap>();
+
+	/**
+	 *
+	 */
+	protected ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 *
+	 */
+	protected PhotoIndex() {
+		// do nothing
+	}
+
+	/**
+	 *
+	 */
+	public boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	 * Replaces the index with the rows of rset, which must provide the "id", "owner_name", "status", and "location" columns.
+	 */
+	public void load(ResultSet rset) throws SQLException {
+		Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+		while (rset.next()) {
+			entries.put(rset.getInt("id"), new Entry(rset.getString("owner_name"), PhotoStatus.getFromInt(rset.getInt("status")), rset.getInt("location")));
+		}
+
+		load(entries);
+	}
+
+	/**
+	 * Replaces the index with the given photos.
+	 */
+	public void load(Collection<Photo> photos) {
+		Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+		for (Photo photo : photos) {
+			entries.put(photo.getId().asInt(), asEntry(photo));
+		}
+
+		load(entries);
+	}
+
+	/**
+	 *
+	 */
+	protected void load(Map<Integer, Entry> entries) {
+		lock.writeLock().lock();
+		try {
+			entriesByPhotoId.clear();
+			photoIdsByOwner.clear();
+			photoIdsByStatus.clear();
+			photoIdsByLocation.clear();
+			for (Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+				doSetPhoto(entry.getKey(), entry.getValue());
+			}
+			isLoaded = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds photo or updates its entry.
+	 */
+	public void addPhoto(Photo photo) {
+		Entry entry = asEntry(photo);
+		lock.writeLock().lock();
+		try {
+			doSetPhoto(photo.getId().asInt(), entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates the entry of photo if it is indexed; photos that are still being built are added by addPhoto() later.
+	 */
+	public void updatePhoto(Photo photo) {
+		Entry entry = asEntry(photo);
+		int photoId = photo.getId().asInt();
+		lock.writeLock().lock();
+		try {
+			if (entriesByPhotoId.containsKey(photoId)) {
+				doSetPhoto(photoId, entry);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void removePhoto(int photoId) {
+		lock.writeLock().lock();
+		try {
+			Entry oldEntry = entriesByPhotoId.remove(photoId);
+			if (oldEntry != null) {
+				removeFrom(photoIdsByOwner, oldEntry.ownerName, photoId);
+				removeFrom(photoIdsByStatus, oldEntry.status, photoId);
+				removeFrom(photoIdsByLocation, oldEntry.locationId, photoId);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected Entry asEntry(Photo photo) {
+		Location location = photo.getLocation();
+		int locationId = (location == null) ? 0 : location.getId().asInt();
+		return new Entry(photo.getOwnerName(), photo.getStatus(), locationId);
+	}
+
+	/**
+	 *
+	 */
+	protected void doSetPhoto(int photoId, Entry entry) {
+		Entry oldEntry = entriesByPhotoId.put(photoId, entry);
+		if (oldEntry != null) {
+			removeFrom(photoIdsByOwner, oldEntry.ownerName, photoId);
+			removeFrom(photoIdsByStatus, oldEntry.status, photoId);
+			removeFrom(photoIdsByLocation, oldEntry.locationId, photoId);
+		}
+
+		addTo(photoIdsByOwner, entry.ownerName, photoId);
+		addTo(photoIdsByStatus, entry.status, photoId);
+		if (entry.locationId != 0) {
+			addTo(photoIdsByLocation, entry.locationId, photoId);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected <K> void addTo(Map<K, IntBitmap> map, K key, int photoId) {
+		if (key == null) {
+			return;
+		}
+
+		IntBitmap photoIds = map.get(key);
+		if (photoIds == null) {
+			photoIds = new IntBitmap();
+			map.put(key, photoIds);
+		}
+		photoIds.add(photoId);
+	}
+
+	/**
+	 *
+	 */
+	protected <K> void removeFrom(Map<K, IntBitmap> map, K key, int photoId) {
+		IntBitmap photoIds = map.get(key);
+		if (photoIds != null) {
+			photoIds.remove(photoId);
+			if (photoIds.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	public IntBitmap getPhotoIdsByOwner(String ownerName) {
+		return getPhotoIds(photoIdsByOwner, ownerName);
+	}
+
+	/**
+	 *
+	 */
+	public IntBitmap getPhotoIdsByStatus(PhotoStatus status) {
+		return getPhotoIds(photoIdsByStatus, status);
+	}
+
+	/**
+	 *
+	 */
+	public IntBitmap getPhotoIdsByLocation(LocationId locationId) {
+		return getPhotoIds(photoIdsByLocation, locationId.asInt());
+	}
+
+	/**
+	 * Returns a copy, so callers need not hold the lock.
+	 */
+	protected <K> IntBitmap getPhotoIds(Map<K, IntBitmap> map, K key) {
+		lock.readLock().lock();
+		try {
+			IntBitmap photoIds = map.get(key);
+			return (photoIds == null) ? new IntBitmap() : new IntBitmap(photoIds);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public int getNoPhotos() {
+		lock.readLock().lock();
+		try {
+			return entriesByPhotoId.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+}
@@ -11,6 +11,7 @@ import java.util.*;
 
 import org.wahlzeit.main.*;
 import org.wahlzeit.services.*;
+import org.wahlzeit.utils.*;
 
 /**
  * A photo manager provides access to and manages photos.
@@ -39,9 +40,18 @@ public class PhotoManager extends ObjectManager {
 	protected static final PhotoManager instance = new PhotoManager();
 
 	/**
-	 * In-memory cache for photos
+	 * In-memory cache for photos; bounded, see configureCache()
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	protected ObjectCache<PhotoId, Photo> photoCache = new ObjectCache<PhotoId, Photo>("photos");
+	
+	/**
+	 * 
+	 */
+	protected ObjectLoader<PhotoId, Photo> photoLoader = new ObjectLoader<PhotoId, Photo>() {
+		public Photo load(PhotoId id) throws SQLException {
+			return doLoadPhoto(id);
+		}
+	};
 	
 	/**
 	 * 
@@ -123,25 +133,27 @@ public class PhotoManager extends ObjectManager {
 			return null;
 		}
 
-		Photo result = doGetPhotoFromId(id);
-		
-		if (result == null) {
-			try {
-				PreparedStatement stmt = getReadingStatement("SELECT * FROM photos WHERE id = ?");
-				result = (Photo) readObject(stmt, id.asInt());
-			} catch (SQLException sex) {
-				SysLog.logThrowable(sex);
-			}
-			if (result != null) {
-				doAddPhoto(result);
-			}
+		Photo result = null;
+		try {
+			result = photoCache.getOrLoad(id, photoLoader);
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
 		}
 
 		//Postconditions: Location is now added to the Cache, if the result was not null
-		if(result!=null)assert photoCache.get(id) != null;
+		if(result!=null)assert photoCache.containsKey(id);
 		return result;
 	}
 		
+	/**
+	 * Reads a photo that is not in the cache; concurrent misses of the same id share one read.
+	 */
+	protected Photo doLoadPhoto(PhotoId id) throws SQLException {
+		//Preconditions: None, null check for id is done in calling method
+		//Postconditions: None
+		return (Photo) readObject("photos", "id", id.asInt());
+	}
+	
 	/**
 	 * @methodtype get
 	 * @methodproperties primitive
@@ -161,6 +173,170 @@ public class PhotoManager extends ObjectManager {
 		return PhotoFactory.getInstance().createPhoto(rset);
 	}
 	
+	/**
+	 * Applies the configured cache size; called on startup, once the SysConfig exists.
+	 */
+	public void configureCache() {
+		//Preconditions: None
+		photoCache.setMaxSize(SysConfig.getPhotoCacheSizeAsInt());
+		photoCache.getNegativeCache().configure(SysConfig.getNegativeCacheSizeAsInt(), SysConfig.getNegativeCacheTtlAsLong());
+		//Postconditions: None
+	}
+	
+	/**
+	 * 
+	 */
+	public ObjectCache<PhotoId, Photo> getPhotoCache() {
+		//Preconditions: None
+		//Postconditions: None
+		return photoCache;
+	}
+	
+	/**
+	 * 
+	 */
+	public String getCacheTableName() {
+		return "photos";
+	}
+	
+	/**
+	 * The key is the photo id as in URLs, which invalidateObject() reads back.
+	 */
+	public String getCacheKey(Persistent obj) {
+		//Preconditions: None
+		//Postconditions: None
+		return ((Photo) obj).getId().asString();
+	}
+	
+	/**
+	 * Another node wrote the photo, so it is read again when needed; the PhotoManager itself also brings the
+	 * indexes up to date, which the photo managers share.
+	 */
+	protected void invalidateObject(String key, long version) {
+		//Preconditions: None
+		PhotoId id = PhotoId.getIdFromString(key);
+		photoCache.invalidate(id, version);
+		if (this == instance) {
+			refreshIndexes(id);
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * The indexes may miss the same writes, so they are loaded again.
+	 */
+	protected void invalidateAllObjects() {
+		//Preconditions: None
+		photoCache.invalidateAll();
+		if (this == instance) {
+			if (PhotoTagIndex.getInstance().isLoaded()) {
+				loadTagIndex();
+			}
+			if (PhotoIndex.getInstance().isLoaded()) {
+				loadPhotoIndex();
+			}
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * The indexes may hold the changes that were rolled back.
+	 */
+	protected void restoreObject(Persistent obj, String tableName) {
+		//Preconditions: None
+		super.restoreObject(obj, tableName);
+		if (this == instance) {
+			refreshIndexes(((Photo) obj).getId());
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * Called after UserManager.updateDependents() wrote the owner fields of owner to all of its photos with one statement,
+	 * which left their rows at the given versions. Resident photos that were up to date take on the fields and versions
+	 * without becoming dirty; others are read again when needed, except dirty ones, which merge the rows when they are
+	 * written. The PhotoManager itself also tells the other nodes.
+	 */
+	public void ownerFieldsWritten(User owner, Map<PhotoId, Long> versions) throws SQLException {
+		//Preconditions: The arguments owner and versions are not null
+		ContractEnforcerUtil.assertArgumentNonNull(owner);
+		ContractEnforcerUtil.assertArgumentNonNull(versions);
+		Map<String, Long> versionsByKey = new LinkedHashMap<String, Long>();
+		for (Map.Entry<PhotoId, Long> entry : versions.entrySet()) {
+			PhotoId id = entry.getKey();
+			long version = entry.getValue().longValue();
+			Photo photo = photoCache.containsKey(id) ? photoCache.get(id) : null;
+			if ((photo != null) && !photo.isDirty() && (photo.getVersion() == version - 1)) {
+				photo.setOwnerFieldsFrom(owner);
+				photo.setVersion(version);
+			} else {
+				photoCache.invalidate(id, version);
+			}
+			versionsByKey.put(id.asString(), entry.getValue());
+		}
+		
+		if (this == instance) {
+			publishVersions(versionsByKey);
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * Reads the photo with id, without caching it, and updates its entries in the loaded indexes.
+	 */
+	protected void refreshIndexes(PhotoId id) {
+		//Preconditions: None, null check for id is done in calling method
+		PhotoIndex photoIndex = PhotoIndex.getInstance();
+		PhotoTagIndex tagIndex = PhotoTagIndex.getInstance();
+		if (!photoIndex.isLoaded() && !tagIndex.isLoaded()) {
+			return;
+		}
+		
+		Photo photo = null;
+		try {
+			photo = doLoadPhoto(id);
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+			return;
+		}
+		
+		Set<String> tags = new HashSet<String>();
+		if (photo == null) {
+			photoIndex.removePhoto(id.asInt());
+		} else {
+			photoIndex.addPhoto(photo);
+			photoTagCollector.collect(tags, photo);
+		}
+		tagIndex.setPhotoTags(id.asInt(), tags);
+		//Postconditions: None
+	}
+	
+	/**
+	 * The photo managers cache photos of the same table, so each keeps its photos in a snapshot section of its own.
+	 */
+	public String getSnapshotSectionName() {
+		return photoCache.getName();
+	}
+	
+	/**
+	 * 
+	 */
+	public Collection<? extends Persistent> getCachedObjects() {
+		return photoCache.values();
+	}
+	
+	/**
+	 * Photos refer to their locations, which are restored first, see ModelMain.restoreSnapshot().
+	 */
+	protected void restoreObjects(Collection<Persistent> objects) {
+		//Preconditions: None
+		for (Persistent obj : objects) {
+			Photo photo = (Photo) obj;
+			photoCache.putIfAbsent(photo.getId(), photo);
+		}
+		//Postconditions: None
+	}
+	
 	/**
 	 * @methodtype command
 	 *
@@ -174,14 +350,12 @@ public class PhotoManager extends ObjectManager {
 		doAddPhoto(photo);
 
 		try {
-			PreparedStatement stmt = getReadingStatement("INSERT INTO photos(id) VALUES(?)");
-			createObject(photo, stmt, id.asInt());
-			ServiceMain.getInstance().saveGlobals();
+			insertObject(photo, "photos");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 		//Postconditions: Photo is now added to the Cache
-		assert photoCache.get(id) != null;
+		assert photoCache.containsKey(id);
 	}
 	
 	/**
@@ -191,34 +365,33 @@ public class PhotoManager extends ObjectManager {
 	protected void doAddPhoto(Photo myPhoto) {
 		//Preconditions: None, null check for myLocation is done in calling method
 		photoCache.put(myPhoto.getId(), myPhoto);
+		PhotoIndex.getInstance().addPhoto(myPhoto);
 		//Postconditions: None
 	}
 
 	/**
 	 * @methodtype command
 	 */
-	public void loadPhotos(Collection<Photo> result) {
+	public void loadPhotos(final Collection<Photo> result) {
 		//Preconditions: The argument result is not null
 		ContractEnforcerUtil.assertArgumentNonNull(result);
+		LocationManager.getInstance().loadLocations(new ArrayList<Location>());
 		try {
-			PreparedStatement stmt = getReadingStatement("SELECT * FROM photos");
-			readObjects(result, stmt);
-			for (Iterator<Photo> i = result.iterator(); i.hasNext(); ) {
-				Photo photo = i.next();
-				if (!doHasPhoto(photo.getId())) {
-					doAddPhoto(photo);
-				} else {
-					SysLog.logSysInfo("photo", photo.getId().asString(), "photo had already been loaded");
+			scanObjects("photos", new ObjectConsumer() {
+				public void consume(Persistent obj) {
+					Photo photo = (Photo) obj;
+					Photo cachedPhoto = photoCache.putIfAbsent(photo.getId(), photo);
+					if (cachedPhoto != photo) {
+						SysLog.logSysInfo("photo", photo.getId().asString(), "photo had already been loaded");
+					}
+					result.add(photo);
 				}
-			}
+			});
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 
-		//Postconditions: All locations are now in the Cache
-		for (Photo photo : result) {
-			assert photoCache.get(photo.getId()) != null;
-		}
+		//Postconditions: None, the cache keeps only the most recently loaded photos if bounded
 		SysLog.logSysInfo("loaded all photos");
 	}
 	
@@ -229,8 +402,7 @@ public class PhotoManager extends ObjectManager {
 		//Preconditions: The argument photo is not null
 		ContractEnforcerUtil.assertArgumentNonNull(photo);
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM photos WHERE id = ?");
-			updateObject(photo, stmt);
+			updateObject(photo, "photos");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -241,10 +413,16 @@ public class PhotoManager extends ObjectManager {
 	 * 
 	 */
 	public void savePhotos() {
+		savePhotos(photoCache.values());
+	}
+	
+	/**
+	 * 
+	 */
+	public void savePhotos(Collection<? extends Photo> photos) {
 		//Preconditions: None
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM photos WHERE id = ?");
-			updateObjects(photoCache.values(), stmt);
+			updateObjects(photos, "photos");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -260,26 +438,241 @@ public class PhotoManager extends ObjectManager {
 	public Set<Photo> findPhotosByOwner(String ownerName) {
 		//Preconditions: The argument ownerName is not null
 		ContractEnforcerUtil.assertArgumentNonNull(ownerName);
-		Set<Photo> result = new HashSet<Photo>();
+		Set<Photo> result = findPhotosByOwners(Collections.singleton(ownerName)).get(ownerName);
+
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * Reads the photos of all given owners and their locations with a constant number of queries.
+	 */
+	public Map<String, Set<Photo>> findPhotosByOwners(Collection<String> ownerNames) {
+		//Preconditions: The argument ownerNames is not null
+		ContractEnforcerUtil.assertArgumentNonNull(ownerNames);
+		Map<String, Set<Photo>> result = new HashMap<String, Set<Photo>>();
+		for (String ownerName : ownerNames) {
+			result.put(ownerName, new HashSet<Photo>());
+		}
+		
+		if (!ownerNames.isEmpty()) {
+			PhotoIndex index = PhotoIndex.getInstance();
+			IntBitmap photoIds = new IntBitmap();
+			for (String ownerName : ownerNames) {
+				photoIds = photoIds.or(index.getPhotoIdsByOwner(ownerName));
+			}
+			
+			for (Photo photo : findPhotos(photoIds, "owner_name = ANY(?)", "varchar", ownerNames)) {
+				Set<Photo> ownerPhotos = result.get(photo.getOwnerName());
+				if (ownerPhotos != null) {
+					ownerPhotos.add(photo);
+				}
+			}
+		}
+		
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * Returns the ids of the photos of ownerName without reading the photos.
+	 */
+	public IntBitmap findPhotoIdsByOwner(String ownerName) {
+		//Preconditions: The argument ownerName is not null
+		ContractEnforcerUtil.assertArgumentNonNull(ownerName);
+		PhotoIndex index = PhotoIndex.getInstance();
+		if (index.isLoaded()) {
+			return index.getPhotoIdsByOwner(ownerName);
+		}
+		
+		Map<String, IntBitmap> result = new HashMap<String, IntBitmap>();
+		try {
+			readPhotoIdsByOwners(result, "owner_name = ?", ownerName);
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+		}
+		
+		//Postconditions: None
+		return result.containsKey(ownerName) ? result.get(ownerName) : new IntBitmap();
+	}
+	
+	/**
+	 * Returns the ids of the photos of all users, grouped by owner name, e.g. when loading all users.
+	 */
+	public Map<String, IntBitmap> findPhotoIdsOfAllUsers() {
+		//Preconditions: None
+		Map<String, IntBitmap> result = new HashMap<String, IntBitmap>();
 		try {
-			PreparedStatement stmt = getReadingStatement("SELECT * FROM photos WHERE owner_name = ?");
-			readObjects(result, stmt, ownerName);
+			readPhotoIdsByOwners(result, "owner_name IN (SELECT name FROM users)", null);
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 		
-		for (Iterator<Photo> i = result.iterator(); i.hasNext(); ) {
-			doAddPhoto(i.next());
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * 
+	 */
+	protected void readPhotoIdsByOwners(Map<String, IntBitmap> result, String ownerCondition, Object param) throws SQLException {
+		//Preconditions: None, null checks are done in calling methods
+		PreparedStatement stmt = getReadingStatement("SELECT id, owner_name FROM photos WHERE " + ownerCondition);
+		if (param != null) {
+			stmt.setObject(1, param);
 		}
-
-		//Postconditions: All locations are now in the Cache
-		for (Photo photo : result) {
-			assert photoCache.get(photo.getId()) != null;
+		SysLog.logQuery(stmt);
+		ResultSet rset = stmt.executeQuery();
+		while (rset.next()) {
+			String ownerName = rset.getString("owner_name");
+			IntBitmap photoIds = result.get(ownerName);
+			if (photoIds == null) {
+				photoIds = new IntBitmap();
+				result.put(ownerName, photoIds);
+			}
+			photoIds.add(rset.getInt("id"));
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * Returns the photos with the given ids; photos that are not cached are read with a constant number of queries.
+	 */
+	public java.util.List<Photo> getPhotosFromIds(int[] ids) {
+		//Preconditions: The argument ids is not null
+		ContractEnforcerUtil.assertArgumentNonNull(ids);
+		java.util.List<Photo> result = new ArrayList<Photo>(ids.length);
+		java.util.List<Integer> missingIds = new ArrayList<Integer>();
+		for (int i = 0; i < ids.length; i++) {
+			Photo photo = doGetPhotoFromId(PhotoId.getIdFromInt(ids[i]));
+			if (photo != null) {
+				result.add(photo);
+			} else {
+				missingIds.add(ids[i]);
+			}
+		}
+		
+		if (!missingIds.isEmpty() && !hasRelationalStore()) {
+			for (Integer missingId : missingIds) {
+				Photo photo = getPhotoFromId(PhotoId.getIdFromInt(missingId));
+				if (photo != null) {
+					result.add(photo);
+				}
+			}
+		} else if (!missingIds.isEmpty()) {
+			try {
+				result.addAll(readPhotos("id = ANY(?)", createArray("int4", missingIds)));
+			} catch (SQLException sex) {
+				SysLog.logThrowable(sex);
+			}
+		}
+		
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * Returns those photos with the given ids that are in the cache.
+	 */
+	public java.util.List<Photo> getCachedPhotosFromIds(int[] ids) {
+		//Preconditions: The argument ids is not null
+		ContractEnforcerUtil.assertArgumentNonNull(ids);
+		java.util.List<Photo> result = new ArrayList<Photo>();
+		for (int i = 0; i < ids.length; i++) {
+			Photo photo = doGetPhotoFromId(PhotoId.getIdFromInt(ids[i]));
+			if (photo != null) {
+				result.add(photo);
+			}
 		}
+		
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * Prefetches the locations of the photos that match condition, then reads and caches the photos.
+	 * Photos that are already cached keep their cached instance.
+	 */
+	protected java.util.List<Photo> readPhotos(String condition, Array param) throws SQLException {
+		//Preconditions: None, null checks are done in calling methods
+		LocationManager.getInstance().loadLocationsOfPhotos(condition, param);
+		
+		PreparedStatement stmt = getReadingStatement("SELECT * FROM photos WHERE " + condition);
+		if (param != null) {
+			stmt.setArray(1, param);
+		}
+		Collection<Photo> photos = new ArrayList<Photo>();
+		readObjects(photos, stmt);
+		
+		java.util.List<Photo> result = new ArrayList<Photo>(photos.size());
+		for (Photo photo : photos) {
+			result.add(photoCache.putIfAbsent(photo.getId(), photo));
+		}
+		
+		//Postconditions: All photos are now in the Cache
 		return result;
 	}
 
-	//TODO: If necessary add findPhotosByLocation(String locationName)
+	/**
+	 * 
+	 */
+	public java.util.List<Photo> findPhotosByStatus(PhotoStatus status) {
+		//Preconditions: The argument status is not null
+		ContractEnforcerUtil.assertArgumentNonNull(status);
+		IntBitmap photoIds = PhotoIndex.getInstance().getPhotoIdsByStatus(status);
+		//Postconditions: None
+		return findPhotos(photoIds, "status = ANY(?)", "int4", Collections.singleton(status.asInt()));
+	}
+	
+	/**
+	 * 
+	 */
+	public java.util.List<Photo> findPhotosByLocation(LocationId locationId) {
+		//Preconditions: The argument locationId is not null
+		ContractEnforcerUtil.assertArgumentNonNull(locationId);
+		IntBitmap photoIds = PhotoIndex.getInstance().getPhotoIdsByLocation(locationId);
+		//Postconditions: None
+		return findPhotos(photoIds, "location = ANY(?)", "int4", Collections.singleton(locationId.asInt()));
+	}
+	
+	/**
+	 * Returns the photos of all locations named locationName.
+	 */
+	public java.util.List<Photo> findPhotosByLocation(String locationName) {
+		//Preconditions: The argument locationName is not null
+		ContractEnforcerUtil.assertArgumentNonNull(locationName);
+		PhotoIndex index = PhotoIndex.getInstance();
+		java.util.List<Integer> locationIds = new ArrayList<Integer>();
+		IntBitmap photoIds = new IntBitmap();
+		for (LocationId locationId : LocationManager.getInstance().findLocationIdsByName(locationName)) {
+			locationIds.add(locationId.asInt());
+			photoIds = photoIds.or(index.getPhotoIdsByLocation(locationId));
+		}
+		
+		//Postconditions: None
+		return locationIds.isEmpty() ? new ArrayList<Photo>() : findPhotos(photoIds, "location = ANY(?)", "int4", locationIds);
+	}
+	
+	/**
+	 * Returns the photos with photoIds if the PhotoIndex is loaded; otherwise, reads the photos that match condition,
+	 * which must compare a column with ANY of the values of the given SQL type. Without a relational store, the index is always used.
+	 */
+	protected java.util.List<Photo> findPhotos(IntBitmap photoIds, String condition, String sqlTypeName, Collection<?> values) {
+		//Preconditions: None, null checks are done in calling methods
+		if (PhotoIndex.getInstance().isLoaded() || !hasRelationalStore()) {
+			return getPhotosFromIds(photoIds.toArray());
+		}
+		
+		java.util.List<Photo> result = new ArrayList<Photo>();
+		try {
+			result = readPhotos(condition, createArray(sqlTypeName, values));
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+		}
+		
+		//Postconditions: None
+		return result;
+	}
 
 	/**
 	 * 
@@ -323,6 +716,32 @@ public class PhotoManager extends ObjectManager {
 	 * 
 	 */
 	protected java.util.List<PhotoId> getFilteredPhotoIds(PhotoFilter filter) {
+		//Preconditions: The argument filter is not null
+		ContractEnforcerUtil.assertArgumentNonNull(filter);
+		PhotoTagIndex index = PhotoTagIndex.getInstance();
+		if (!index.isLoaded()) {
+			return getFilteredPhotoIdsFromDatabase(filter);
+		}
+
+		int[] ids = index.getPhotoIds(filter.getFilterConditions()).toArray();
+		Set<PhotoId> processedIds = new HashSet<PhotoId>(filter.getProcessedPhotoIds());
+		java.util.List<PhotoId> result = new ArrayList<PhotoId>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			PhotoId photoId = PhotoId.getIdFromInt(ids[i]);
+			if (!processedIds.contains(photoId)) {
+				result.add(photoId);
+			}
+		}
+
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * Fallback for getFilteredPhotoIds() as long as the PhotoTagIndex has not been loaded.
+	 * Counts the matched conditions per photo id, so memory grows with the photos found rather than with the highest id.
+	 */
+	protected java.util.List<PhotoId> getFilteredPhotoIdsFromDatabase(PhotoFilter filter) {
 		//Preconditions: The argument filter is not null
 		ContractEnforcerUtil.assertArgumentNonNull(filter);
 		java.util.List<PhotoId> result = new LinkedList<PhotoId>();
@@ -331,9 +750,9 @@ public class PhotoManager extends ObjectManager {
 			java.util.List<String> filterConditions = filter.getFilterConditions();
 
 			int noFilterConditions = filterConditions.size();
-			PreparedStatement stmt = getUpdatingStatementFromConditions(noFilterConditions);
-			for (int i = 0; i < noFilterConditions; i++) {
-				stmt.setString(i + 1, filterConditions.get(i));
+			PreparedStatement stmt = getReadingStatementFromConditions(noFilterConditions);
+			if (noFilterConditions > 0) {
+				stmt.setArray(1, createArray("text", filterConditions));
 			}
 			
 			SysLog.logQuery(stmt);
@@ -343,10 +762,13 @@ public class PhotoManager extends ObjectManager {
 				noFilterConditions++;
 			}
 
-			int[] ids = new int[PhotoId.getCurrentIdAsInt() + 1];
+			Map<Integer, Integer> noMatchedConditions = new HashMap<Integer, Integer>(); // ids may come from other servers, see PhotoId.getIdFromInt()
 			while(rset.next()) {
 				int id = rset.getInt("photo_id");
-				if (++ids[id] == noFilterConditions) {
+				Integer noMatches = noMatchedConditions.get(id);
+				noMatches = (noMatches == null) ? 1 : noMatches + 1;
+				noMatchedConditions.put(id, noMatches);
+				if (noMatches == noFilterConditions) {
 					PhotoId photoId = PhotoId.getIdFromInt(id);
 					if (!filter.isProcessedPhotoId(photoId)) {
 						result.add(photoId);
@@ -362,50 +784,233 @@ public class PhotoManager extends ObjectManager {
 	}
 		
 	/**
-	 * 
+	 * Returns the statement for rows of photos with any of the tags of the array parameter, or for all rows if no is 0.
+	 * It only reads, so it may go to the replica.
 	 */
-	protected PreparedStatement getUpdatingStatementFromConditions(int no) throws SQLException {
+	protected PreparedStatement getReadingStatementFromConditions(int no) throws SQLException {
 		//Preconditions: None
-		String query = "SELECT * FROM tags";
+		String query = "SELECT photo_id FROM photo_tags";
 		if (no > 0) {
-			query += " WHERE";
-		}
-
-		for (int i = 0; i < no; i++) {
-			if (i > 0) {
-				query += " OR";
-			}
-			query += " (tag = ?)";
+			query = "SELECT p.photo_id FROM photo_tags p JOIN tag_dictionary d ON d.id = p.tag_id WHERE d.text = ANY(?)";
 		}
 
 		//Postconditions: None
-		return getUpdatingStatement(query);
+		return getReadingStatement(query);
 	}
 	
 	/**
 	 * 
 	 */
-	protected void updateDependents(Persistent obj) throws SQLException {
+	protected void forgetObject(Persistent obj) {
+		PhotoId id = ((Photo) obj).getId();
+		photoCache.remove(id);
+		PhotoIndex.getInstance().removePhoto(id.asInt());
+		PhotoTagIndex.getInstance().setPhotoTags(id.asInt(), Collections.<String>emptySet());
+	}
+	
+	/**
+	 * Photos refer to locations
+	 */
+	protected int getWriteRank() {
+		return 2;
+	}
+	
+	/**
+	 * Votes commute, so the votes since the photo's version are added to the praise the other writer left;
+	 * all other changed columns win, see ObjectManager.mergeObject().
+	 */
+	protected boolean mergeObject(Persistent obj, Persistent current, Set<String> dirtyColumns) throws SQLException {
+		//Preconditions: The arguments obj and current are not null
+		ContractEnforcerUtil.assertArgumentNonNull(obj);
+		ContractEnforcerUtil.assertArgumentNonNull(current);
+		Photo photo = (Photo) obj;
+		Photo currentPhoto = (Photo) current;
+		photo.reapplyPraiseTo(currentPhoto);
+		boolean result = super.mergeObject(obj, current, dirtyColumns);
+		photo.setStoredPraise(currentPhoto);
+		//Postconditions: None
+		return result;
+	}
+	
+	/**
+	 * The written praise is now the stored praise.
+	 */
+	protected void objectWritten(Persistent obj, ColumnValues values) {
+		//Preconditions: None
+		super.objectWritten(obj, values);
+		if (values.hasColumn("praise_sum") && values.hasColumn("no_votes")) {
+			((Photo) obj).setStoredPraise((Integer) values.getValue("praise_sum"), (Integer) values.getValue("no_votes"));
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * Rewrites the tags of the photo only if its owner name or tags may have changed, and saves its location.
+	 */
+	protected void updateDependents(Persistent obj, Set<String> dirtyColumns) throws SQLException {
 		//Preconditions: The argument obj is not null
 		ContractEnforcerUtil.assertArgumentNonNull(obj);
 		Photo photo = (Photo) obj;
 		
-		PreparedStatement stmt = getReadingStatement("DELETE FROM tags WHERE photo_id = ?");
-		deleteObject(obj, stmt);
+		if ((dirtyColumns == null) || dirtyColumns.contains("owner_name") || dirtyColumns.contains("tags")) {
+			updateDependents(obj);
+		}
+		
+		Location location = photo.getLocation();
+		if (location != null) {
+			LocationManager.getInstance().saveLocation(location);
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * Brings the tags of the photo up to date by deleting and inserting only the tags that changed;
+	 * new tag strings are added to the tag dictionary first. Nothing is written if the tags did not change.
+	 * Without a relational store, the tags are kept with the photo's row, so only the PhotoTagIndex is updated.
+	 */
+	protected void updateDependents(Persistent obj) throws SQLException {
+		//Preconditions: The argument obj is not null
+		ContractEnforcerUtil.assertArgumentNonNull(obj);
+		Photo photo = (Photo) obj;
+		int photoId = photo.getId().asInt();
 		
-		stmt = getReadingStatement("INSERT INTO tags VALUES(?, ?)");
 		Set<String> tags = new HashSet<String>();
 		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			String tag = i.next();
-			stmt.setString(1, tag);
-			stmt.setInt(2, photo.getId().asInt());
+		
+		if (!hasRelationalStore()) {
+			PhotoTagIndex.getInstance().setPhotoTags(photoId, tags);
+			return;
+		}
+		
+		Set<String> storedTags = readStoredTags(photoId);
+		Set<String> oldTags = new HashSet<String>(storedTags);
+		oldTags.removeAll(tags);
+		Set<String> newTags = new HashSet<String>(tags);
+		newTags.removeAll(storedTags);
+		
+		if (!oldTags.isEmpty()) {
+			PreparedStatement stmt = getWritingStatement("DELETE FROM photo_tags WHERE photo_id = ? AND tag_id IN (SELECT id FROM tag_dictionary WHERE text = ANY(?))");
+			stmt.setInt(1, photoId);
+			stmt.setArray(2, createArray("text", oldTags));
 			SysLog.logQuery(stmt);
-			stmt.executeUpdate();					
+			stmt.executeUpdate();
+		}
+		
+		if (!newTags.isEmpty()) {
+			Array newTagsArray = createArray("text", newTags);
+			PreparedStatement stmt = getWritingStatement("INSERT INTO tag_dictionary (text) SELECT unnest(?) ON CONFLICT (text) DO NOTHING");
+			stmt.setArray(1, newTagsArray);
+			SysLog.logQuery(stmt);
+			stmt.executeUpdate();
+			
+			// a statement of its own, so it sees tags another transaction added concurrently
+			stmt = getWritingStatement("INSERT INTO photo_tags (tag_id, photo_id) SELECT id, ? FROM tag_dictionary WHERE text = ANY(?) ON CONFLICT DO NOTHING");
+			stmt.setInt(1, photoId);
+			stmt.setArray(2, newTagsArray);
+			SysLog.logQuery(stmt);
+			stmt.executeUpdate();
+		}
+		
+		PhotoTagIndex.getInstance().setPhotoTags(photoId, tags);
+		//Postconditions: None
+	}
+	
+	/**
+	 * Returns the tags stored for the photo, as seen by the current transaction.
+	 */
+	protected Set<String> readStoredTags(int photoId) throws SQLException {
+		Set<String> result = new HashSet<String>();
+		PreparedStatement stmt = getReadingStatement("SELECT d.text FROM photo_tags p JOIN tag_dictionary d ON d.id = p.tag_id WHERE p.photo_id = ?");
+		stmt.setInt(1, photoId);
+		SysLog.logQuery(stmt);
+		ResultSet rset = stmt.executeQuery();
+		while (rset.next()) {
+			result.add(rset.getString(1));
+		}
+		rset.close();
+		return result;
+	}
+	
+	/**
+	 * @methodtype command
+	 */
+	public void loadPhotoIndex() {
+		//Preconditions: None
+		if (!hasRelationalStore()) {
+			if (!PhotoIndex.getInstance().isLoaded()) {
+				loadIndexesFromStore();
+			}
+			return;
+		}
+		
+		try {
+			final PhotoIndex index = PhotoIndex.getInstance();
+			scanRows("SELECT id, owner_name, status, location FROM photos", new ResultSetReader() {
+				public void read(ResultSet rset) throws SQLException {
+					index.load(rset);
+				}
+			});
+			SysLog.logSysInfo("loaded photo index with " + index.getNoPhotos() + " photos");
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+		}
+		//Postconditions: None
+	}
+	
+	/**
+	 * @methodtype command
+	 */
+	public void loadTagIndex() {
+		//Preconditions: None
+		if (!hasRelationalStore()) {
+			if (!PhotoTagIndex.getInstance().isLoaded()) {
+				loadIndexesFromStore();
+			}
+			return;
+		}
+		
+		try {
+			final PhotoTagIndex index = PhotoTagIndex.getInstance();
+			scanRows("SELECT p.photo_id, d.text AS tag FROM photo_tags p JOIN tag_dictionary d ON d.id = p.tag_id", new ResultSetReader() {
+				public void read(ResultSet rset) throws SQLException {
+					index.load(rset);
+				}
+			});
+			SysLog.logSysInfo("loaded tag index with " + index.getNoTags() + " tags");
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
 		}
 		//Postconditions: None
 	}
 		
+	/**
+	 * Loads the PhotoIndex and the PhotoTagIndex with one scan of all photos; the photos are not cached.
+	 */
+	protected void loadIndexesFromStore() {
+		//Preconditions: None
+		final Collection<Photo> photos = new ArrayList<Photo>();
+		final Map<Integer, Set<String>> tags = new HashMap<Integer, Set<String>>();
+		try {
+			scanObjects("photos", new ObjectConsumer() {
+				public void consume(Persistent obj) {
+					Photo photo = (Photo) obj;
+					Set<String> photoTags = new HashSet<String>();
+					photoTagCollector.collect(photoTags, photo);
+					photos.add(photo);
+					tags.put(photo.getId().asInt(), photoTags);
+				}
+			});
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+			return;
+		}
+		
+		PhotoIndex.getInstance().load(photos);
+		PhotoTagIndex.getInstance().load(tags);
+		SysLog.logSysInfo("loaded photo index with " + photos.size() + " photos and tag index with " + PhotoTagIndex.getInstance().getNoTags() + " tags");
+		//Postconditions: None
+	}
+	
 	/**
 	 * 
 	 */
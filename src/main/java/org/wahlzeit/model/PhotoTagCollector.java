@@ -11,6 +11,7 @@ import org.wahlzeit.utils.*;
 
 /**
  * A PhotoTagCollector provides a method to collect all tags for a given photo.
+ * The tags are stored once each in the tag_dictionary table and linked to their photos in the photo_tags table.
  */
 public class PhotoTagCollector {
 
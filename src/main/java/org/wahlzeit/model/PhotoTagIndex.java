@@ -0,0 +1,202 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.model;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import org.wahlzeit.utils.*;
+
+/**
+ * The PhotoTagIndex maps the tags of the photo_tags table ("un:" and "tg:" strings of a PhotoTagCollector) to the ids of their photos.
+ * It lets PhotoManager answer PhotoFilter conditions by intersecting IntBitmaps instead of querying the photo_tags table.
+ * It is loaded once on startup and then kept up to date whenever the tags of a photo are written.
+ */
+public class PhotoTagIndex {
+
+	/**
+	 *
+	 */
+	protected static final PhotoTagIndex instance = new PhotoTagIndex();
+
+	/**
+	 *
+	 */
+	public static PhotoTagIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected volatile boolean isLoaded = false;
+
+	/**
+	 *
+	 */
+	protected Map<String, IntBitmap> photoIdsByTag = new HashMap<String, IntBitmap>();
+	protected Map<Integer, Set<String>> tagsByPhotoId = new HashMap<Integer, Set<String>>();
+
+	/**
+	 * Ids of all photos with at least one tag, i.e. the result for a filter without conditions
+	 */
+	protected IntBitmap allPhotoIds = new IntBitmap();
+
+	/**
+	 *
+	 */
+	protected ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 *
+	 */
+	protected PhotoTagIndex() {
+		// do nothing
+	}
+
+	/**
+	 *
+	 */
+	public boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	 * Replaces the index with the rows of rset, which must provide the "photo_id" and "tag" columns.
+	 */
+	public void load(ResultSet rset) throws SQLException {
+		Map<Integer, Set<String>> tags = new HashMap<Integer, Set<String>>();
+		while (rset.next()) {
+			Integer photoId = rset.getInt("photo_id");
+			Set<String> photoTags = tags.get(photoId);
+			if (photoTags == null) {
+				photoTags = new HashSet<String>();
+				tags.put(photoId, photoTags);
+			}
+			photoTags.add(rset.getString("tag"));
+		}
+
+		load(tags);
+	}
+
+	/**
+	 * Replaces the index with the given tags, by photo id.
+	 */
+	public void load(Map<Integer, Set<String>> tags) {
+		lock.writeLock().lock();
+		try {
+			photoIdsByTag.clear();
+			tagsByPhotoId.clear();
+			allPhotoIds = new IntBitmap();
+			for (Map.Entry<Integer, Set<String>> entry : tags.entrySet()) {
+				doSetPhotoTags(entry.getKey(), entry.getValue());
+			}
+			isLoaded = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the tags of the photo with photoId; only tags that changed touch the index.
+	 */
+	public void setPhotoTags(int photoId, Set<String> tags) {
+		lock.writeLock().lock();
+		try {
+			doSetPhotoTags(photoId, tags);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void doSetPhotoTags(int photoId, Set<String> tags) {
+		Set<String> oldTags = tagsByPhotoId.get(photoId);
+		if (oldTags == null) {
+			oldTags = Collections.emptySet();
+		}
+
+		for (String tag : oldTags) {
+			if (!tags.contains(tag)) {
+				IntBitmap photoIds = photoIdsByTag.get(tag);
+				photoIds.remove(photoId);
+				if (photoIds.isEmpty()) {
+					photoIdsByTag.remove(tag);
+				}
+			}
+		}
+
+		for (String tag : tags) {
+			if (!oldTags.contains(tag)) {
+				IntBitmap photoIds = photoIdsByTag.get(tag);
+				if (photoIds == null) {
+					photoIds = new IntBitmap();
+					photoIdsByTag.put(tag, photoIds);
+				}
+				photoIds.add(photoId);
+			}
+		}
+
+		if (tags.isEmpty()) {
+			tagsByPhotoId.remove(photoId);
+			allPhotoIds.remove(photoId);
+		} else {
+			tagsByPhotoId.put(photoId, new HashSet<String>(tags));
+			allPhotoIds.add(photoId);
+		}
+	}
+
+	/**
+	 * Returns the ids of all photos that have all of the given tags; starts with the rarest tag.
+	 */
+	public IntBitmap getPhotoIds(Collection<String> tags) {
+		lock.readLock().lock();
+		try {
+			if (tags.isEmpty()) {
+				return new IntBitmap(allPhotoIds);
+			}
+
+			List<IntBitmap> photoIds = new ArrayList<IntBitmap>(tags.size());
+			for (String tag : tags) {
+				IntBitmap tagPhotoIds = photoIdsByTag.get(tag);
+				if (tagPhotoIds == null) {
+					return new IntBitmap();
+				}
+				photoIds.add(tagPhotoIds);
+			}
+
+			Collections.sort(photoIds, new Comparator<IntBitmap>() {
+				public int compare(IntBitmap b1, IntBitmap b2) {
+					return Integer.compare(b1.getCardinality(), b2.getCardinality());
+				}
+			});
+
+			IntBitmap result = new IntBitmap(photoIds.get(0));
+			for (int i = 1; (i < photoIds.size()) && !result.isEmpty(); i++) {
+				result = result.and(photoIds.get(i));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public int getNoTags() {
+		lock.readLock().lock();
+		try {
+			return photoIdsByTag.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+}
@@ -45,27 +45,34 @@ public class User extends Client implements Persistent {
 	/**
 	 * 0 is never returned, first value is 1
 	 */
-	protected static int lastUserId = 0;
+	protected static final IdAllocator userIds = new IdAllocator("last_user_id");
+	
+	/**
+	 * 
+	 */
+	public static IdAllocator getIdAllocator() {
+		return userIds;
+	}
 	
 	/**
 	 * 
 	 */
 	public static int getLastUserId() {
-		return lastUserId;
+		return userIds.getLastId();
 	}
 	
 	/**
 	 * 
 	 */
-	public static synchronized void setLastUserId(int newId) {
-		lastUserId = newId;
+	public static void setLastUserId(int newId) {
+		userIds.setLastId(newId);
 	}
 	
 	/**
 	 * 
 	 */
-	public static synchronized int getNextUserId() {
-		return ++lastUserId;
+	public static int getNextUserId() {
+		return userIds.getNextId();
 	}
 
 	/**
@@ -73,6 +80,16 @@ public class User extends Client implements Persistent {
 	 */
 	protected transient int writeCount = 0;
 	
+	/**
+	 * Columns changed since the last reset; null if any column may have changed
+	 */
+	protected transient Set<String> dirtyColumns = new HashSet<String>();
+	
+	/**
+	 * Version of the user's row, see Persistent.getVersion()
+	 */
+	protected long version = 0;
+	
 	/**
 	 * 
 	 */
@@ -94,8 +111,17 @@ public class User extends Client implements Persistent {
 	/**
 	 * 
 	 */
-	protected Photo userPhoto = null;
-	protected Set<Photo> photos = new HashSet<Photo>();
+	protected int userPhotoId = 0; // 0 means no user photo
+	
+	/**
+	 * Ids of the user's photos; the photos themselves are resolved through the CatPhotoManager on demand
+	 */
+	protected IntBitmap photoIds = new IntBitmap();
+	
+	/**
+	 * Whether owner fields changed that must be copied to the user's photos in the database, see UserManager.updateDependents()
+	 */
+	protected transient boolean hasChangedPhotoOwnerFields = false;
 	
 	/**
 	 * 
@@ -167,14 +193,41 @@ public class User extends Client implements Persistent {
 	 * 
 	 */
 	public final void incWriteCount() {
-		writeCount++;
+		synchronized(this) {
+			writeCount++;
+			dirtyColumns = null;
+		}
+		DirtyObjectRegistry.getInstance().markDirty(this);
+	}
+	
+	/**
+	 * 
+	 */
+	public final void incWriteCount(String... columns) {
+		synchronized(this) {
+			writeCount++;
+			if (dirtyColumns != null) {
+				dirtyColumns.addAll(Arrays.asList(columns));
+			}
+		}
+		DirtyObjectRegistry.getInstance().markDirty(this);
 	}
 	
 	/**
 	 * 
 	 */
 	public void resetWriteCount() {
+		resetDirtyColumns();
+	}
+	
+	/**
+	 * 
+	 */
+	public synchronized Set<String> resetDirtyColumns() {
+		Set<String> result = dirtyColumns;
 		writeCount = 0;
+		dirtyColumns = new HashSet<String>();
+		return result;
 	}
 	
 	/**
@@ -184,11 +237,33 @@ public class User extends Client implements Persistent {
 		return String.valueOf(id);
 	}
 	
+	/**
+	 * 
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * 
+	 */
+	public void setVersion(long newVersion) {
+		version = newVersion;
+	}
+	
 	/**
 	 * 
 	 * @methodtype command
 	 */
 	public void readFrom(ResultSet rset) throws SQLException {
+		readAttributesFrom(rset);
+		readPhotosFrom(rset);
+	}
+	
+	/**
+	 * Reads all fields but the user's photo ids; bulk loads set those for all users at once using setPhotoIds().
+	 */
+	public void readAttributesFrom(ResultSet rset) throws SQLException {
 		id = rset.getInt("id");
 		name = rset.getString("name");
 		nameAsTag = rset.getString("name_as_tag");
@@ -201,11 +276,24 @@ public class User extends Client implements Persistent {
 		gender = Gender.getFromInt(rset.getInt("gender"));
 		status = UserStatus.getFromInt(rset.getInt("status"));
 		confirmationCode = rset.getLong("confirmation_code");
-		photos = CatPhotoManager.getInstance().findPhotosByOwner(name);
-		userPhoto = CatPhotoManager.getPhoto(PhotoId.getIdFromInt(rset.getInt("photo")));
+		userPhotoId = rset.getInt("photo");
 		creationTime = rset.getLong("creation_time");
 	}
 	
+	/**
+	 * 
+	 */
+	protected void readPhotosFrom(ResultSet rset) throws SQLException {
+		photoIds = CatPhotoManager.getInstance().findPhotoIdsByOwner(name);
+	}
+	
+	/**
+	 * @methodtype initialization
+	 */
+	public void setPhotoIds(IntBitmap myPhotoIds) {
+		photoIds = myPhotoIds;
+	}
+	
 	/**
 	 * 
 	 */
@@ -222,7 +310,7 @@ public class User extends Client implements Persistent {
 		rset.updateInt("gender", gender.asInt());
 		rset.updateInt("status", status.asInt());
 		rset.updateLong("confirmation_code", confirmationCode);
-		rset.updateInt("photo", (userPhoto == null) ? 0 : userPhoto.getId().asInt());
+		rset.updateInt("photo", userPhotoId);
 		rset.updateLong("creation_time", creationTime);
 	}
 
@@ -233,17 +321,22 @@ public class User extends Client implements Persistent {
 		stmt.setInt(pos, id);
 	}
 	
+	/**
+	 * 
+	 */
+	public void setRights(AccessRights newRights) {
+		super.setRights(newRights);
+		incWriteCount("rights");
+	}
+	
 	/**
 	 * 
 	 */
 	public void setEmailAddress(EmailAddress myEmailAddress) {
 		super.setEmailAddress(myEmailAddress);
-		incWriteCount();
-		
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerEmailAddress(emailAddress);
-		}
+		incWriteCount("email_address");
+		UserManager.getInstance().forgetUnknownEmailAddress(myEmailAddress);
+		ownerFieldsChanged();
 	}
 	
 	/**
@@ -272,7 +365,7 @@ public class User extends Client implements Persistent {
 	 */
 	public void setPassword(String newPassword) {
 		password = newPassword;
-		incWriteCount();
+		incWriteCount("password");
 	}
 	
 	/**
@@ -294,12 +387,8 @@ public class User extends Client implements Persistent {
 	 */
 	public void setLanguage(Language newLanguage) {
 		language = newLanguage;
-		incWriteCount();
-		
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerLanguage(language);
-		}
+		incWriteCount("language");
+		ownerFieldsChanged();
 	}
 	
 	/**
@@ -328,12 +417,8 @@ public class User extends Client implements Persistent {
 	 */
 	public void setNotifyAboutPraise(boolean notify) {
 		notifyAboutPraise = notify;
-		incWriteCount();
-
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerNotifyAboutPraise(notifyAboutPraise);
-		}
+		incWriteCount("notify_about_praise");
+		ownerFieldsChanged();
 	}
 	
 	/**
@@ -348,12 +433,8 @@ public class User extends Client implements Persistent {
 	 */
 	public void setHomePage(URL newHomePage) {
 		homePage = newHomePage;
-		incWriteCount();
-		
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerHomePage(homePage);
-		}
+		incWriteCount("home_page");
+		ownerFieldsChanged();
 	}
 	
 	/**
@@ -382,7 +463,7 @@ public class User extends Client implements Persistent {
 	 */
 	public void setGender(Gender newGender) {
 		gender = newGender;
-		incWriteCount();
+		incWriteCount("gender");
 	}
 
 	/**
@@ -398,7 +479,7 @@ public class User extends Client implements Persistent {
 	 */
 	public void setStatus(UserStatus newStatus) {
 		status = newStatus;
-		incWriteCount();
+		incWriteCount("status");
 	}
 
 	/**
@@ -413,29 +494,29 @@ public class User extends Client implements Persistent {
 	 */
 	public void setConfirmed() {
 		setStatus(status.asConfirmed());
-		incWriteCount();
+		incWriteCount("status");
 	}
 	
 	/**
 	 * 
 	 */
 	public boolean hasUserPhoto() {
-		return userPhoto != null;
+		return userPhotoId != 0;
 	}
 	
 	/**
 	 * 
 	 */
 	public Photo getUserPhoto() {
-		return userPhoto;
+		return hasUserPhoto() ? CatPhotoManager.getInstance().getPhotoFromId(PhotoId.getIdFromInt(userPhotoId)) : null;
 	}
 			
 	/**
 	 * 
 	 */
 	public void setUserPhoto(Photo newPhoto) {
-		userPhoto = newPhoto;
-		incWriteCount();
+		userPhotoId = (newPhoto == null) ? 0 : newPhoto.getId().asInt();
+		incWriteCount("photo");
 	}
 	
 	/**
@@ -449,22 +530,37 @@ public class User extends Client implements Persistent {
 	 * 
 	 */
 	public void addPhoto(Photo newPhoto) {
-		photos.add(newPhoto);
+		photoIds.add(newPhoto.getId().asInt());
 		incWriteCount();
 
 		newPhoto.setOwnerId(id);
 		newPhoto.setOwnerName(name);
-		newPhoto.setOwnerNotifyAboutPraise(notifyAboutPraise);
-		newPhoto.setOwnerEmailAddress(emailAddress);
-		newPhoto.setOwnerLanguage(language);
-		newPhoto.setOwnerHomePage(homePage);
+		setOwnerFieldsOf(newPhoto);
+	}
+	
+	/**
+	 * Called when a field changed that the user's photos copy; UserManager.updateDependents() writes it to all photos
+	 * of the user with one statement once the user is saved, and then updates the photos in memory.
+	 */
+	protected void ownerFieldsChanged() {
+		hasChangedPhotoOwnerFields = true;
+	}
+	
+	/**
+	 * 
+	 */
+	protected void setOwnerFieldsOf(Photo photo) {
+		photo.setOwnerNotifyAboutPraise(notifyAboutPraise);
+		photo.setOwnerEmailAddress(emailAddress);
+		photo.setOwnerLanguage(language);
+		photo.setOwnerHomePage(homePage);
 	}
 	
 	/**
 	 * 
 	 */
 	public void removePhoto(Photo notMyPhoto) {
-		photos.remove(notMyPhoto);
+		photoIds.remove(notMyPhoto.getId().asInt());
 		incWriteCount();
 	}
 	
@@ -472,7 +568,35 @@ public class User extends Client implements Persistent {
 	 * 
 	 */
 	public int getNoPhotos() {
-		return photos.size();
+		return photoIds.getCardinality();
+	}
+	
+	/**
+	 * @methodtype get
+	 */
+	public IntBitmap getPhotoIds() {
+		return photoIds;
+	}
+	
+	/**
+	 * Returns those of the user's photos that are currently in memory; does not load any photos.
+	 */
+	public List<Photo> getResidentPhotos() {
+		return CatPhotoManager.getInstance().getCachedPhotosFromIds(photoIds.toArray());
+	}
+	
+	/**
+	 * 
+	 */
+	public boolean hasChangedPhotoOwnerFields() {
+		return hasChangedPhotoOwnerFields;
+	}
+	
+	/**
+	 * 
+	 */
+	public void setChangedPhotoOwnerFields(boolean changed) {
+		hasChangedPhotoOwnerFields = changed;
 	}
 	
 	/**
@@ -486,6 +610,14 @@ public class User extends Client implements Persistent {
 	 * 
 	 */
 	public Photo[] getPhotosReverseOrderedByPraise() {
+		List<Photo> photos = CatPhotoManager.getInstance().getPhotosFromIds(photoIds.toArray());
+		if (hasChangedPhotoOwnerFields) {
+			// photos read from the database before this user was saved still have the old owner fields
+			for (Photo photo : photos) {
+				photo.setOwnerFieldsFrom(this);
+			}
+		}
+		
 		Photo[] result = photos.toArray(new Photo[0]);
 		Arrays.sort(result, getPhotoByPraiseReverseComparator());
 		return result;
@@ -10,6 +10,7 @@ import java.sql.*;
 
 import org.wahlzeit.services.*;
 import org.wahlzeit.services.mailing.*;
+import org.wahlzeit.utils.*;
 
 /**
  * The UserManager provides access to and manages Users (including Moderators and Administrators).
@@ -39,15 +40,61 @@ public class UserManager extends ObjectManager {
 	}
 	
 	/**
-	 * Maps nameAsTag to user of that name (as tag)
+	 * Maps nameAsTag to user of that name (as tag); bounded, see configureCache()
 	 */
-	protected Map<String, User> users = new HashMap<String, User>();
+	protected ObjectCache<String, User> users = new ObjectCache<String, User>("users");
+	
+	/**
+	 * Email addresses that no user has; configured like the negative cache of users
+	 */
+	protected NegativeCache<String> unknownEmailAddresses = new NegativeCache<String>("email-addresses");
+	
+	/**
+	 * 
+	 */
+	protected ObjectLoader<String, User> userLoader = new ObjectLoader<String, User>() {
+		public User load(String tag) throws SQLException {
+			return doLoadUser(tag);
+		}
+	};
 	
 	/**
 	 * 
 	 */
 	protected Random codeGenerator = new Random(System.currentTimeMillis());
 
+	/**
+	 * Applies the configured cache size; called on startup, once the SysConfig exists.
+	 */
+	public void configureCache() {
+		users.setMaxSize(SysConfig.getUserCacheSizeAsInt());
+		users.getNegativeCache().configure(SysConfig.getNegativeCacheSizeAsInt(), SysConfig.getNegativeCacheTtlAsLong());
+		unknownEmailAddresses.configure(SysConfig.getNegativeCacheSizeAsInt(), SysConfig.getNegativeCacheTtlAsLong());
+	}
+	
+	/**
+	 * 
+	 */
+	public ObjectCache<String, User> getUserCache() {
+		return users;
+	}
+	
+	/**
+	 * 
+	 */
+	public NegativeCache<String> getUnknownEmailAddresses() {
+		return unknownEmailAddresses;
+	}
+	
+	/**
+	 * Called when a user gets emailAddress, so that lookups by it query the database again
+	 */
+	protected void forgetUnknownEmailAddress(EmailAddress emailAddress) {
+		if (emailAddress != null) {
+			unknownEmailAddresses.invalidate(emailAddress.asString());
+		}
+	}
+
 	/**
 	 * 
 	 */
@@ -84,24 +131,23 @@ public class UserManager extends ObjectManager {
 	public User getUserByTag(String tag) {
 		assertIsNonNullArgument(tag, "user-by-tag");
 
-		User result = doGetUserByTag(tag);
-
-		if (result == null) {
-			try {
-				PreparedStatement stmt = getReadingStatement("SELECT * FROM users WHERE name_as_tag = ?");
-				result = (User) readObject(stmt, tag);
-			} catch (SQLException sex) {
-				SysLog.logThrowable(sex);
-			}
-			
-			if (result != null) {
-				doAddUser(result);
-			}
+		User result = null;
+		try {
+			result = users.getOrLoad(tag, userLoader);
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Reads a user that is not in the cache; concurrent misses of the same id share one read.
+	 */
+	protected User doLoadUser(String tag) throws SQLException {
+		return (User) readObject("users", "name_as_tag", tag);
+	}
+	
 	/**
 	 * 
 	 */
@@ -121,18 +167,31 @@ public class UserManager extends ObjectManager {
 	 * @methodtype factory
 	 */
 	protected User createObject(ResultSet rset) throws SQLException {
+		User result = createShallowObject(rset);
+		if (result != null) {
+			result.readPhotosFrom(rset);
+		}
+
+		return result;
+	}
+	
+	/**
+	 * Creates a user without its photos; see loadUsers()
+	 * @methodtype factory
+	 */
+	protected User createShallowObject(ResultSet rset) throws SQLException {
 		User result = null;
 
 		AccessRights rights = AccessRights.getFromInt(rset.getInt("rights"));
 		if (rights == AccessRights.USER) {
 			result = new User();
-			result.readFrom(rset);
+			result.readAttributesFrom(rset);
 		} else if (rights == AccessRights.MODERATOR) {
 			result = new Moderator();
-			result.readFrom(rset);
+			result.readAttributesFrom(rset);
 		} else if (rights == AccessRights.ADMINISTRATOR) {
 			result = new Administrator();
-			result.readFrom(rset);
+			result.readAttributesFrom(rset);
 		} else {
 			SysLog.logSysInfo("received NONE rights value");
 		}
@@ -148,14 +207,13 @@ public class UserManager extends ObjectManager {
 		assertIsUnknownUserAsIllegalArgument(user);
 
 		try {
-			int id = user.getId();
-			PreparedStatement stmt = getReadingStatement("INSERT INTO users(id) VALUES(?)");
-			createObject(user, stmt, id);
+			insertObject(user, "users");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 		
-		doAddUser(user);		
+		doAddUser(user);
+		forgetUnknownEmailAddress(user.getEmailAddress());
 	}
 	
 	/**
@@ -173,8 +231,7 @@ public class UserManager extends ObjectManager {
 		doDeleteUser(user);
 
 		try {
-			PreparedStatement stmt = getReadingStatement("DELETE FROM users WHERE id = ?");
-			deleteObject(user, stmt);
+			deleteObject(user, "users");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -190,20 +247,25 @@ public class UserManager extends ObjectManager {
 	}
 	
 	/**
-	 * 
+	 * Loads all users and their photo ids with a constant number of queries; the photo ids come from the PhotoIndex if it is loaded.
 	 */
-	public void loadUsers(Collection<User> result) {
+	public void loadUsers(final Collection<User> result) {
 		try {
-			PreparedStatement stmt = getReadingStatement("SELECT * FROM users");
-			readObjects(result, stmt);
-			for (Iterator<User> i = result.iterator(); i.hasNext(); ) {
-				User user = i.next();
-				if (!doHasUserByTag(user.getNameAsTag())) {
-					doAddUser(user);
-				} else {
-					SysLog.logSysInfo("user", user.getName(), "user had already been loaded");
+			final Map<String, IntBitmap> photoIdsByOwner = findPhotoIdsOfAllUsers();
+			scanObjects("users", new ObjectConsumer() {
+				public void consume(Persistent obj) {
+					User user = (User) obj;
+					if (user == null) {
+						return;
+					}
+					
+					setPhotoIds(user, photoIdsByOwner);
+					if (users.putIfAbsent(user.getNameAsTag(), user) != user) {
+						SysLog.logSysInfo("user", user.getName(), "user had already been loaded");
+					}
+					result.add(user);
 				}
-			}
+			});
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -211,6 +273,26 @@ public class UserManager extends ObjectManager {
 		SysLog.logSysInfo("loaded all users");
 	}
 	
+	/**
+	 * Returns the photo ids of all users by owner name, or null if the PhotoIndex is loaded and has them.
+	 */
+	protected Map<String, IntBitmap> findPhotoIdsOfAllUsers() {
+		return PhotoIndex.getInstance().isLoaded() ? null : CatPhotoManager.getInstance().findPhotoIdsOfAllUsers();
+	}
+	
+	/**
+	 * 
+	 */
+	protected void setPhotoIds(User user, Map<String, IntBitmap> photoIdsByOwner) {
+		IntBitmap photoIds = null;
+		if (photoIdsByOwner == null) {
+			photoIds = CatPhotoManager.getInstance().findPhotoIdsByOwner(user.getName());
+		} else {
+			photoIds = photoIdsByOwner.get(user.getName());
+		}
+		user.setPhotoIds((photoIds == null) ? new IntBitmap() : photoIds);
+	}
+	
 	/**
 	 * 
 	 */
@@ -259,13 +341,142 @@ public class UserManager extends ObjectManager {
 	 */
 	public void saveUser(User user) {
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM users WHERE id = ?");
-			updateObject(user, stmt);
+			updateObject(user, "users");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
 	}
 	
+	/**
+	 * 
+	 */
+	protected void forgetObject(Persistent obj) {
+		users.remove(((User) obj).getNameAsTag());
+	}
+	
+	/**
+	 * Users refer to their user photos
+	 */
+	protected int getWriteRank() {
+		return 3;
+	}
+	
+	/**
+	 * 
+	 */
+	public String getCacheTableName() {
+		return "users";
+	}
+	
+	/**
+	 * Users are cached by the tags of their names
+	 */
+	public String getCacheKey(Persistent obj) {
+		return ((User) obj).getNameAsTag();
+	}
+	
+	/**
+	 * The user may also have a new email address, which must no longer count as unknown.
+	 */
+	protected void invalidateObject(String key, long version) {
+		users.invalidate(key, version);
+		unknownEmailAddresses.clear();
+	}
+	
+	/**
+	 * 
+	 */
+	protected void invalidateAllObjects() {
+		users.invalidateAll();
+		unknownEmailAddresses.clear();
+	}
+	
+	/**
+	 * 
+	 */
+	public Collection<? extends Persistent> getCachedObjects() {
+		return users.values();
+	}
+	
+	/**
+	 * Snapshots hold users without their photos, so the photo ids are read as in loadUsers().
+	 */
+	protected void restoreObjects(Collection<Persistent> objects) {
+		Map<String, IntBitmap> photoIdsByOwner = findPhotoIdsOfAllUsers();
+		for (Persistent obj : objects) {
+			User user = (User) obj;
+			if (user != null) {
+				setPhotoIds(user, photoIdsByOwner);
+				users.putIfAbsent(user.getNameAsTag(), user);
+			}
+		}
+	}
+	
+	/**
+	 * The user's resident photos may have taken on owner fields that were rolled back, so they are read again when needed.
+	 */
+	protected void restoreObject(Persistent obj, String tableName) {
+		super.restoreObject(obj, tableName);
+		int[] photoIds = ((User) obj).getPhotoIds().toArray();
+		for (int i = 0; i < photoIds.length; i++) {
+			PhotoId id = PhotoId.getIdFromInt(photoIds[i]);
+			PhotoManager.getInstance().getPhotoCache().invalidate(id, 0);
+			CatPhotoManager.getInstance().getPhotoCache().invalidate(id, 0);
+		}
+	}
+	
+	/**
+	 * Copies changed owner fields to all photos of the user with one statement, so photos need not be in memory.
+	 * The statement bumps the photos' versions, so that concurrent writes of them run into a conflict and merge,
+	 * and returns the photos it wrote, which the photo managers then update in memory or invalidate, here and on the other nodes.
+	 * Without a relational store, the photos are read and saved one by one.
+	 */
+	protected void updateDependents(Persistent obj) throws SQLException {
+		User user = (User) obj;
+		if (!user.hasChangedPhotoOwnerFields()) {
+			return;
+		}
+		
+		if (!hasRelationalStore()) {
+			updatePhotoOwnerFields(user);
+			user.setChangedPhotoOwnerFields(false);
+			return;
+		}
+		
+		PreparedStatement stmt = getWritingStatement(
+			"UPDATE photos SET owner_notify_about_praise = ?, owner_email_address = ?, owner_language = ?, owner_home_page = ?, \"version\" = \"version\" + 1 WHERE owner_name = ? RETURNING id, \"version\""
+		);
+		stmt.setBoolean(1, user.getNotifyAboutPraise());
+		stmt.setString(2, user.getEmailAddress().asString());
+		stmt.setInt(3, user.getLanguage().asInt());
+		stmt.setString(4, user.getHomePage().toString());
+		stmt.setString(5, user.getName());
+		SysLog.logQuery(stmt);
+		Map<PhotoId, Long> versions = new LinkedHashMap<PhotoId, Long>();
+		ResultSet rset = stmt.executeQuery();
+		while (rset.next()) {
+			versions.put(PhotoId.getIdFromInt(rset.getInt("id")), Long.valueOf(rset.getLong(DataObject.VERSION)));
+		}
+		
+		user.setChangedPhotoOwnerFields(false);
+		PhotoManager.getInstance().ownerFieldsWritten(user, versions);
+		CatPhotoManager.getInstance().ownerFieldsWritten(user, versions);
+	}
+	
+	/**
+	 * 
+	 */
+	protected void updatePhotoOwnerFields(User user) {
+		CatPhotoManager photoManager = CatPhotoManager.getInstance();
+		for (Photo photo : photoManager.getPhotosFromIds(user.getPhotoIds().toArray())) {
+			photo.setOwnerNotifyAboutPraise(user.getNotifyAboutPraise());
+			photo.setOwnerEmailAddress(user.getEmailAddress());
+			photo.setOwnerLanguage(user.getLanguage());
+			photo.setOwnerHomePage(user.getHomePage());
+			photoManager.savePhoto(photo);
+		}
+	}
+	
 	/**
 	 * 
 	 */
@@ -278,9 +489,15 @@ public class UserManager extends ObjectManager {
 	 * 
 	 */
 	public void saveUsers() {
+		saveUsers(users.values());
+	}
+	
+	/**
+	 * 
+	 */
+	public void saveUsers(Collection<? extends User> coll) {
 		try {
-			PreparedStatement stmt = getUpdatingStatement("SELECT * FROM users WHERE id = ?");
-			updateObjects(users.values(), stmt);
+			updateObjects(coll, "users");
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
 		}
@@ -297,21 +514,22 @@ public class UserManager extends ObjectManager {
 	 * 
 	 */
 	public User getUserByEmailAddress(EmailAddress emailAddress) {
+		if (unknownEmailAddresses.isMissing(emailAddress.asString())) {
+			return null;
+		}
+		
 		User result = null;
 		try {
-			PreparedStatement stmt = getReadingStatement("SELECT * FROM users WHERE email_address = ?");
-			result = (User) readObject(stmt, emailAddress.asString());
+			result = (User) readObject("users", "email_address", emailAddress.asString());
 		} catch (SQLException sex) {
 			SysLog.logThrowable(sex);
+			return null;
 		}
 		
 		if (result != null) {
-			User current = doGetUserByTag(result.getNameAsTag());
-			if (current == null) {
-				doAddUser(result);
-			} else {
-				result = current;
-			}
+			result = users.putIfAbsent(result.getNameAsTag(), result);
+		} else {
+			unknownEmailAddresses.putMissing(emailAddress.asString());
 		}
 
 		return result;
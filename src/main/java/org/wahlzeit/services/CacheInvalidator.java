@@ -0,0 +1,302 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * A CacheInvalidator keeps the caches of nodes sharing one database coherent. A node that writes a cached object
+ * publishes its table, key, and version with NOTIFY on the channel; as notifications are transactional, other nodes
+ * only hear of committed writes. Every node LISTENs on the channel with a connection of its own and passes the
+ * notifications of other nodes to the managers of the table, see ObjectManager.invalidateObject().
+ * The driver cannot wait for notifications, so poll() sends an empty query and then picks up what arrived.
+ * Notifications sent while the listening connection is down are lost, so after a failure, the managers drop all
+ * objects they can read again, see ObjectManager.invalidateAllObjects().
+ */
+public class CacheInvalidator {
+
+	/**
+	 * Separates the fields of a payload; the key comes last, so it may contain the separator
+	 */
+	public static final String SEPARATOR = " ";
+
+	/**
+	 * Tells this node's notifications from those of other nodes
+	 */
+	protected final String nodeId = UUID.randomUUID().toString();
+
+	/**
+	 *
+	 */
+	protected String channel;
+
+	/**
+	 *
+	 */
+	protected ConcurrentMap<String, List<ObjectManager>> managersByTable = new ConcurrentHashMap<String, List<ObjectManager>>();
+
+	/**
+	 * Connection to the primary that listens on the channel; null until the first poll() and after a failure
+	 */
+	protected Connection listeningConnection = null;
+
+	/**
+	 * Whether notifications may have been lost since the listening connection failed
+	 */
+	protected boolean hasMissedNotifications = false;
+
+	/**
+	 * Statistics
+	 */
+	protected AtomicLong noPublished = new AtomicLong();
+	protected AtomicLong noReceived = new AtomicLong();
+	protected AtomicLong noInvalidated = new AtomicLong();
+	protected AtomicLong noFullInvalidations = new AtomicLong();
+
+	/**
+	 * The channel is used as an SQL identifier, so it may only contain lower case letters, digits, and underscores.
+	 */
+	public CacheInvalidator(String myChannel) {
+		if (!myChannel.matches("[a-z_][a-z0-9_]*")) {
+			throw new IllegalArgumentException("invalid cache invalidation channel: " + myChannel);
+		}
+
+		channel = myChannel;
+	}
+
+	/**
+	 *
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 *
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Lets manager invalidate the objects of its table that other nodes wrote; several managers may cache one table.
+	 */
+	public void addManager(ObjectManager manager) {
+		String tableName = manager.getCacheTableName();
+		if (tableName == null) {
+			throw new IllegalArgumentException("manager does not cache a table: " + manager);
+		}
+
+		managersByTable.putIfAbsent(tableName, new CopyOnWriteArrayList<ObjectManager>());
+		managersByTable.get(tableName).add(manager);
+	}
+
+	/**
+	 * Notifies the other nodes of the objects of tableName, given as their versions by cache key, with one statement on dbc.
+	 * Within a transaction, the notifications are sent on commit and dropped on rollback.
+	 */
+	public void publish(DatabaseConnection dbc, String tableName, Map<String, Long> versionsByKey) throws SQLException {
+		if (versionsByKey.isEmpty()) {
+			return;
+		}
+
+		List<String> payloads = new ArrayList<String>(versionsByKey.size());
+		for (Map.Entry<String, Long> entry : versionsByKey.entrySet()) {
+			payloads.add(asPayload(tableName, entry.getKey(), entry.getValue()));
+		}
+
+		PreparedStatement stmt = dbc.getWritingStatement("SELECT pg_notify(?, payload) FROM unnest(?) AS payload");
+		stmt.setString(1, channel);
+		stmt.setArray(2, dbc.getRdbmsConnection().createArrayOf("text", payloads.toArray()));
+		SysLog.logQuery(stmt);
+		stmt.executeQuery().close();
+		noPublished.addAndGet(payloads.size());
+	}
+
+	/**
+	 *
+	 */
+	public String asPayload(String tableName, String key, long version) {
+		return nodeId + SEPARATOR + version + SEPARATOR + tableName + SEPARATOR + key;
+	}
+
+	/**
+	 * Passes the notifications that arrived since the last poll to the managers; returns the number of notifications.
+	 * The listening connection is opened on the first poll, and again after a failure, which is passed on;
+	 * once it listens again, the objects written meanwhile are dropped, see invalidateAll().
+	 */
+	public synchronized int poll() throws SQLException {
+		try {
+			if (listeningConnection == null) {
+				listeningConnection = openListeningConnection();
+				if (hasMissedNotifications) {
+					invalidateAll();
+					hasMissedNotifications = false;
+				}
+			}
+
+			Statement stmt = listeningConnection.createStatement();
+			try {
+				stmt.executeQuery("SELECT 1").close();
+			} finally {
+				stmt.close();
+			}
+
+			PGNotification[] notifications = ((PGConnection) listeningConnection).getNotifications();
+			if (notifications == null) {
+				return 0;
+			}
+
+			for (PGNotification notification : notifications) {
+				handleNotification(notification.getParameter());
+			}
+			return notifications.length;
+		} catch (SQLException ex) {
+			closeListeningConnection();
+			hasMissedNotifications = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Lets all managers drop the objects they can read again; any write after that is notified on the listening connection.
+	 */
+	protected void invalidateAll() {
+		SysLog.logSysInfo("cache-invalidation", channel, "invalidating all caches after notifications may have been missed");
+		for (List<ObjectManager> managers : managersByTable.values()) {
+			for (ObjectManager manager : managers) {
+				try {
+					manager.invalidateAllObjects();
+				} catch (RuntimeException ex) {
+					SysLog.logThrowable(ex);
+				}
+			}
+		}
+		noFullInvalidations.incrementAndGet();
+	}
+
+	/**
+	 *
+	 */
+	protected Connection openListeningConnection() throws SQLException {
+		Connection result = DatabaseConnection.openRdbmsConnection();
+		Statement stmt = result.createStatement();
+		try {
+			stmt.execute("LISTEN " + channel);
+		} finally {
+			stmt.close();
+		}
+
+		SysLog.logSysInfo("cache-invalidation", channel, "listening as node " + nodeId);
+		return result;
+	}
+
+	/**
+	 * Passes the object named by payload to the managers of its table, unless this node published it.
+	 */
+	public void handleNotification(String payload) {
+		String[] fields = payload.split(SEPARATOR, 4);
+		if (fields.length != 4) {
+			SysLog.logSysError("invalid cache invalidation: " + payload);
+			return;
+		}
+
+		noReceived.incrementAndGet();
+		if (fields[0].equals(nodeId)) {
+			return;
+		}
+
+		List<ObjectManager> managers = managersByTable.get(fields[2]);
+		if (managers == null) {
+			return;
+		}
+
+		long version = Long.parseLong(fields[1]);
+		for (ObjectManager manager : managers) {
+			try {
+				manager.invalidateObject(fields[3], version);
+			} catch (RuntimeException ex) {
+				SysLog.logThrowable(ex);
+			}
+		}
+		noInvalidated.incrementAndGet();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void close() {
+		closeListeningConnection();
+	}
+
+	/**
+	 *
+	 */
+	protected void closeListeningConnection() {
+		if (listeningConnection == null) {
+			return;
+		}
+
+		try {
+			listeningConnection.close();
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+		listeningConnection = null;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoPublished() {
+		return noPublished.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoReceived() {
+		return noReceived.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoInvalidated() {
+		return noInvalidated.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoFullInvalidations() {
+		return noFullInvalidations.get();
+	}
+
+	/**
+	 *
+	 */
+	public void logStatistics() {
+		SysLog.logSysInfo("cache-invalidation", channel, asStatisticsString());
+	}
+
+	/**
+	 *
+	 */
+	public String asStatisticsString() {
+		return "published=" + noPublished.get()
+			+ ", received=" + noReceived.get()
+			+ ", invalidated=" + noInvalidated.get()
+			+ ", fullInvalidations=" + noFullInvalidations.get();
+	}
+
+}
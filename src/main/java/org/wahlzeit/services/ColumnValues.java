@@ -0,0 +1,228 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * ColumnValues capture the column values a Persistent object writes in writeOn(ResultSet).
+ * This lets clients bind an object's state to plain parameterized statements, e.g. batched UPDATEs,
+ * without a round trip for an updatable ResultSet and without a second write method per class.
+ * Read back through asResultSet(), they also let a LogObjectStore keep rows without a database.
+ */
+public class ColumnValues {
+
+	/**
+	 * Maps ResultSet update methods to the SQL type of the value they write
+	 */
+	protected static final Map<String, Integer> SQL_TYPES = new HashMap<String, Integer>();
+
+	static {
+		SQL_TYPES.put("updateBoolean", Types.BOOLEAN);
+		SQL_TYPES.put("updateShort", Types.SMALLINT);
+		SQL_TYPES.put("updateInt", Types.INTEGER);
+		SQL_TYPES.put("updateLong", Types.BIGINT);
+		SQL_TYPES.put("updateFloat", Types.REAL);
+		SQL_TYPES.put("updateDouble", Types.DOUBLE);
+		SQL_TYPES.put("updateString", Types.VARCHAR);
+		SQL_TYPES.put("updateBytes", Types.BINARY);
+		SQL_TYPES.put("updateTimestamp", Types.TIMESTAMP);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static ColumnValues getFromObject(Persistent obj) throws SQLException {
+		ColumnValues result = new ColumnValues();
+		obj.writeOn(result.asUpdatableResultSet());
+		return result;
+	}
+
+	/**
+	 * Column name -> value, in the order written
+	 */
+	protected Map<String, Object> values = new LinkedHashMap<String, Object>();
+	protected Map<String, Integer> types = new HashMap<String, Integer>();
+
+	/**
+	 *
+	 */
+	public ColumnValues() {
+		// do nothing
+	}
+
+	/**
+	 *
+	 */
+	public void setValue(String column, Object value, int sqlType) {
+		values.put(column, value);
+		types.put(column, sqlType);
+	}
+
+	/**
+	 *
+	 */
+	public boolean hasColumn(String column) {
+		return values.containsKey(column);
+	}
+
+	/**
+	 *
+	 */
+	public Object getValue(String column) {
+		return values.get(column);
+	}
+
+	/**
+	 *
+	 */
+	public int getSqlType(String column) {
+		Integer result = types.get(column);
+		return (result == null) ? Types.OTHER : result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Set<String> getColumns() {
+		return Collections.unmodifiableSet(values.keySet());
+	}
+
+	/**
+	 *
+	 */
+	public void removeColumn(String column) {
+		values.remove(column);
+		types.remove(column);
+	}
+
+	/**
+	 * Removes all columns but the given ones.
+	 */
+	public void retainColumns(Collection<String> columns) {
+		values.keySet().retainAll(columns);
+		types.keySet().retainAll(columns);
+	}
+
+	/**
+	 * Binds the value of column to the statement parameter at pos.
+	 */
+	public void writeOn(PreparedStatement stmt, int pos, String column) throws SQLException {
+		Object value = values.get(column);
+		if (value == null) {
+			stmt.setNull(pos, getSqlType(column));
+		} else {
+			stmt.setObject(pos, value, getSqlType(column));
+		}
+	}
+
+	/**
+	 * Binds the given columns, in order, starting at parameter pos; returns the next free position.
+	 */
+	public int writeOn(PreparedStatement stmt, int pos, Collection<String> columns) throws SQLException {
+		for (String column : columns) {
+			writeOn(stmt, pos++, column);
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns a ResultSet that records all updateXXX(String, ...) calls; all other operations are unsupported.
+	 */
+	protected ResultSet asUpdatableResultSet() {
+		InvocationHandler handler = new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("updateRow")) {
+					return null;
+				} else if (name.startsWith("update") && (args != null) && (args.length == 2) && (args[0] instanceof String)) {
+					Integer sqlType = SQL_TYPES.get(name);
+					setValue((String) args[0], args[1], (sqlType == null) ? Types.OTHER : sqlType);
+					return null;
+				} else if (name.equals("updateNull") && (args != null) && (args[0] instanceof String)) {
+					setValue((String) args[0], null, Types.OTHER);
+					return null;
+				} else if (name.equals("toString")) {
+					return "ColumnValues" + values.keySet();
+				}
+
+				throw new UnsupportedOperationException("ColumnValues do not support ResultSet." + name);
+			}
+		};
+
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, handler);
+	}
+
+	/**
+	 * Returns a ResultSet positioned on a single row of these values, for readFrom(ResultSet);
+	 * it supports the getXXX(String) methods and wasNull(), all other operations are unsupported.
+	 */
+	public ResultSet asResultSet() {
+		InvocationHandler handler = new InvocationHandler() {
+			protected boolean wasNull = false;
+
+			public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+				String name = method.getName();
+				if (name.equals("wasNull")) {
+					return wasNull;
+				} else if (name.equals("toString")) {
+					return "ColumnValues" + values.keySet();
+				} else if (!name.startsWith("get") || (args == null) || (args.length != 1) || !(args[0] instanceof String)) {
+					throw new UnsupportedOperationException("ColumnValues do not support ResultSet." + name);
+				}
+
+				String column = (String) args[0];
+				if (!values.containsKey(column)) {
+					throw new SQLException("no column " + column);
+				}
+				Object value = values.get(column);
+				wasNull = (value == null);
+				return asType(value, method.getReturnType());
+			}
+		};
+
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, handler);
+	}
+
+	/**
+	 * Converts value to what a ResultSet getter of the given return type returns; null becomes 0 or false for primitives.
+	 */
+	protected static Object asType(Object value, Class<?> type) {
+		if (type == String.class) {
+			return (value == null) ? null : value.toString();
+		} else if (type == boolean.class) {
+			return (value instanceof Boolean) ? value : ((value instanceof Number) && (((Number) value).intValue() != 0));
+		} else if (!type.isPrimitive()) {
+			return value;
+		}
+
+		Number number = (value instanceof Number) ? (Number) value : 0;
+		if (type == int.class) {
+			return number.intValue();
+		} else if (type == long.class) {
+			return number.longValue();
+		} else if (type == double.class) {
+			return number.doubleValue();
+		} else if (type == float.class) {
+			return number.floatValue();
+		} else if (type == short.class) {
+			return number.shortValue();
+		} else if (type == byte.class) {
+			return number.byteValue();
+		}
+		throw new UnsupportedOperationException("ColumnValues do not support values of type " + type);
+	}
+
+	/**
+	 *
+	 */
+	public String toString() {
+		return values.toString();
+	}
+
+}
@@ -5,8 +5,10 @@
 
 package org.wahlzeit.services;
 
+import java.util.*;
+
 /**
- * A simple abstract implementation of Persistent with write count and dirty bit.
+ * A simple abstract implementation of Persistent with write count, dirty bit, and dirty columns.
  * Also defines (but does not use) the field "ID" for subclass use.
  */
 public abstract class DataObject implements Persistent {
@@ -15,12 +17,27 @@ public abstract class DataObject implements Persistent {
 	 * Not used in the class but needed by broad array of subclasses
 	 */
 	public static final String ID = "id";
+	
+	/**
+	 * Column of the version of a row, see ObjectManager.updateObject()
+	 */
+	public static final String VERSION = "version";
 
 	/**
 	 * 
 	 */
 	protected transient int writeCount = 0;
 	
+	/**
+	 * Columns changed since the last reset; null if any column may have changed
+	 */
+	protected transient Set<String> dirtyColumns = new HashSet<String>();
+	
+	/**
+	 * 
+	 */
+	protected long version = 0;
+	
 	/**
 	 * 
 	 */
@@ -32,14 +49,55 @@ public abstract class DataObject implements Persistent {
 	 * 
 	 */
 	public final void resetWriteCount() {
+		resetDirtyColumns();
+	}
+	
+	/**
+	 * 
+	 */
+	public final synchronized Set<String> resetDirtyColumns() {
+		Set<String> result = dirtyColumns;
 		writeCount = 0;
+		dirtyColumns = new HashSet<String>();
+		return result;
 	}
 	
 	/**
 	 * 
 	 */
 	public final void incWriteCount() {
-		writeCount++;
+		synchronized(this) {
+			writeCount++;
+			dirtyColumns = null;
+		}
+		DirtyObjectRegistry.getInstance().markDirty(this);
+	}
+	
+	/**
+	 * 
+	 */
+	public final void incWriteCount(String... columns) {
+		synchronized(this) {
+			writeCount++;
+			if (dirtyColumns != null) {
+				dirtyColumns.addAll(Arrays.asList(columns));
+			}
+		}
+		DirtyObjectRegistry.getInstance().markDirty(this);
+	}
+	
+	/**
+	 * 
+	 */
+	public final long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * 
+	 */
+	public final void setVersion(long newVersion) {
+		version = newVersion;
 	}
 	
 	/**
@@ -6,11 +6,11 @@
 package org.wahlzeit.services;
 
 import java.sql.*;
-import java.util.*;
 
 /**
  * A database connection wraps an RDMBS connection object.
  * It pools and reuses existing connections; it caches common SQL statements.
+ * Connections of the replica pool are read-only; see Session.ensureReadingDatabaseConnection().
  *
  * @author dirkriehle
  *
@@ -20,28 +20,49 @@ public class DatabaseConnection {
 	/**
 	 * 
 	 */
-	protected static Set<DatabaseConnection> pool = new HashSet<DatabaseConnection>();
+	protected static int dbcId = 0;
 	
 	/**
-	 * 
+	 * Hands out a pooled connection to the primary database; see DatabaseConnectionPool for sizing and timeouts.
 	 */
-	protected static int dbcId = 0;
-	
+	public static DatabaseConnection ensureDatabaseConnection() throws SQLException {
+		return DatabaseConnectionPool.getInstance().acquire();
+	}
+
+	/**
+	 * Hands out a pooled read-only connection to the replica, or returns null if there is no replica.
+	 */
+	public static DatabaseConnection ensureReplicaDatabaseConnection() throws SQLException {
+		DatabaseConnectionPool replicaPool = DatabaseConnectionPool.getReplicaInstance();
+		return (replicaPool == null) ? null : replicaPool.acquire();
+	}
+
 	/**
 	 * 
 	 */
-	public static synchronized DatabaseConnection ensureDatabaseConnection() throws SQLException {
-		DatabaseConnection result = null;
-		if (pool.isEmpty()) {
-			result = new DatabaseConnection("dbc" + dbcId++);
-			SysLog.logCreatedObject("DatabaseConnection", result.getName());
-		} else {
-			result = pool.iterator().next();
-			pool.remove(result);
+	protected static DatabaseConnection createDatabaseConnection(DatabaseConnectionPool pool) throws SQLException {
+		String dbcName = null;
+		synchronized(DatabaseConnection.class) {
+			dbcName = "dbc" + dbcId++;
 		}
 		
+		DatabaseConnection result = new DatabaseConnection(dbcName, pool);
+		SysLog.logCreatedObject("DatabaseConnection", result.getName());
 		return result;
 	}
+	
+	/**
+	 * Returns true if stmt only reads, i.e. is a SELECT that does not lock rows, so that a replica may answer it.
+	 */
+	public static boolean isQuery(String stmt) {
+		String query = stmt.trim();
+		if (!query.regionMatches(true, 0, "SELECT", 0, 6)) {
+			return false;
+		}
+		
+		String upperCaseQuery = query.toUpperCase();
+		return !upperCaseQuery.contains(" FOR UPDATE") && !upperCaseQuery.contains(" FOR SHARE") && !upperCaseQuery.contains(" FOR NO KEY UPDATE");
+	}
 
 	/**
 	 * Wait until a database connection can be established or the max retry counter is reached.
@@ -55,7 +76,9 @@ public class DatabaseConnection {
 		String dbUrl = SysConfig.getDbConnectionAsString();
 		do {
 			try {
-				DatabaseConnection.ensureDatabaseConnection();
+				DatabaseConnection dbc = DatabaseConnection.ensureDatabaseConnection();
+				DatabaseConnection.returnDatabaseConnection(dbc);
+				DatabaseConnectionPool.getInstance().ensureMinSize();
 				SysLog.logSysInfo("[success] Service check for URL " + dbUrl);
 				return true;
 			} catch (final SQLException e) {
@@ -81,13 +104,12 @@ public class DatabaseConnection {
 	/**
 	 * 
 	 */
-	public static synchronized void returnDatabaseConnection(DatabaseConnection dbc) {
+	public static void returnDatabaseConnection(DatabaseConnection dbc) {
 		if (dbc != null) {
-			if (dbc.isOpen()) {
-				pool.add(dbc);				
-			} else {
-				SysLog.logSysError("tried to return closed database connection to pool; ignoring it");
+			if (!dbc.isOpen()) {
+				SysLog.logSysError("returned closed database connection to pool; discarding it");
 			}
+			dbc.getPool().release(dbc);
 		} else {
 			SysLog.logSysError("tried to return null to database connection pool; ignoring it");
 		}
@@ -98,32 +120,55 @@ public class DatabaseConnection {
 	 */
 	protected String name = null;
 	
+	/**
+	 * The pool this connection belongs to
+	 */
+	protected DatabaseConnectionPool pool = null;
+	
 	/**
 	 * 
 	 */
 	protected Connection rdbmsConnection = null;
 	
 	/**
-	 * Map contains prepared statements retrieved by query string
+	 * Bounded cache of the prepared statements of this connection, by query string
+	 */
+	protected StatementCache statements = null;
+
+	/**
+	 * Pool bookkeeping, in millis
 	 */
-	protected Map<String, PreparedStatement> readingStatements = new HashMap<String, PreparedStatement>();
-	protected Map<String, PreparedStatement> updatingStatements = new HashMap<String, PreparedStatement>();
+	protected long creationTime = System.currentTimeMillis();
+	protected long lastUsedTime = creationTime;
 
 	/**
 	 * 
 	 */
-	protected DatabaseConnection(String dbcName) throws SQLException {
+	protected DatabaseConnection(String dbcName, DatabaseConnectionPool myPool) throws SQLException {
 		name = dbcName;
-		rdbmsConnection = openRdbmsConnection();
+		pool = myPool;
+		rdbmsConnection = openRdbmsConnection(pool.getUrl(), pool.getUser(), pool.getPassword());
+		rdbmsConnection.setReadOnly(pool.isReadOnly());
+		statements = new StatementCache(rdbmsConnection, SysConfig.getDbStatementCacheSizeAsInt(), SysConfig.getDbPrepareThresholdAsInt());
 	}
 	
 	/**
 	 * 
 	 */
 	protected void finalize() {
+		close();
+	}
+	
+	/**
+	 * Closes all cached statements and the underlying connection.
+	 */
+	public void close() {
+		statements.clear();
+		
 		try {
-			pool.remove(this); // just to be sure...
-			closeConnection(rdbmsConnection);
+			if (isOpen()) {
+				closeConnection(rdbmsConnection);
+			}
 		} catch (Throwable t) {
 			SysLog.logThrowable(t);
 		}
@@ -136,6 +181,20 @@ public class DatabaseConnection {
 		return name;
 	}
 	
+	/**
+	 * 
+	 */
+	public DatabaseConnectionPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * 
+	 */
+	public boolean isReadOnly() {
+		return pool.isReadOnly();
+	}
+	
 	/**
 	 * 
 	 */
@@ -151,6 +210,65 @@ public class DatabaseConnection {
 		return result;
 	}
 	
+	/**
+	 * Checks with the database that the connection still works.
+	 */
+	public boolean isValid(int timeoutInSeconds) {
+		boolean result = false;
+		
+		try {
+			result = (rdbmsConnection != null) && rdbmsConnection.isValid(timeoutInSeconds);
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Rolls back a transaction left open and restores autocommit and readOnly to the defaults of the pool.
+	 * Returns false if that failed, so that the connection is not reused.
+	 */
+	public boolean reset() {
+		boolean result = false;
+		
+		try {
+			if (!rdbmsConnection.getAutoCommit()) {
+				rdbmsConnection.rollback();
+				rdbmsConnection.setAutoCommit(true);
+			}
+			if (rdbmsConnection.isReadOnly() != pool.isReadOnly()) {
+				rdbmsConnection.setReadOnly(pool.isReadOnly());
+			}
+			result = true;
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * 
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+	
+	/**
+	 * 
+	 */
+	public long getLastUsedTime() {
+		return lastUsedTime;
+	}
+	
+	/**
+	 * 
+	 */
+	public void setLastUsedTime(long time) {
+		lastUsedTime = time;
+	}
+	
     /**
      * 
      */
@@ -158,32 +276,32 @@ public class DatabaseConnection {
     	return rdbmsConnection;
     }
     
+	/**
+	 * 
+	 */
+	public StatementCache getStatementCache() {
+		return statements;
+	}
+	
 	/**
 	 * 
 	 */
 	protected PreparedStatement getReadingStatement(String stmt) throws SQLException {
-		PreparedStatement result = readingStatements.get(stmt);
-		if (result == null) {
-			result = getRdbmsConnection().prepareStatement(stmt);
-	   		SysLog.logCreatedObject("PreparedStatement", result.toString());
-	   		readingStatements.put(stmt, result);
-		}
-		
-		return result;
+		return statements.getStatement(stmt);
+	}
+	
+	/**
+	 * For statements that write or lock rows, on a connection to the primary.
+	 */
+	protected PreparedStatement getWritingStatement(String stmt) throws SQLException {
+		return statements.getStatement(stmt);
 	}
 	
 	/**
 	 * 
 	 */
 	protected PreparedStatement getUpdatingStatement(String stmt) throws SQLException {
-		PreparedStatement result = updatingStatements.get(stmt);
-		if (result == null) {
-			result = getRdbmsConnection().prepareStatement(stmt, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-	   		SysLog.logCreatedObject("UpdatingStatement", result.toString());
-	   		updatingStatements.put(stmt, result);
-		}
-		
-		return result;
+		return statements.getUpdatingStatement(stmt);
 	}
 		
 	/**
@@ -201,9 +319,13 @@ public class DatabaseConnection {
 	 * 
 	 */
 	public static Connection openRdbmsConnection() throws SQLException {
-		String dbConnection = SysConfig.getDbConnectionAsString();
-		String dbUser = SysConfig.getDbUserAsString();
-		String dbPassword = SysConfig.getDbPasswordAsString();
+		return openRdbmsConnection(SysConfig.getDbConnectionAsString(), SysConfig.getDbUserAsString(), SysConfig.getDbPasswordAsString());
+	}
+	
+	/**
+	 * 
+	 */
+	public static Connection openRdbmsConnection(String dbConnection, String dbUser, String dbPassword) throws SQLException {
    		Connection result = DriverManager.getConnection(dbConnection, dbUser, dbPassword);
    		SysLog.logSysInfo("opening database connection: " + result.toString());
    		return result;
@@ -0,0 +1,582 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of DatabaseConnection objects.
+ * Clients wait in FIFO order for one of at most maxSize connections; idle connections are validated on borrow.
+ * Connections are retired after an idle timeout or their maximum lifetime, as long as minSize connections remain.
+ * Pooled DatabaseConnection objects keep their prepared statements, so these survive being returned to the pool.
+ * There is a pool for the primary database and, if SysConfig.DB_REPLICA_CONNECTION is set, a read-only one for the replica.
+ */
+public class DatabaseConnectionPool {
+
+	/**
+	 *
+	 */
+	protected static DatabaseConnectionPool instance = null;
+
+	/**
+	 *
+	 */
+	public static synchronized DatabaseConnectionPool getInstance() {
+		if (instance == null) {
+			instance = new DatabaseConnectionPool();
+			SysLog.logCreatedObject("DatabaseConnectionPool", instance.asString());
+		}
+		return instance;
+	}
+
+	/**
+	 * 
+	 */
+	protected static DatabaseConnectionPool replicaInstance = null;
+	protected static boolean hasReplicaInstance = true;
+
+	/**
+	 * Returns the pool of the replica, or null if there is no replica.
+	 */
+	public static synchronized DatabaseConnectionPool getReplicaInstance() {
+		if ((replicaInstance == null) && hasReplicaInstance) {
+			String replicaUrl = SysConfig.getDbReplicaConnectionAsString();
+			hasReplicaInstance = !replicaUrl.isEmpty();
+			if (hasReplicaInstance) {
+				replicaInstance = new DatabaseConnectionPool(REPLICA_POOL_NAME, replicaUrl, SysConfig.getDbReplicaUserAsString(), SysConfig.getDbReplicaPasswordAsString(), true);
+				SysLog.logCreatedObject("DatabaseConnectionPool", replicaInstance.asString());
+			}
+		}
+		return replicaInstance;
+	}
+
+	/**
+	 * Drop singleton instances to cope with repeated startup/shutdown scenarios
+	 */
+	public static synchronized void dropInstance() {
+		if (instance != null) {
+			instance.logStatistics();
+			instance.close();
+			instance = null;
+			SysLog.logSysInfo("dropped current DatabaseConnectionPool");
+		}
+		
+		if (replicaInstance != null) {
+			replicaInstance.logStatistics();
+			replicaInstance.close();
+			replicaInstance = null;
+			SysLog.logSysInfo("dropped current replica DatabaseConnectionPool");
+		}
+		hasReplicaInstance = true;
+	}
+
+	/**
+	 * 
+	 */
+	public static final String PRIMARY_POOL_NAME = "primary";
+	public static final String REPLICA_POOL_NAME = "replica";
+
+	/**
+	 * Where connections go
+	 */
+	protected String name;
+	protected String url;
+	protected String user;
+	protected String password;
+	protected boolean isReadOnly;
+
+	/**
+	 * in milliseconds; see Session.ensureReadingDatabaseConnection()
+	 */
+	protected long readYourWritesWindow;
+
+	/**
+	 *
+	 */
+	protected int minSize;
+	protected int maxSize;
+
+	/**
+	 * in milliseconds
+	 */
+	protected long acquireTimeout;
+	protected long idleTimeout;
+	protected long maxLifetime;
+	protected long validationInterval;
+
+	/**
+	 * in seconds, as required by Connection.isValid()
+	 */
+	protected int validationTimeout;
+
+	/**
+	 * One permit per connection that may be handed out; fair, so waiting threads are served in order
+	 */
+	protected Semaphore permits;
+
+	/**
+	 * Most recently returned connection first
+	 */
+	protected Deque<DatabaseConnection> idleConnections = new ArrayDeque<DatabaseConnection>();
+	protected Set<DatabaseConnection> activeConnections = new HashSet<DatabaseConnection>();
+
+	/**
+	 *
+	 */
+	protected boolean isClosed = false;
+
+	/**
+	 * Statistics
+	 */
+	protected long noAcquisitions = 0;
+	protected long noTimeouts = 0;
+	protected long noCreatedConnections = 0;
+	protected long noClosedConnections = 0;
+	protected long noFailedValidations = 0;
+	protected long totalWaitTime = 0; // in millis
+	protected long maxWaitTime = 0; // in millis
+
+	/**
+	 * Queries sent to this pool's connections, and, for the primary, queries kept there for read-your-writes
+	 */
+	protected AtomicLong noQueries = new AtomicLong();
+	protected AtomicLong noPinnedQueries = new AtomicLong();
+
+	/**
+	 *
+	 */
+	protected DatabaseConnectionPool() {
+		this(PRIMARY_POOL_NAME, SysConfig.getDbConnectionAsString(), SysConfig.getDbUserAsString(), SysConfig.getDbPasswordAsString(), false);
+	}
+
+	/**
+	 * The replica pool has the same size and timeouts as the primary one.
+	 */
+	protected DatabaseConnectionPool(String myName, String myUrl, String myUser, String myPassword, boolean myIsReadOnly) {
+		this(SysConfig.getDbPoolMinSizeAsInt(), SysConfig.getDbPoolMaxSizeAsInt());
+		name = myName;
+		url = myUrl;
+		user = myUser;
+		password = myPassword;
+		isReadOnly = myIsReadOnly;
+	}
+
+	/**
+	 *
+	 */
+	protected DatabaseConnectionPool(int myMinSize, int myMaxSize) {
+		if ((myMinSize < 0) || (myMaxSize < 1) || (myMinSize > myMaxSize)) {
+			throw new IllegalArgumentException("invalid pool size: min=" + myMinSize + ", max=" + myMaxSize);
+		}
+
+		name = PRIMARY_POOL_NAME;
+		url = SysConfig.getDbConnectionAsString();
+		user = SysConfig.getDbUserAsString();
+		password = SysConfig.getDbPasswordAsString();
+		isReadOnly = false;
+		readYourWritesWindow = SysConfig.getDbReadYourWritesWindowAsLong();
+		minSize = myMinSize;
+		maxSize = myMaxSize;
+		permits = new Semaphore(maxSize, true);
+
+		acquireTimeout = SysConfig.getDbPoolAcquireTimeoutAsLong();
+		idleTimeout = SysConfig.getDbPoolIdleTimeoutAsLong();
+		maxLifetime = SysConfig.getDbPoolMaxLifetimeAsLong();
+		validationInterval = SysConfig.getDbPoolValidationIntervalAsLong();
+		validationTimeout = SysConfig.getDbPoolValidationTimeoutAsInt();
+	}
+
+	/**
+	 * Hands out a valid connection; waits at most acquireTimeout for one to become available.
+	 */
+	public DatabaseConnection acquire() throws SQLException {
+		assertIsOpen();
+
+		long startTime = System.currentTimeMillis();
+		try {
+			if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+				synchronized(this) {
+					noTimeouts++;
+				}
+				throw new SQLTimeoutException("no database connection available after " + acquireTimeout + "ms");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for database connection", ex);
+		}
+
+		long waitTime = System.currentTimeMillis() - startTime;
+
+		DatabaseConnection result = null;
+		try {
+			result = pollValidIdleConnection();
+			if (result == null) {
+				result = createConnection();
+			}
+		} catch (SQLException ex) {
+			permits.release();
+			throw ex;
+		}
+
+		synchronized(this) {
+			activeConnections.add(result);
+			noAcquisitions++;
+			totalWaitTime += waitTime;
+			maxWaitTime = Math.max(maxWaitTime, waitTime);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Takes back a connection; closed, broken or expired connections are discarded.
+	 * Before pooling, an open transaction is rolled back and the connection settings are reset; if that fails, it is discarded, too.
+	 */
+	public void release(DatabaseConnection dbc) {
+		synchronized(this) {
+			if (!activeConnections.remove(dbc)) {
+				SysLog.logSysError("tried to return unknown database connection to pool; ignoring it");
+				return;
+			}
+		}
+
+		boolean isReusable = !isClosed && dbc.isOpen() && !isExpired(dbc, System.currentTimeMillis()) && dbc.reset();
+		if (isReusable) {
+			dbc.setLastUsedTime(System.currentTimeMillis());
+			synchronized(this) {
+				idleConnections.addFirst(dbc);
+			}
+		} else {
+			closeConnection(dbc);
+		}
+
+		permits.release();
+
+		evictIdleConnections();
+	}
+
+	/**
+	 * Opens connections until the pool holds at least minSize of them.
+	 */
+	public void ensureMinSize() throws SQLException {
+		while (getNoConnections() < minSize) {
+			DatabaseConnection dbc = createConnection();
+			synchronized(this) {
+				idleConnections.addLast(dbc);
+			}
+		}
+	}
+
+	/**
+	 * Closes idle connections that exceeded their idle timeout or lifetime, keeping at least minSize connections.
+	 */
+	public void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		while (true) {
+			DatabaseConnection dbc = null;
+			synchronized(this) {
+				DatabaseConnection oldest = idleConnections.peekLast();
+				if ((oldest != null) && (getNoConnections() > minSize) && (isExpired(oldest, now) || isIdleTooLong(oldest, now))) {
+					dbc = idleConnections.pollLast();
+				}
+			}
+
+			if (dbc == null) {
+				return;
+			}
+
+			closeConnection(dbc);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected DatabaseConnection pollValidIdleConnection() {
+		while (true) {
+			DatabaseConnection result = null;
+			synchronized(this) {
+				result = idleConnections.pollFirst();
+			}
+
+			if (result == null) {
+				return null;
+			}
+
+			long now = System.currentTimeMillis();
+			if (isExpired(result, now) || isIdleTooLong(result, now)) {
+				closeConnection(result);
+			} else if (((now - result.getLastUsedTime()) > validationInterval) && !result.isValid(validationTimeout)) {
+				synchronized(this) {
+					noFailedValidations++;
+				}
+				closeConnection(result);
+			} else {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected DatabaseConnection createConnection() throws SQLException {
+		DatabaseConnection result = DatabaseConnection.createDatabaseConnection(this);
+		synchronized(this) {
+			noCreatedConnections++;
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected void closeConnection(DatabaseConnection dbc) {
+		dbc.close();
+		synchronized(this) {
+			noClosedConnections++;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected boolean isExpired(DatabaseConnection dbc, long now) {
+		return (now - dbc.getCreationTime()) > maxLifetime;
+	}
+
+	/**
+	 *
+	 */
+	protected boolean isIdleTooLong(DatabaseConnection dbc, long now) {
+		return (now - dbc.getLastUsedTime()) > idleTimeout;
+	}
+
+	/**
+	 * Closes all idle connections; active connections are closed when they are returned.
+	 */
+	public void close() {
+		List<DatabaseConnection> toBeClosed = null;
+		synchronized(this) {
+			isClosed = true;
+			toBeClosed = new ArrayList<DatabaseConnection>(idleConnections);
+			idleConnections.clear();
+		}
+
+		for (DatabaseConnection dbc : toBeClosed) {
+			closeConnection(dbc);
+		}
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected void assertIsOpen() throws SQLException {
+		if (isClosed) {
+			throw new SQLException("database connection pool is closed");
+		}
+	}
+
+	/**
+	 *
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 *
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 *
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 *
+	 */
+	public boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public long getReadYourWritesWindow() {
+		return readYourWritesWindow;
+	}
+
+	/**
+	 * Counts a query sent to a connection of this pool; pinned queries went to the primary because of read-your-writes.
+	 */
+	public void countQuery(boolean isPinned) {
+		noQueries.incrementAndGet();
+		if (isPinned) {
+			noPinnedQueries.incrementAndGet();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public long getNoQueries() {
+		return noQueries.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoPinnedQueries() {
+		return noPinnedQueries.get();
+	}
+
+	/**
+	 *
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 *
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized int getNoConnections() {
+		return activeConnections.size() + idleConnections.size();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized int getNoActiveConnections() {
+		return activeConnections.size();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized int getNoIdleConnections() {
+		return idleConnections.size();
+	}
+
+	/**
+	 *
+	 */
+	public int getNoWaitingThreads() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoAcquisitions() {
+		return noAcquisitions;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoTimeouts() {
+		return noTimeouts;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoCreatedConnections() {
+		return noCreatedConnections;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoClosedConnections() {
+		return noClosedConnections;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoFailedValidations() {
+		return noFailedValidations;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public synchronized double getAverageWaitTime() {
+		return (noAcquisitions == 0) ? 0.0 : (double) totalWaitTime / noAcquisitions;
+	}
+
+	/**
+	 *
+	 */
+	public void logStatistics() {
+		SysLog.logSysInfo("database-connection-pool", asString(), asStatisticsString());
+	}
+
+	/**
+	 *
+	 */
+	public synchronized String asStatisticsString() {
+		return "active=" + activeConnections.size()
+			+ ", idle=" + idleConnections.size()
+			+ ", waiting=" + permits.getQueueLength()
+			+ ", acquisitions=" + noAcquisitions
+			+ ", timeouts=" + noTimeouts
+			+ ", avgWaitTime=" + getAverageWaitTime()
+			+ ", maxWaitTime=" + maxWaitTime
+			+ ", created=" + noCreatedConnections
+			+ ", closed=" + noClosedConnections
+			+ ", failedValidations=" + noFailedValidations
+			+ ", queries=" + noQueries.get()
+			+ ", pinnedQueries=" + noPinnedQueries.get();
+	}
+
+	/**
+	 *
+	 */
+	public String asString() {
+		return name + "-pool[min=" + minSize + ", max=" + maxSize + "]";
+	}
+
+}
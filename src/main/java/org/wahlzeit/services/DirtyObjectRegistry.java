@@ -0,0 +1,138 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.util.*;
+
+/**
+ * The DirtyObjectRegistry collects Persistent objects that changed since they were last written.
+ * Objects register themselves when their write count is incremented; a write-behind agent drains the registry.
+ * The registry is disabled until such an agent enables it, so tools without agents do not accumulate objects.
+ * Objects changed within a unit of work only register once it commits, so that the agent never writes changes
+ * that are rolled back; see UnitOfWork.registerChanged().
+ */
+public class DirtyObjectRegistry {
+
+	/**
+	 *
+	 */
+	protected static final DirtyObjectRegistry instance = new DirtyObjectRegistry();
+
+	/**
+	 *
+	 */
+	public static DirtyObjectRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected volatile boolean isEnabled = false;
+
+	/**
+	 * Identity-based, as some Persistent classes implement value equality
+	 */
+	protected Set<Persistent> dirtyObjects = Collections.newSetFromMap(new IdentityHashMap<Persistent, Boolean>());
+
+	/**
+	 * Changes since last drain; waiting flushers are woken up once this reaches maxChanges
+	 */
+	protected int noChanges = 0;
+	protected int maxChanges = Integer.MAX_VALUE;
+
+	/**
+	 *
+	 */
+	protected DirtyObjectRegistry() {
+		// do nothing
+	}
+
+	/**
+	 *
+	 */
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	/**
+	 *
+	 */
+	public void setEnabled(boolean enabled) {
+		isEnabled = enabled;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void setMaxChanges(int newMaxChanges) {
+		maxChanges = newMaxChanges;
+	}
+
+	/**
+	 *
+	 */
+	public void markDirty(Persistent obj) {
+		Session session = SessionManager.getThreadLocalSession();
+		if (session != null) {
+			session.registerWrite(); // the change reaches the replica only after it was written
+		}
+		
+		if (!isEnabled) {
+			return;
+		}
+
+		UnitOfWork unitOfWork = UnitOfWork.getActiveUnitOfWork();
+		if (unitOfWork != null) {
+			unitOfWork.registerChanged(obj);
+			return;
+		}
+
+		synchronized(this) {
+			dirtyObjects.add(obj);
+			if (++noChanges == maxChanges) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns all registered objects.
+	 */
+	public synchronized List<Persistent> drainDirtyObjects() {
+		List<Persistent> result = new ArrayList<Persistent>(dirtyObjects);
+		dirtyObjects.clear();
+		noChanges = 0;
+		return result;
+	}
+
+	/**
+	 * Blocks until maxChanges changes have been registered or timeout milliseconds have passed.
+	 */
+	public synchronized void awaitChanges(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while ((noChanges < maxChanges) && (remaining > 0)) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Queue depth, i.e. number of objects waiting to be written
+	 */
+	public synchronized int getNoDirtyObjects() {
+		return dirtyObjects.size();
+	}
+
+	/**
+	 *
+	 */
+	public synchronized int getNoChanges() {
+		return noChanges;
+	}
+
+}
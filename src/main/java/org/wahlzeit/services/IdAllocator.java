@@ -0,0 +1,234 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An IdAllocator hands out the ids of one column of the globals table using the hi/lo scheme.
+ * It reserves a block of blockSize ids at once by advancing the column in a single UPDATE, and then hands out
+ * the ids of that block without touching the database. As the column always holds the highest reserved id,
+ * several servers can share a database without handing out the same id; ids of a block left unused on shutdown are skipped.
+ * Handing out an id of the current block is a single compare-and-set; only reserving the next block takes a lock.
+ * Blocks are only reserved in the database once a server started with one, see setReservesInDatabase();
+ * until then, e.g. in unit tests, they are reserved in memory.
+ */
+public class IdAllocator {
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	/**
+	 * Whether blocks are reserved in the globals table, rather than in memory
+	 */
+	protected static volatile boolean reservesInDatabase = false;
+
+	/**
+	 *
+	 */
+	public static boolean getReservesInDatabase() {
+		return reservesInDatabase;
+	}
+
+	/**
+	 * Set on startup, when it is known whether there is a database with a globals table.
+	 */
+	public static void setReservesInDatabase(boolean newReservesInDatabase) {
+		reservesInDatabase = newReservesInDatabase;
+	}
+
+	/**
+	 *
+	 */
+	protected String columnName;
+
+	/**
+	 *
+	 */
+	protected volatile int blockSize = DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * The last id handed out in the lower and the last id of the current block in the upper 32 bits,
+	 * so that both change together
+	 */
+	protected final AtomicLong state = new AtomicLong();
+
+	/**
+	 * Statistics
+	 */
+	protected int noReservations = 0;
+
+	/**
+	 *
+	 */
+	public IdAllocator(String myColumnName) {
+		columnName = myColumnName;
+	}
+
+	/**
+	 *
+	 */
+	public String getColumnName() {
+		return columnName;
+	}
+
+	/**
+	 *
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Takes effect with the next block.
+	 */
+	public void setBlockSize(int newBlockSize) {
+		if (newBlockSize < 1) {
+			throw new IllegalArgumentException("block size must be positive");
+		}
+
+		blockSize = newBlockSize;
+	}
+
+	/**
+	 *
+	 */
+	public int getLastId() {
+		return getLastId(state.get());
+	}
+
+	/**
+	 * Sets the last id handed out, e.g. the high-water mark loaded from the globals table; no block is reserved then,
+	 * so the next call of getNextId() reserves one.
+	 */
+	public synchronized void setLastId(int newLastId) {
+		state.set(asState(newLastId, newLastId));
+	}
+
+	/**
+	 * Returns the highest id known to be reserved, by this or another server, as of the last reservation.
+	 */
+	public int getMaxId() {
+		return getMaxId(state.get());
+	}
+
+	/**
+	 *
+	 */
+	public int getNextId() {
+		while (true) {
+			long current = state.get();
+			if (getLastId(current) < getMaxId(current)) {
+				if (state.compareAndSet(current, current + 1)) {
+					return getLastId(current) + 1;
+				}
+			} else {
+				ensureNextBlock(current);
+			}
+		}
+	}
+
+	/**
+	 * Reserves the next block unless another thread did so since exhaustedState was read.
+	 */
+	protected synchronized void ensureNextBlock(long exhaustedState) {
+		if (state.get() != exhaustedState) {
+			return;
+		}
+
+		try {
+			reserveBlock();
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+			throw new IllegalStateException("could not reserve ids for " + columnName, sex);
+		}
+	}
+
+	/**
+	 * Prefers the connection of the current session, as waiting for a pooled one while sessions hold all of them
+	 * would block every thread that needs an id. Falls back to a pooled connection if there is no session or its connection
+	 * is within a transaction, so that the reservation is never rolled back with the transaction of a caller.
+	 * Without a database, there is no globals table and a single server, so the block is reserved in memory.
+	 */
+	protected void reserveBlock() throws SQLException {
+		int size = blockSize;
+		if (!reservesInDatabase) {
+			int maxId = getMaxId();
+			state.set(asState(maxId, maxId + size));
+			noReservations++;
+			return;
+		}
+		
+		Session session = SessionManager.getThreadLocalSession();
+		DatabaseConnection dbc = (session == null) ? null : session.ensureDatabaseConnection();
+		int newMaxId;
+		if ((dbc != null) && dbc.getRdbmsConnection().getAutoCommit()) {
+			newMaxId = doReserveBlock(dbc.getRdbmsConnection(), size);
+		} else {
+			dbc = DatabaseConnection.ensureDatabaseConnection();
+			try {
+				newMaxId = doReserveBlock(dbc.getRdbmsConnection(), size);
+			} finally {
+				DatabaseConnection.returnDatabaseConnection(dbc);
+			}
+		}
+
+		state.set(asState(newMaxId - size, newMaxId));
+		noReservations++;
+	}
+
+	/**
+	 * Returns the last id of the reserved block; the database serializes concurrent updates of the row.
+	 */
+	protected int doReserveBlock(Connection conn, int size) throws SQLException {
+		String query = "UPDATE globals SET " + columnName + " = COALESCE(" + columnName + ", 0) + ? WHERE id = 0 RETURNING " + columnName;
+		SysLog.logQuery(query);
+
+		PreparedStatement stmt = conn.prepareStatement(query);
+		try {
+			stmt.setInt(1, size);
+			ResultSet rset = stmt.executeQuery();
+			if (!rset.next()) {
+				throw new SQLException("no globals to reserve ids from");
+			}
+			return rset.getInt(1);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static long asState(int lastId, int maxId) {
+		return ((long) maxId << 32) | (lastId & 0xffffffffL);
+	}
+
+	/**
+	 *
+	 */
+	protected static int getLastId(long state) {
+		return (int) state;
+	}
+
+	/**
+	 *
+	 */
+	protected static int getMaxId(long state) {
+		return (int) (state >>> 32);
+	}
+
+	/**
+	 * Number of blocks reserved, i.e. of writes to the globals table
+	 */
+	public synchronized int getNoReservations() {
+		return noReservations;
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A JdbcObjectStore keeps objects in the tables of the database, using the DatabaseConnections of the current session.
+ */
+public class JdbcObjectStore implements ObjectStore {
+
+	/**
+	 * Number of rows after which scans log their progress
+	 */
+	protected static final int LOAD_PROGRESS_INTERVAL = 10000;
+
+	/**
+	 *
+	 */
+	protected DatabaseConnection getDatabaseConnection() throws SQLException {
+		DatabaseConnection result = SessionManager.getDatabaseConnection();
+		if (result == null) {
+			throw new SQLException("no database connection available");
+		}
+		return result;
+	}
+
+	/**
+	 * Reads may go to the replica; see Session.ensureReadingDatabaseConnection().
+	 */
+	protected DatabaseConnection getReadingDatabaseConnection() throws SQLException {
+		DatabaseConnection result = SessionManager.getThreadLocalSession().ensureReadingDatabaseConnection();
+		if (result == null) {
+			throw new SQLException("no database connection available");
+		}
+		return result;
+	}
+
+	/**
+	 * Writes go to the primary, which the session then reads its writes from.
+	 */
+	protected DatabaseConnection getWritingDatabaseConnection() throws SQLException {
+		SessionManager.getThreadLocalSession().registerWrite();
+		return getDatabaseConnection();
+	}
+
+	/**
+	 *
+	 */
+	public Persistent read(String tableName, String column, Object value, ObjectReader reader) throws SQLException {
+		PreparedStatement stmt = getReadingDatabaseConnection().getReadingStatement("SELECT * FROM " + tableName + " WHERE " + column + " = ?");
+		stmt.setObject(1, value);
+		SysLog.logQuery(stmt);
+		ResultSet rset = stmt.executeQuery();
+		return rset.next() ? reader.createObject(rset) : null;
+	}
+
+	/**
+	 * Streams the rows through a server-side cursor, see scanRows(); progress and peak heap usage are logged.
+	 */
+	public void scan(String tableName, final ObjectReader reader, final ObjectConsumer consumer) throws SQLException {
+		final String query = "SELECT * FROM " + tableName;
+		scanRows(query, new ResultSetReader() {
+			public void read(ResultSet rset) throws SQLException {
+				int fetchSize = SysConfig.getDbFetchSizeAsInt();
+				Runtime runtime = Runtime.getRuntime();
+				long peakMemory = runtime.totalMemory() - runtime.freeMemory();
+				long startTime = System.currentTimeMillis();
+				long noRows = 0;
+				
+				while (rset.next()) {
+					consumer.consume(reader.createObject(rset));
+					noRows++;
+					
+					if ((noRows % fetchSize) == 0) {
+						peakMemory = Math.max(peakMemory, runtime.totalMemory() - runtime.freeMemory());
+					}
+					if ((noRows % LOAD_PROGRESS_INTERVAL) == 0) {
+						SysLog.logSysInfo("load-progress", query, asLoadProgressString(noRows, startTime, peakMemory));
+					}
+				}
+				
+				peakMemory = Math.max(peakMemory, runtime.totalMemory() - runtime.freeMemory());
+				SysLog.logSysInfo("load-done", query, asLoadProgressString(noRows, startTime, peakMemory));
+			}
+		});
+	}
+
+	/**
+	 * Passes the result of query to reader through a server-side cursor in a read-only transaction,
+	 * so that only DB_FETCH_SIZE rows are held in memory at a time.
+	 */
+	public void scanRows(String query, ResultSetReader reader) throws SQLException {
+		Connection conn = getReadingDatabaseConnection().getRdbmsConnection();
+		boolean wasAutoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false); // otherwise the driver fetches all rows at once
+		
+		PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			stmt.setFetchSize(SysConfig.getDbFetchSizeAsInt());
+			SysLog.logQuery(stmt);
+			
+			ResultSet rset = stmt.executeQuery();
+			reader.read(rset);
+			rset.close();
+			if (wasAutoCommit) {
+				conn.commit();
+			}
+		} catch (SQLException ex) {
+			if (wasAutoCommit) {
+				conn.rollback();
+			}
+			throw ex;
+		} finally {
+			stmt.close();
+			conn.setAutoCommit(wasAutoCommit);
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	protected String asLoadProgressString(long noRows, long startTime, long peakMemory) {
+		long duration = Math.max(System.currentTimeMillis() - startTime, 1);
+		return "rows=" + noRows
+			+ ", rowsPerSecond=" + (noRows * 1000 / duration)
+			+ ", peakMemoryMB=" + (peakMemory / (1024 * 1024));
+	}
+
+	/**
+	 * Inserts only the id, as references to other rows may not be valid yet; the object's first update writes the rest.
+	 */
+	public void insert(String tableName, Persistent obj) throws SQLException {
+		PreparedStatement stmt = getWritingDatabaseConnection().getWritingStatement("INSERT INTO " + tableName + "(id) VALUES(?)");
+		obj.writeId(stmt, 1);
+		SysLog.logQuery(stmt);
+		stmt.executeUpdate();
+	}
+
+	/**
+	 * 
+	 */
+	public void upsert(String tableName, Persistent obj) throws SQLException {
+		ColumnValues values = ColumnValues.getFromObject(obj);
+		List<String> columns = new ArrayList<String>(values.getColumns());
+		StringBuilder query = new StringBuilder(256);
+		query.append("INSERT INTO ").append(tableName).append(" (");
+		for (int i = 0; i < columns.size(); i++) {
+			query.append((i == 0) ? "" : ", ").append('"').append(columns.get(i)).append('"');
+		}
+		query.append(") VALUES (");
+		for (int i = 0; i < columns.size(); i++) {
+			query.append((i == 0) ? "?" : ", ?");
+		}
+		query.append(") ON CONFLICT (id) DO UPDATE SET ");
+		for (int i = 0; i < columns.size(); i++) {
+			String column = '"' + columns.get(i) + '"';
+			query.append((i == 0) ? "" : ", ").append(column).append(" = EXCLUDED.").append(column);
+		}
+		
+		PreparedStatement stmt = getWritingDatabaseConnection().getWritingStatement(query.toString());
+		values.writeOn(stmt, 1, columns);
+		SysLog.logQuery(stmt);
+		stmt.executeUpdate();
+	}
+
+	/**
+	 * 
+	 */
+	public void delete(String tableName, Persistent obj) throws SQLException {
+		PreparedStatement stmt = getWritingDatabaseConnection().getWritingStatement("DELETE FROM " + tableName + " WHERE id = ?");
+		obj.writeId(stmt, 1);
+		SysLog.logQuery(stmt);
+		stmt.executeUpdate();
+	}
+
+	/**
+	 * 
+	 */
+	public boolean isRelational() {
+		return true;
+	}
+
+	/**
+	 * Connections belong to the pool, which closes them.
+	 */
+	public void close() {
+		// do nothing
+	}
+
+}
@@ -0,0 +1,593 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/**
+ * A LogObjectStore keeps all rows in memory and appends every change to a log file, so that it needs no database.
+ * On open, it replays the log: the last upsert of a row wins, a delete removes it. A record that was only partly written,
+ * e.g. because the server crashed, fails its checksum and is cut off together with everything after it.
+ * Rows are indexed by id, and by any other column on the first lookup by that column.
+ * Records are flushed to the operating system on each write and synced to disk on close and compact().
+ * The log is compacted on open once most of its records are outdated.
+ */
+public class LogObjectStore implements ObjectStore {
+
+	/**
+	 * Record types
+	 */
+	protected static final byte UPSERT = 1;
+	protected static final byte DELETE = 2;
+
+	/**
+	 * Value types
+	 */
+	protected static final byte NULL = 0;
+	protected static final byte BOOLEAN = 1;
+	protected static final byte INT = 2;
+	protected static final byte LONG = 3;
+	protected static final byte DOUBLE = 4;
+	protected static final byte STRING = 5;
+
+	/**
+	 * Compaction happens on open if the log has this many times more records than live rows, and at least MIN_COMPACTION_RECORDS
+	 */
+	protected static final int COMPACTION_RATIO = 2;
+	protected static final int MIN_COMPACTION_RECORDS = 1000;
+
+	/**
+	 * The rows of one table, by id, and indexes by other columns, by column and value
+	 */
+	protected static class Table {
+		protected Map<String, ColumnValues> rows = new LinkedHashMap<String, ColumnValues>();
+		protected Map<String, Map<String, Set<String>>> indexes = new HashMap<String, Map<String, Set<String>>>();
+	}
+
+	/**
+	 *
+	 */
+	protected File file;
+	protected FileOutputStream fileOut = null;
+	protected DataOutputStream out = null;
+
+	/**
+	 *
+	 */
+	protected Map<String, Table> tables = new HashMap<String, Table>();
+	protected ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Number of records in the log, and of live rows
+	 */
+	protected long noRecords = 0;
+	protected long noRows = 0;
+
+	/**
+	 *
+	 */
+	public LogObjectStore(File myFile) {
+		file = myFile;
+	}
+
+	/**
+	 * Replays the log, creating it if it does not exist, and opens it for appending.
+	 */
+	public void open() throws IOException {
+		lock.writeLock().lock();
+		try {
+			long startTime = System.currentTimeMillis();
+			if (file.getParentFile() != null) {
+				file.getParentFile().mkdirs();
+			}
+
+			long length = file.exists() ? replay() : 0;
+			if (file.exists() && (length < file.length())) {
+				SysLog.logSysError("log object store " + file + " has a broken record at " + length + "; cutting it off");
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				raf.setLength(length);
+				raf.close();
+			}
+
+			openForAppending();
+			SysLog.logSysInfo("log-object-store", file.getName(), "replayed " + noRecords + " records with " + noRows + " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+
+			if ((noRecords >= MIN_COMPACTION_RECORDS) && (noRecords > COMPACTION_RATIO * noRows)) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the length of the valid part of the log.
+	 */
+	protected long replay() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return replay(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Applies the records of in up to its end or its first broken record; returns the length of the records applied.
+	 */
+	protected long replay(DataInputStream in) throws IOException {
+		long result = 0;
+		while (true) {
+			byte[] record = readRecord(in);
+			if (record == null) {
+				break;
+			}
+
+			applyRecord(new DataInputStream(new ByteArrayInputStream(record)));
+			result += 4 + record.length + 8;
+			noRecords++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns null at the end of the log or at a broken record.
+	 */
+	protected byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] result = new byte[length];
+			in.readFully(result);
+			long checksum = in.readLong();
+			return (checksum == getChecksum(result)) ? result : null;
+		} catch (EOFException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void applyRecord(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		Table table = ensureTable(in.readUTF());
+		String id = in.readUTF();
+		if (type == UPSERT) {
+			ColumnValues row = new ColumnValues();
+			int noColumns = in.readInt();
+			for (int i = 0; i < noColumns; i++) {
+				String column = in.readUTF();
+				readValue(in, row, column);
+			}
+			putRow(table, id, row);
+		} else if (type == DELETE) {
+			removeRow(table, id);
+		} else {
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void openForAppending() throws IOException {
+		fileOut = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+	}
+
+	/**
+	 * Rewrites the log with one record per live row.
+	 */
+	public void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			File tempFile = new File(file.getPath() + ".compact");
+			FileOutputStream tempFileOut = new FileOutputStream(tempFile);
+			DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(tempFileOut));
+			try {
+				for (Map.Entry<String, Table> table : tables.entrySet()) {
+					for (Map.Entry<String, ColumnValues> row : table.getValue().rows.entrySet()) {
+						writeRecord(tempOut, asRecord(UPSERT, table.getKey(), row.getKey(), row.getValue()));
+					}
+				}
+				tempOut.flush();
+				tempFileOut.getFD().sync();
+			} finally {
+				tempOut.close();
+			}
+
+			closeForAppending();
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			openForAppending();
+
+			SysLog.logSysInfo("log-object-store", file.getName(), "compacted " + noRecords + " records to " + noRows);
+			noRecords = noRows;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public Persistent read(String tableName, String column, Object value, ObjectReader reader) throws SQLException {
+		ColumnValues row = null;
+		lock.readLock().lock();
+		try {
+			Table table = tables.get(tableName);
+			if (table != null) {
+				row = DataObject.ID.equals(column) ? table.rows.get(asKey(value)) : findRow(table, column, value);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return (row == null) ? null : reader.createObject(row.asResultSet());
+	}
+
+	/**
+	 * Builds the index of column on the first lookup; it is kept up to date from then on.
+	 */
+	protected ColumnValues findRow(Table table, String column, Object value) {
+		Map<String, Set<String>> index = table.indexes.get(column);
+		if (index == null) {
+			lock.readLock().unlock();
+			lock.writeLock().lock();
+			try {
+				index = table.indexes.get(column);
+				if (index == null) {
+					index = new HashMap<String, Set<String>>();
+					for (Map.Entry<String, ColumnValues> row : table.rows.entrySet()) {
+						addToIndex(index, row.getValue().getValue(column), row.getKey());
+					}
+					table.indexes.put(column, index);
+				}
+			} finally {
+				lock.readLock().lock();
+				lock.writeLock().unlock();
+			}
+		}
+
+		Set<String> ids = index.get(asKey(value));
+		return ((ids == null) || ids.isEmpty()) ? null : table.rows.get(ids.iterator().next());
+	}
+
+	/**
+	 * Creates the objects outside of the lock, from a copy of the rows.
+	 */
+	public void scan(String tableName, ObjectReader reader, ObjectConsumer consumer) throws SQLException {
+		List<ColumnValues> rows = new ArrayList<ColumnValues>();
+		lock.readLock().lock();
+		try {
+			Table table = tables.get(tableName);
+			if (table != null) {
+				rows.addAll(table.rows.values());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (ColumnValues row : rows) {
+			consumer.consume(reader.createObject(row.asResultSet()));
+		}
+	}
+
+	/**
+	 * The row of a new object has all of its columns right away.
+	 */
+	public void insert(String tableName, Persistent obj) throws SQLException {
+		upsert(tableName, obj);
+	}
+
+	/**
+	 *
+	 */
+	public void upsert(String tableName, Persistent obj) throws SQLException {
+		ColumnValues row = ColumnValues.getFromObject(obj);
+		String id = obj.getIdAsString();
+		lock.writeLock().lock();
+		try {
+			append(asRecord(UPSERT, tableName, id, row));
+			putRow(ensureTable(tableName), id, row);
+		} catch (IOException ex) {
+			throw asSqlException(ex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void delete(String tableName, Persistent obj) throws SQLException {
+		String id = obj.getIdAsString();
+		lock.writeLock().lock();
+		try {
+			append(asRecord(DELETE, tableName, id, null));
+			removeRow(ensureTable(tableName), id);
+		} catch (IOException ex) {
+			throw asSqlException(ex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public boolean isRelational() {
+		return false;
+	}
+
+	/**
+	 *
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closeForAppending();
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void closeForAppending() throws IOException {
+		if (out != null) {
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+			fileOut = null;
+		}
+	}
+
+	/**
+	 * Returns the number of live rows of tableName.
+	 */
+	public int getNoRows(String tableName) {
+		lock.readLock().lock();
+		try {
+			Table table = tables.get(tableName);
+			return (table == null) ? 0 : table.rows.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the highest numeric id of tableName, or 0 if there is none.
+	 */
+	public int getMaxId(String tableName) {
+		int result = 0;
+		lock.readLock().lock();
+		try {
+			Table table = tables.get(tableName);
+			if (table != null) {
+				for (String id : table.rows.keySet()) {
+					try {
+						result = Math.max(result, Integer.parseInt(id));
+					} catch (NumberFormatException ex) {
+						// not a numeric id
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoRecords() {
+		return noRecords;
+	}
+
+	/**
+	 *
+	 */
+	protected Table ensureTable(String tableName) {
+		Table result = tables.get(tableName);
+		if (result == null) {
+			result = new Table();
+			tables.put(tableName, result);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected void putRow(Table table, String id, ColumnValues row) {
+		ColumnValues oldRow = table.rows.put(id, row);
+		if (oldRow == null) {
+			noRows++;
+		}
+		for (Map.Entry<String, Map<String, Set<String>>> index : table.indexes.entrySet()) {
+			if (oldRow != null) {
+				removeFromIndex(index.getValue(), oldRow.getValue(index.getKey()), id);
+			}
+			addToIndex(index.getValue(), row.getValue(index.getKey()), id);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void removeRow(Table table, String id) {
+		ColumnValues oldRow = table.rows.remove(id);
+		if (oldRow != null) {
+			noRows--;
+			for (Map.Entry<String, Map<String, Set<String>>> index : table.indexes.entrySet()) {
+				removeFromIndex(index.getValue(), oldRow.getValue(index.getKey()), id);
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void addToIndex(Map<String, Set<String>> index, Object value, String id) {
+		String key = asKey(value);
+		Set<String> ids = index.get(key);
+		if (ids == null) {
+			ids = new LinkedHashSet<String>();
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	/**
+	 *
+	 */
+	protected void removeFromIndex(Map<String, Set<String>> index, Object value, String id) {
+		String key = asKey(value);
+		Set<String> ids = index.get(key);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Values of a column all have the same type, so their strings tell them apart
+	 */
+	protected static String asKey(Object value) {
+		return (value == null) ? null : value.toString();
+	}
+
+	/**
+	 *
+	 */
+	protected void append(byte[] record) throws IOException {
+		if (out == null) {
+			throw new IOException("log object store " + file + " is not open");
+		}
+		writeRecord(out, record);
+		out.flush();
+		noRecords++;
+	}
+
+	/**
+	 * A record is its length, its bytes, and their checksum.
+	 */
+	protected static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+		out.writeInt(record.length);
+		out.write(record);
+		out.writeLong(getChecksum(record));
+	}
+
+	/**
+	 *
+	 */
+	protected static long getChecksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	/**
+	 *
+	 */
+	protected static byte[] asRecord(byte type, String tableName, String id, ColumnValues row) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(tableName);
+		out.writeUTF(id);
+		if (row != null) {
+			out.writeInt(row.getColumns().size());
+			for (String column : row.getColumns()) {
+				out.writeUTF(column);
+				writeValue(out, row.getValue(column));
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 *
+	 */
+	protected static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if ((value instanceof Integer) || (value instanceof Short) || (value instanceof Byte)) {
+			out.writeByte(INT);
+			out.writeInt(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if ((value instanceof Double) || (value instanceof Float)) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else {
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static void readValue(DataInputStream in, ColumnValues row, String column) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			row.setValue(column, null, Types.OTHER);
+			break;
+		case BOOLEAN:
+			row.setValue(column, in.readBoolean(), Types.BOOLEAN);
+			break;
+		case INT:
+			row.setValue(column, in.readInt(), Types.INTEGER);
+			break;
+		case LONG:
+			row.setValue(column, in.readLong(), Types.BIGINT);
+			break;
+		case DOUBLE:
+			row.setValue(column, in.readDouble(), Types.DOUBLE);
+			break;
+		case STRING:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			row.setValue(column, new String(bytes, StandardCharsets.UTF_8), Types.VARCHAR);
+			break;
+		default:
+			throw new IOException("unknown value type " + type);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static SQLException asSqlException(IOException ex) {
+		return new SQLException("log object store failed: " + ex.getMessage(), ex);
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+/**
+ * A ModelSnapshot lets a server restart with warm caches. It holds the rows of the cached objects of each manager,
+ * by snapshot section, and the id counters of the globals table in a snapshot file, plus a write-ahead log of the rows
+ * committed since, by table. Both use the record format of LogObjectStore; the log starts with the id of its snapshot,
+ * so that a log left over from an older snapshot is ignored. On load, the snapshot is memory-mapped and the log is
+ * replayed; a logged row replaces the snapshot row in all sections of its table. Rows keep the versions of the objects,
+ * like database rows. Whoever loads a snapshot must check it against the database first, see ModelMain.restoreSnapshot().
+ */
+public class ModelSnapshot {
+
+	/**
+	 *
+	 */
+	public static final String SNAPSHOT_FILE_NAME = "model.snapshot";
+	public static final String LOG_FILE_NAME = "model.wal";
+
+	/**
+	 *
+	 */
+	protected static final int SNAPSHOT_MAGIC = 0x575A534E;
+	protected static final int LOG_MAGIC = 0x575A574C;
+	protected static final int VERSION = 2;
+
+	/**
+	 *
+	 */
+	protected File snapshotFile;
+	protected File logFile;
+
+	/**
+	 * The write-ahead log; null if there is no valid snapshot to log for
+	 */
+	protected FileOutputStream logFileOut = null;
+	protected DataOutputStream logOut = null;
+
+	/**
+	 * The contents of the loaded snapshot and log, until dropRows(); a logged row without columns marks an evicted object
+	 */
+	protected long snapshotId = 0;
+	protected Map<String, Integer> globals = new HashMap<String, Integer>();
+	protected Map<String, String> sectionTables = new HashMap<String, String>();
+	protected LogObjectStore rows = null;
+	protected LogObjectStore loggedRows = null;
+
+	/**
+	 * Statistics
+	 */
+	protected long noLoggedObjects = 0;
+
+	/**
+	 *
+	 */
+	public ModelSnapshot(File dir) {
+		dir.mkdirs();
+		snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+		logFile = new File(dir, LOG_FILE_NAME);
+	}
+
+	/**
+	 * Writes the cached objects of the given managers and the globals to a new snapshot and starts a new log for it.
+	 * Dirty objects are left out, as their rows may be newer than the database; they are logged once written.
+	 */
+	public synchronized void save(Collection<? extends ObjectManager> managers, Map<String, Integer> newGlobals) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long newSnapshotId = Math.max(startTime, snapshotId + 1);
+		int noObjects = 0;
+
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream tempFileOut = new FileOutputStream(tempFile);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempFileOut, 1 << 16));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(newSnapshotId);
+			out.writeInt(newGlobals.size());
+			for (Map.Entry<String, Integer> global : newGlobals.entrySet()) {
+				out.writeUTF(global.getKey());
+				out.writeInt(global.getValue());
+			}
+			out.writeInt(managers.size());
+			for (ObjectManager manager : managers) {
+				out.writeUTF(manager.getSnapshotSectionName());
+				out.writeUTF(manager.getSnapshotTableName());
+			}
+
+			for (ObjectManager manager : managers) {
+				String section = manager.getSnapshotSectionName();
+				for (Persistent obj : manager.getCachedObjects()) {
+					if (!obj.isDirty()) {
+						LogObjectStore.writeRecord(out, LogObjectStore.asRecord(LogObjectStore.UPSERT, section, obj.getIdAsString(), getRow(obj)));
+						noObjects++;
+					}
+				}
+			}
+			out.flush();
+			tempFileOut.getFD().sync();
+		} catch (SQLException ex) {
+			throw new IOException("could not write snapshot", ex);
+		} finally {
+			out.close();
+		}
+
+		closeLog();
+		Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		snapshotId = newSnapshotId;
+		globals = new HashMap<String, Integer>(newGlobals);
+		openLog(false);
+
+		SysLog.logSysInfo("snapshot", snapshotFile.getName(), "saved " + noObjects + " objects in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * Maps the snapshot into memory and replays its log; returns false if there is no readable snapshot with a log.
+	 * Logging continues after the last valid record of the log.
+	 */
+	public synchronized boolean load() throws IOException {
+		if (!snapshotFile.exists()) {
+			return false;
+		}
+
+		long startTime = System.currentTimeMillis();
+		rows = new LogObjectStore(snapshotFile);
+		FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+		try {
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+			if ((in.readInt() != SNAPSHOT_MAGIC) || (in.readInt() != VERSION)) {
+				SysLog.logSysError("snapshot " + snapshotFile + " has an unknown format; ignoring it");
+				rows = null;
+				return false;
+			}
+
+			snapshotId = in.readLong();
+			globals = new HashMap<String, Integer>();
+			int noGlobals = in.readInt();
+			for (int i = 0; i < noGlobals; i++) {
+				globals.put(in.readUTF(), in.readInt());
+			}
+			sectionTables = new HashMap<String, String>();
+			int noSections = in.readInt();
+			for (int i = 0; i < noSections; i++) {
+				sectionTables.put(in.readUTF(), in.readUTF());
+			}
+			rows.replay(in);
+		} catch (EOFException ex) {
+			SysLog.logSysError("snapshot " + snapshotFile + " is truncated; ignoring it");
+			rows = null;
+			return false;
+		} finally {
+			channel.close();
+		}
+
+		loggedRows = new LogObjectStore(logFile);
+		if (!replayLog()) {
+			SysLog.logSysError("snapshot " + snapshotFile + " has no log; ignoring it");
+			rows = null;
+			loggedRows = null;
+			return false;
+		}
+		openLog(true);
+
+		SysLog.logSysInfo("snapshot", snapshotFile.getName(), "loaded " + rows.getNoRecords() + " objects and " + loggedRows.getNoRecords() + " logged changes in " + (System.currentTimeMillis() - startTime) + "ms");
+		return true;
+	}
+
+	/**
+	 * Returns false if there is no log for the loaded snapshot; cuts off a broken last record.
+	 * Without its log, a snapshot may miss rows committed after it was saved.
+	 */
+	protected boolean replayLog() throws IOException {
+		if (!logFile.exists()) {
+			return false;
+		}
+
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+		try {
+			if ((in.readInt() != LOG_MAGIC) || (in.readLong() != snapshotId)) {
+				return false; // left over from another snapshot
+			}
+			validLength = 12 + loggedRows.replay(in);
+		} catch (EOFException ex) {
+			return false;
+		} finally {
+			in.close();
+		}
+
+		if (validLength < logFile.length()) {
+			SysLog.logSysError("snapshot log " + logFile + " has a broken record at " + validLength + "; cutting it off");
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			raf.setLength(validLength);
+			raf.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the log for appending; a new log is started if there is none for the current snapshot.
+	 */
+	protected void openLog(boolean append) throws IOException {
+		logFileOut = new FileOutputStream(logFile, append);
+		logOut = new DataOutputStream(new BufferedOutputStream(logFileOut));
+		if (!append) {
+			logOut.writeInt(LOG_MAGIC);
+			logOut.writeLong(snapshotId);
+			logOut.flush();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void closeLog() throws IOException {
+		if (logOut != null) {
+			logOut.flush();
+			logFileOut.getFD().sync();
+			logOut.close();
+			logOut = null;
+			logFileOut = null;
+		}
+	}
+
+	/**
+	 *
+	 */
+	public synchronized Map<String, Integer> getGlobals() {
+		return new HashMap<String, Integer>(globals);
+	}
+
+	/**
+	 * Passes the loaded objects of section to consumer, with the rows logged for them since the snapshot.
+	 * Objects created since the snapshot are not restored; they are read from the database when needed.
+	 */
+	public void restore(String section, ObjectReader reader, ObjectConsumer consumer) throws SQLException {
+		LogObjectStore.Table snapshotTable = (rows == null) ? null : rows.tables.get(section);
+		if (snapshotTable == null) {
+			return;
+		}
+
+		LogObjectStore.Table logTable = loggedRows.tables.get(sectionTables.get(section));
+		for (Map.Entry<String, ColumnValues> entry : snapshotTable.rows.entrySet()) {
+			ColumnValues row = entry.getValue();
+			if ((logTable != null) && logTable.rows.containsKey(entry.getKey())) {
+				row = logTable.rows.get(entry.getKey());
+			}
+			if (!row.getColumns().isEmpty()) {
+				consumer.consume(reader.createObject(row.asResultSet()));
+			}
+		}
+	}
+
+	/**
+	 * Frees the loaded rows once they have been restored.
+	 */
+	public synchronized void dropRows() {
+		rows = null;
+		loggedRows = null;
+	}
+
+	/**
+	 * Logs the row of obj, which was just committed to tableName; an object changed again since is logged as evicted
+	 * instead, so that it is read from the database after a restart.
+	 */
+	public synchronized void logObject(String tableName, Persistent obj) {
+		if (logOut == null) {
+			return;
+		}
+
+		try {
+			ColumnValues row = obj.isDirty() ? new ColumnValues() : getRow(obj);
+			LogObjectStore.writeRecord(logOut, LogObjectStore.asRecord(LogObjectStore.UPSERT, tableName, obj.getIdAsString(), row));
+			logOut.flush();
+			noLoggedObjects++;
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+			discard();
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+			discard();
+		}
+	}
+
+	/**
+	 * 
+	 */
+	protected static ColumnValues getRow(Persistent obj) throws SQLException {
+		ColumnValues result = ColumnValues.getFromObject(obj);
+		result.setValue(DataObject.VERSION, Long.valueOf(obj.getVersion()), Types.BIGINT);
+		return result;
+	}
+
+	/**
+	 * Logs that the snapshot row of obj must not be used, e.g. because obj was deleted from tableName.
+	 */
+	public synchronized void logEvictedObject(String tableName, Persistent obj) {
+		if (logOut == null) {
+			return;
+		}
+
+		try {
+			LogObjectStore.writeRecord(logOut, LogObjectStore.asRecord(LogObjectStore.UPSERT, tableName, obj.getIdAsString(), new ColumnValues()));
+			logOut.flush();
+			noLoggedObjects++;
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+			discard();
+		}
+	}
+
+	/**
+	 * Deletes snapshot and log, e.g. because they do not match the database or the log could not be written,
+	 * so that the next startup loads from the database; logging stops until the next save().
+	 */
+	public synchronized void discard() {
+		try {
+			closeLog();
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+		}
+
+		rows = null;
+		loggedRows = null;
+		snapshotFile.delete();
+		logFile.delete();
+		SysLog.logSysInfo("snapshot", snapshotFile.getName(), "discarded");
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void close() {
+		try {
+			closeLog();
+		} catch (IOException ex) {
+			SysLog.logThrowable(ex);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public synchronized long getNoLoggedObjects() {
+		return noLoggedObjects;
+	}
+
+	/**
+	 * An InputStream over a (memory-mapped) ByteBuffer
+	 */
+	protected static class ByteBufferInputStream extends InputStream {
+
+		protected ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer myBuffer) {
+			buffer = myBuffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int result = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, result);
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A NegativeCache remembers keys that the database did not know, so that repeated lookups need not query it again.
+ * Entries expire after timeToLive millis; whoever adds an object for a key must invalidate it.
+ * The cache holds at most maxSize keys; a maxSize of 0 disables it.
+ * Keys are kept in the order they were added, which is also the order they expire in, so adding a key only looks at
+ * the oldest keys: expired ones are dropped, and beyond maxSize, the oldest one is.
+ */
+public class NegativeCache<K> {
+
+	/**
+	 *
+	 */
+	protected String name;
+
+	/**
+	 *
+	 */
+	protected volatile int maxSize = 0;
+	protected volatile long timeToLive = 0; // in millis
+
+	/**
+	 * Expiration time in millis, by key, oldest first; guarded by itself
+	 */
+	protected Map<K, Long> keys = new LinkedHashMap<K, Long>() {
+		protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	/**
+	 * Statistics
+	 */
+	protected AtomicLong noSavedQueries = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public NegativeCache(String myName) {
+		name = myName;
+	}
+
+	/**
+	 *
+	 */
+	public NegativeCache(String myName, int myMaxSize, long myTimeToLive) {
+		this(myName);
+		configure(myMaxSize, myTimeToLive);
+	}
+
+	/**
+	 *
+	 */
+	public void configure(int newMaxSize, long newTimeToLive) {
+		if ((newMaxSize < 0) || (newTimeToLive < 0)) {
+			throw new IllegalArgumentException("negative size or time to live");
+		}
+
+		maxSize = newMaxSize;
+		timeToLive = newTimeToLive;
+		synchronized(keys) {
+			for (Iterator<K> i = keys.keySet().iterator(); (keys.size() > maxSize) && i.hasNext(); ) {
+				i.next();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	public boolean isEnabled() {
+		return (maxSize > 0) && (timeToLive > 0);
+	}
+
+	/**
+	 * Returns true if key is known to be missing; counts as saved query then.
+	 */
+	public boolean isMissing(K key) {
+		synchronized(keys) {
+			Long expirationTime = keys.get(key);
+			if (expirationTime == null) {
+				return false;
+			}
+
+			if (expirationTime < System.currentTimeMillis()) {
+				keys.remove(key);
+				return false;
+			}
+		}
+
+		noSavedQueries.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Remembers that there is no object for key.
+	 */
+	public void putMissing(K key) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized(keys) {
+			removeExpiredKeys(now);
+			keys.remove(key); // so that key moves to the end
+			keys.put(key, now + timeToLive);
+		}
+	}
+
+	/**
+	 * Removes expired keys from the start, up to the first key that has not expired yet.
+	 */
+	protected void removeExpiredKeys(long now) {
+		for (Iterator<Long> i = keys.values().iterator(); i.hasNext(); ) {
+			if (i.next() >= now) {
+				return;
+			}
+			i.remove();
+		}
+	}
+
+	/**
+	 * Forgets key, e.g. because an object for it has been added.
+	 */
+	public void invalidate(K key) {
+		synchronized(keys) {
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void clear() {
+		synchronized(keys) {
+			keys.clear();
+		}
+	}
+
+	/**
+	 *
+	 */
+	public int size() {
+		synchronized(keys) {
+			return keys.size();
+		}
+	}
+
+	/**
+	 * Number of lookups answered without querying the database
+	 */
+	public long getNoSavedQueries() {
+		return noSavedQueries.get();
+	}
+
+	/**
+	 *
+	 */
+	public void logStatistics() {
+		SysLog.logSysInfo("negative-cache", name, asStatisticsString());
+	}
+
+	/**
+	 *
+	 */
+	public String asStatisticsString() {
+		return "size=" + size()
+			+ ", maxSize=" + maxSize
+			+ ", timeToLive=" + timeToLive
+			+ ", savedQueries=" + noSavedQueries.get();
+	}
+
+}
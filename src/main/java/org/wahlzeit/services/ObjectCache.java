@@ -0,0 +1,527 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * An ObjectCache is a size-bounded map from ids to objects that evicts the least recently used objects first; to evict
+ * without sorting all objects, it takes the least recently used of a small sample, see findEvictionCandidate().
+ * Dirty Persistent objects are never evicted, as they would lose their changes; so the cache may temporarily exceed its size.
+ * Subclasses can plug in a different eviction policy by overriding isEvictable().
+ * The cache keeps hit, miss, eviction, and load statistics; getOrLoad() records load times itself.
+ * It is safe for concurrent use without a global lock: lookups only touch a ConcurrentHashMap and an access stamp,
+ * and one thread at a time evicts. getOrLoad() loads a missing object only once, even if many threads miss it at once;
+ * the other threads wait for that load as part of a SingleFlight.
+ * Keys that the loader did not find are remembered in a NegativeCache, if it is enabled; adding an object for a key clears it.
+ */
+public class ObjectCache<K, V> {
+
+	/**
+	 * Maximum size that stands for "no limit"
+	 */
+	public static final int UNBOUNDED = 0;
+
+	/**
+	 * Eviction goes below the maximum size by 1/EVICTION_DIVISOR of it, so that not every put() has to evict
+	 */
+	public static final int EVICTION_DIVISOR = 20;
+
+	/**
+	 * Number of evictable objects compared to pick the one to evict
+	 */
+	public static final int EVICTION_SAMPLE_SIZE = 16;
+
+	/**
+	 * Number of objects looked at for a sample once it has a candidate, so that sparse evictable objects are cheap
+	 */
+	public static final int EVICTION_SCAN_LIMIT = 256;
+
+	/**
+	 *
+	 */
+	protected static class Entry<V> {
+		protected final V value;
+		protected volatile long lastAccessTime;
+
+		protected Entry(V myValue, long myLastAccessTime) {
+			value = myValue;
+			lastAccessTime = myLastAccessTime;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected String name;
+
+	/**
+	 *
+	 */
+	protected volatile int maxSize = UNBOUNDED;
+
+	/**
+	 *
+	 */
+	protected ConcurrentMap<K, Entry<V>> objects = new ConcurrentHashMap<K, Entry<V>>();
+
+	/**
+	 * Logical clock for access stamps, so that eviction can find the least recently used objects
+	 */
+	protected AtomicLong clock = new AtomicLong();
+
+	/**
+	 *
+	 */
+	protected Lock evictionLock = new ReentrantLock();
+
+	/**
+	 * Where the next sample for eviction starts, so that samples take turns over all objects, and the candidates
+	 * sampled but not yet evicted; guarded by evictionLock
+	 */
+	protected Iterator<Map.Entry<K, Entry<V>>> evictionCursor = null;
+	protected List<Map.Entry<K, Entry<V>>> evictionPool = new ArrayList<Map.Entry<K, Entry<V>>>();
+
+	/**
+	 * Size at which eviction last could not reach its target as too many objects were dirty, or 0
+	 */
+	protected volatile int failedEvictionSize = 0;
+
+	/**
+	 * Loads after misses that are in flight
+	 */
+	protected SingleFlight<K, V> loads = new SingleFlight<K, V>();
+
+	/**
+	 * Keys the loader did not find; disabled unless configured
+	 */
+	protected NegativeCache<K> missingKeys;
+
+	/**
+	 * Statistics
+	 */
+	protected AtomicLong noHits = new AtomicLong();
+	protected AtomicLong noMisses = new AtomicLong();
+	protected AtomicLong noEvictions = new AtomicLong();
+	protected AtomicLong noLoads = new AtomicLong();
+	protected AtomicLong totalLoadTime = new AtomicLong(); // in nanos
+
+	/**
+	 *
+	 */
+	public ObjectCache(String myName) {
+		name = myName;
+		missingKeys = new NegativeCache<K>(myName);
+	}
+
+	/**
+	 *
+	 */
+	public ObjectCache(String myName, int myMaxSize) {
+		this(myName);
+		setMaxSize(myMaxSize);
+	}
+
+	/**
+	 *
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of objects, or UNBOUNDED; evicts objects if necessary.
+	 */
+	public void setMaxSize(int newMaxSize) {
+		if (newMaxSize < 0) {
+			throw new IllegalArgumentException("negative cache size: " + newMaxSize);
+		}
+
+		maxSize = newMaxSize;
+		failedEvictionSize = 0;
+		evictIfNecessary();
+	}
+
+	/**
+	 *
+	 */
+	public NegativeCache<K> getNegativeCache() {
+		return missingKeys;
+	}
+
+	/**
+	 * Returns the object for key or null; counts as hit or miss.
+	 */
+	public V get(K key) {
+		Entry<V> entry = objects.get(key);
+		if (entry == null) {
+			noMisses.incrementAndGet();
+			return null;
+		}
+
+		entry.lastAccessTime = clock.incrementAndGet();
+		noHits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Returns the object for key; on a miss, loads and adds it using loader.
+	 * Concurrent misses of the same key share one load, see SingleFlight.
+	 */
+	public V getOrLoad(K key, final ObjectLoader<K, V> loader) throws SQLException {
+		V result = get(key);
+		if ((result != null) || missingKeys.isMissing(key)) {
+			return result;
+		}
+
+		return loads.load(key, new ObjectLoader<K, V>() {
+			public V load(K key) throws SQLException {
+				return doLoad(key, loader);
+			}
+		});
+	}
+
+	/**
+	 * Runs in the one thread that loads key; a load that just finished may have added the object in the meantime.
+	 */
+	protected V doLoad(K key, ObjectLoader<K, V> loader) throws SQLException {
+		Entry<V> entry = objects.get(key);
+		if (entry != null) {
+			entry.lastAccessTime = clock.incrementAndGet();
+			return entry.value;
+		}
+
+		long startTime = System.nanoTime();
+		V result = loader.load(key);
+		recordLoad(System.nanoTime() - startTime);
+		if (result != null) {
+			return putIfAbsent(key, result);
+		}
+
+		missingKeys.putMissing(key);
+		if (objects.containsKey(key)) {
+			// added while loading
+			missingKeys.invalidate(key);
+		}
+		return null;
+	}
+
+	/**
+	 * Does neither count as hit or miss nor as use of the object.
+	 */
+	public boolean containsKey(K key) {
+		return objects.containsKey(key);
+	}
+
+	/**
+	 *
+	 */
+	public void put(K key, V value) {
+		objects.put(key, new Entry<V>(value, clock.incrementAndGet()));
+		missingKeys.invalidate(key);
+		evictIfNecessary();
+	}
+
+	/**
+	 * Adds value unless there already is an object for key; returns the object that is now cached.
+	 */
+	public V putIfAbsent(K key, V value) {
+		Entry<V> entry = new Entry<V>(value, clock.incrementAndGet());
+		Entry<V> current = objects.putIfAbsent(key, entry);
+		missingKeys.invalidate(key);
+		if (current != null) {
+			current.lastAccessTime = entry.lastAccessTime;
+			return current.value;
+		}
+
+		evictIfNecessary();
+		return value;
+	}
+
+	/**
+	 *
+	 */
+	public V remove(K key) {
+		Entry<V> entry = objects.remove(key);
+		return (entry == null) ? null : entry.value;
+	}
+
+	/**
+	 * Removes the object for key because its row changed elsewhere, to the given version, and forgets that key was
+	 * missing; objects that cannot be evicted stay, and so do objects that already have that version or a later one.
+	 * Version 0 stands for any version. Returns true if there is no object for key now.
+	 */
+	public boolean invalidate(K key, long version) {
+		missingKeys.invalidate(key);
+		Entry<V> entry = objects.get(key);
+		if ((entry == null) || !isEvictable(entry.value)) {
+			return entry == null;
+		}
+		if ((version > 0) && (entry.value instanceof Persistent) && (((Persistent) entry.value).getVersion() >= version)) {
+			return false;
+		}
+
+		objects.remove(key, entry);
+		return true;
+	}
+
+	/**
+	 * Removes all objects that can be evicted and forgets all missing keys, e.g. because changes made elsewhere may
+	 * have been missed. Returns the number of objects removed.
+	 */
+	public int invalidateAll() {
+		missingKeys.clear();
+		int result = 0;
+		for (Map.Entry<K, Entry<V>> entry : objects.entrySet()) {
+			if (isEvictable(entry.getValue().value) && objects.remove(entry.getKey(), entry.getValue())) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public void clear() {
+		objects.clear();
+		missingKeys.clear();
+	}
+
+	/**
+	 *
+	 */
+	public int size() {
+		return objects.size();
+	}
+
+	/**
+	 *
+	 */
+	public boolean isEmpty() {
+		return objects.isEmpty();
+	}
+
+	/**
+	 * Returns a copy, so callers may iterate while the cache changes.
+	 */
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(objects.size());
+		for (Entry<V> entry : objects.values()) {
+			result.add(entry.value);
+		}
+		return result;
+	}
+
+	/**
+	 * Evicts least recently used objects if the cache exceeds its maximum size; threads that find another
+	 * thread evicting leave it to that thread. After eviction failed for dirty objects, it is only tried again once
+	 * the cache has grown by another 1/EVICTION_DIVISOR, so that looking at all objects stays rare.
+	 */
+	protected void evictIfNecessary() {
+		int currentMaxSize = maxSize;
+		int size = objects.size();
+		if ((currentMaxSize == UNBOUNDED) || (size <= currentMaxSize)) {
+			return;
+		}
+		int currentFailedSize = failedEvictionSize;
+		if ((currentFailedSize > 0) && (size < currentFailedSize + Math.max(currentFailedSize / EVICTION_DIVISOR, 1))) {
+			return;
+		}
+
+		if (evictionLock.tryLock()) {
+			try {
+				evict(currentMaxSize - (currentMaxSize / EVICTION_DIVISOR));
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Evicts least recently used objects until the cache has targetSize objects or only unevictable objects are left.
+	 * Objects used since eviction started, e.g. the one just put, are never evicted, so a put() always succeeds.
+	 */
+	protected void evict(int targetSize) {
+		long startTime = clock.get();
+		while (objects.size() > targetSize) {
+			Map.Entry<K, Entry<V>> candidate = findEvictionCandidate(startTime);
+			if (candidate == null) {
+				failedEvictionSize = objects.size();
+				return;
+			}
+
+			if (objects.remove(candidate.getKey(), candidate.getValue())) {
+				noEvictions.incrementAndGet();
+			}
+		}
+		failedEvictionSize = 0;
+	}
+
+	/**
+	 * Returns the least recently used of EVICTION_SAMPLE_SIZE evictable objects last used before startTime, or null if
+	 * there is no such object. Candidates not returned stay in the eviction pool for the next call, so the cursor need
+	 * not pass them again; it stops early after EVICTION_SCAN_LIMIT objects if it found one.
+	 */
+	protected Map.Entry<K, Entry<V>> findEvictionCandidate(long startTime) {
+		for (Iterator<Map.Entry<K, Entry<V>>> i = evictionPool.iterator(); i.hasNext(); ) {
+			if (!isEvictionCandidate(i.next(), startTime)) {
+				i.remove();
+			}
+		}
+
+		int maxNoEntries = objects.size();
+		for (int i = 0; (i < maxNoEntries) && (evictionPool.size() < EVICTION_SAMPLE_SIZE); i++) {
+			if (!evictionPool.isEmpty() && (i >= EVICTION_SCAN_LIMIT)) {
+				break;
+			}
+
+			if ((evictionCursor == null) || !evictionCursor.hasNext()) {
+				evictionCursor = objects.entrySet().iterator();
+				if (!evictionCursor.hasNext()) {
+					break;
+				}
+			}
+
+			Map.Entry<K, Entry<V>> entry = evictionCursor.next();
+			if (isEvictionCandidate(entry, startTime) && !evictionPool.contains(entry)) {
+				evictionPool.add(entry);
+			}
+		}
+
+		if (evictionPool.isEmpty()) {
+			return null;
+		}
+
+		int result = 0;
+		for (int i = 1; i < evictionPool.size(); i++) {
+			if (evictionPool.get(i).getValue().lastAccessTime < evictionPool.get(result).getValue().lastAccessTime) {
+				result = i;
+			}
+		}
+		return evictionPool.remove(result);
+	}
+
+	/**
+	 * Returns whether entry is still cached, evictable, and last used before startTime.
+	 */
+	protected boolean isEvictionCandidate(Map.Entry<K, Entry<V>> entry, long startTime) {
+		Entry<V> value = entry.getValue();
+		return (objects.get(entry.getKey()) == value) && (value.lastAccessTime < startTime) && isEvictable(value.value);
+	}
+
+	/**
+	 * Dirty Persistent objects must stay in memory until they have been written.
+	 */
+	protected boolean isEvictable(V value) {
+		return !(value instanceof Persistent) || !((Persistent) value).isDirty();
+	}
+
+	/**
+	 * Records the time it took to load an object after a miss.
+	 */
+	public void recordLoad(long loadTime) {
+		noLoads.incrementAndGet();
+		totalLoadTime.addAndGet(loadTime);
+	}
+
+	/**
+	 *
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoEvictions() {
+		return noEvictions.get();
+	}
+
+	/**
+	 *
+	 */
+	public long getNoLoads() {
+		return noLoads.get();
+	}
+
+	/**
+	 * Number of misses that waited for the load of another miss instead of loading themselves
+	 */
+	public long getNoCoalescedLoads() {
+		return loads.getNoCoalescedLoads();
+	}
+
+	/**
+	 *
+	 */
+	public double getHitRate() {
+		long hits = noHits.get();
+		long noRequests = hits + noMisses.get();
+		return (noRequests == 0) ? 0.0 : (double) hits / noRequests;
+	}
+
+	/**
+	 *
+	 */
+	public double getMissRate() {
+		long misses = noMisses.get();
+		long noRequests = noHits.get() + misses;
+		return (noRequests == 0) ? 0.0 : (double) misses / noRequests;
+	}
+
+	/**
+	 * in milliseconds
+	 */
+	public double getAverageLoadTime() {
+		long loads = noLoads.get();
+		return (loads == 0) ? 0.0 : totalLoadTime.get() / (loads * 1000000.0);
+	}
+
+	/**
+	 *
+	 */
+	public void logStatistics() {
+		SysLog.logSysInfo("object-cache", name, asStatisticsString());
+	}
+
+	/**
+	 *
+	 */
+	public String asStatisticsString() {
+		return "size=" + objects.size()
+			+ ", maxSize=" + maxSize
+			+ ", hits=" + noHits.get()
+			+ ", misses=" + noMisses.get()
+			+ ", hitRate=" + getHitRate()
+			+ ", missRate=" + getMissRate()
+			+ ", evictions=" + noEvictions.get()
+			+ ", loads=" + noLoads.get()
+			+ ", coalescedLoads=" + loads.getNoCoalescedLoads()
+			+ ", savedQueries=" + missingKeys.getNoSavedQueries()
+			+ ", avgLoadTime=" + getAverageLoadTime();
+	}
+
+}
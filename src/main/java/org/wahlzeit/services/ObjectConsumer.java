@@ -0,0 +1,20 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+
+/**
+ * An ObjectConsumer receives Persistent objects one by one while an ObjectManager streams them from the database.
+ */
+public interface ObjectConsumer {
+
+	/**
+	 * 
+	 */
+	public void consume(Persistent obj) throws SQLException;
+
+}
@@ -0,0 +1,20 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+
+/**
+ * An ObjectLoader reads the object for a key that an ObjectCache does not hold, usually from the database.
+ */
+public interface ObjectLoader<K, V> {
+
+	/**
+	 * Returns null if there is no object for key.
+	 */
+	public V load(K key) throws SQLException;
+
+}
@@ -12,62 +12,159 @@ import java.util.*;
 /**
  * An ObjectManager creates/reads/updates/deletes Persistent (objects) from a database.
  * It is an abstract superclass that relies on an inheritance interface and the Persistent interface.
+ * Reads by key, scans, inserts, and deletes go through the ObjectStore; set-based SQL requires a relational store.
  */
 public abstract class ObjectManager {
 	
 	/**
-	 * All objects are now saved under this root key. In case of multi-tenancy this may change to several keys.
+	 * Number of times a write that conflicted with another writer is merged and tried again
 	 */
-	public DatabaseConnection getDatabaseConnection() throws SQLException {
-		return SessionManager.getDatabaseConnection();
+	public static final int MAX_NO_CONFLICT_RETRIES = 3;
+	
+	/**
+	 * The storage backend of all managers; see SysConfig.OBJECT_STORE
+	 */
+	protected static ObjectStore objectStore = new JdbcObjectStore();
+	
+	/**
+	 * 
+	 */
+	public static ObjectStore getObjectStore() {
+		return objectStore;
 	}
-	    
+	
 	/**
 	 * 
 	 */
-	protected PreparedStatement getReadingStatement(String stmt) throws SQLException {
-    	DatabaseConnection dbc = getDatabaseConnection();
-    	return dbc.getReadingStatement(stmt);
+	public static synchronized void setObjectStore(ObjectStore newObjectStore) {
+		objectStore = newObjectStore;
+	}
+	
+	/**
+	 * Returns true if the managers may use SQL beyond the operations of ObjectStore.
+	 */
+	public static boolean hasRelationalStore() {
+		return objectStore.isRelational();
 	}
 	
+	/**
+	 * The snapshot whose log records committed rows, or null
+	 */
+	protected static volatile ModelSnapshot modelSnapshot = null;
+	
 	/**
 	 * 
 	 */
-	protected PreparedStatement getUpdatingStatement(String stmt) throws SQLException {
-    	DatabaseConnection dbc = getDatabaseConnection();
-    	return dbc.getUpdatingStatement(stmt);
+	public static ModelSnapshot getModelSnapshot() {
+		return modelSnapshot;
 	}
 	
 	/**
 	 * 
 	 */
-	protected Persistent readObject(PreparedStatement stmt, int value) throws SQLException {
-		Persistent result = null;
-		stmt.setInt(1, value);
-		SysLog.logQuery(stmt);
-		ResultSet rset = stmt.executeQuery();
-		if (rset.next()) {
-			result = createObject(rset);
-		}
-
-		return result;
+	public static synchronized void setModelSnapshot(ModelSnapshot newModelSnapshot) {
+		modelSnapshot = newModelSnapshot;
 	}
 	
+	/**
+	 * Tells other nodes sharing the database which cached objects this node wrote; null if there are no other nodes
+	 */
+	protected static volatile CacheInvalidator cacheInvalidator = null;
+	
 	/**
 	 * 
 	 */
-	protected Persistent readObject(PreparedStatement stmt, String value) throws SQLException {
-		Persistent result = null;
-		stmt.setString(1, value);
-		SysLog.logQuery(stmt);
-		ResultSet rset = stmt.executeQuery();
-		if (rset.next()) {
-			result = createObject(rset);
+	public static CacheInvalidator getCacheInvalidator() {
+		return cacheInvalidator;
+	}
+	
+	/**
+	 * 
+	 */
+	public static synchronized void setCacheInvalidator(CacheInvalidator newCacheInvalidator) {
+		cacheInvalidator = newCacheInvalidator;
+	}
+	
+	/**
+	 * 
+	 */
+	protected final ObjectReader objectReader = new ObjectReader() {
+		public Persistent createObject(ResultSet rset) throws SQLException {
+			return readVersion(ObjectManager.this.createObject(rset), rset);
+		}
+	};
+	
+	/**
+	 * 
+	 */
+	protected final ObjectReader shallowObjectReader = new ObjectReader() {
+		public Persistent createObject(ResultSet rset) throws SQLException {
+			return readVersion(createShallowObject(rset), rset);
+		}
+	};
+	
+	/**
+	 * All objects are now saved under this root key. In case of multi-tenancy this may change to several keys.
+	 */
+	public DatabaseConnection getDatabaseConnection() throws SQLException {
+		DatabaseConnection result = SessionManager.getDatabaseConnection();
+		if (result == null) {
+			throw new SQLException("no database connection available");
+		}
+		return result;
+	}
+	    
+	/**
+	 * Returns the connection for queries, which may be the replica's; see Session.ensureReadingDatabaseConnection().
+	 */
+	public DatabaseConnection getReadingDatabaseConnection() throws SQLException {
+		DatabaseConnection result = SessionManager.getThreadLocalSession().ensureReadingDatabaseConnection();
+		if (result == null) {
+			throw new SQLException("no database connection available");
 		}
-
 		return result;
 	}
 	
+	/**
+	 * Returns the connection to the primary, for statements that write; the session then reads its writes from the primary.
+	 */
+	public DatabaseConnection getWritingDatabaseConnection() throws SQLException {
+		SessionManager.getThreadLocalSession().registerWrite();
+		return getDatabaseConnection();
+	}
+	    
+	/**
+	 * Queries may go to the replica; statements that write or lock rows use getWritingStatement().
+	 * As a safeguard, a statement that is not a query still goes to the primary.
+	 */
+	protected PreparedStatement getReadingStatement(String stmt) throws SQLException {
+    	DatabaseConnection dbc = DatabaseConnection.isQuery(stmt) ? getReadingDatabaseConnection() : getWritingDatabaseConnection();
+    	return dbc.getReadingStatement(stmt);
+	}
+	
+	/**
+	 * For statements that write or lock rows; they always go to the primary.
+	 */
+	protected PreparedStatement getWritingStatement(String stmt) throws SQLException {
+    	DatabaseConnection dbc = getWritingDatabaseConnection();
+    	return dbc.getWritingStatement(stmt);
+	}
+	
+	/**
+	 * 
+	 */
+	protected PreparedStatement getUpdatingStatement(String stmt) throws SQLException {
+    	DatabaseConnection dbc = getWritingDatabaseConnection();
+    	return dbc.getUpdatingStatement(stmt);
+	}
+	
+	/**
+	 * Reads the object of the row of tableName whose column has value, or null if there is none.
+	 */
+	protected Persistent readObject(String tableName, String column, Object value) throws SQLException {
+		return objectStore.read(tableName, column, value, objectReader);
+	}
+	
 	/**
 	 * 
 	 */
@@ -75,7 +172,7 @@ public abstract class ObjectManager {
 		SysLog.logQuery(stmt);
 		ResultSet rset = stmt.executeQuery();
 		while (rset.next()) {
-			Persistent obj = createObject(rset);
+			Persistent obj = objectReader.createObject(rset);
 			result.add(obj);
 		}
 	}
@@ -88,49 +185,649 @@ public abstract class ObjectManager {
 		SysLog.logQuery(stmt);
 		ResultSet rset = stmt.executeQuery();
 		while (rset.next()) {
-			Persistent obj = createObject(rset);
+			Persistent obj = objectReader.createObject(rset);
 			result.add(obj);
 		}
 	}
 		
+	/**
+	 * Sets the version of obj, if any, to the one of its row; only the rows of relational stores have versions.
+	 */
+	protected Persistent readVersion(Persistent obj, ResultSet rset) throws SQLException {
+		if ((obj != null) && objectStore.isRelational()) {
+			obj.setVersion(rset.getLong(DataObject.VERSION));
+		}
+		return obj;
+	}
+	
+	/**
+	 * Creates an object for a bulk load, which resolves the object's references for all rows at once afterwards.
+	 * By default, this is the same as createObject().
+	 */
+	protected Persistent createShallowObject(ResultSet rset) throws SQLException {
+		return createObject(rset);
+	}
+	
+	/**
+	 * Creates an SQL array of values, e.g. for "WHERE id = ANY(?)" conditions.
+	 */
+	protected Array createArray(String sqlTypeName, Collection<?> values) throws SQLException {
+		Connection conn = getDatabaseConnection().getRdbmsConnection();
+		return conn.createArrayOf(sqlTypeName, values.toArray());
+	}
+	
+	/**
+	 * Passes all objects of tableName to consumer; the JDBC store streams them through a server-side cursor.
+	 * Objects are created with createShallowObject(), so the caller has to resolve their references.
+	 */
+	protected void scanObjects(String tableName, ObjectConsumer consumer) throws SQLException {
+		objectStore.scan(tableName, shallowObjectReader, consumer);
+	}
+	
+	/**
+	 * Passes the result of query to reader through a server-side cursor, like scanObjects(); needs a relational store.
+	 */
+	protected void scanRows(String query, ResultSetReader reader) throws SQLException {
+		if (!(objectStore instanceof JdbcObjectStore)) {
+			throw new SQLException("no relational store to run query on: " + query);
+		}
+		
+		((JdbcObjectStore) objectStore).scanRows(query, reader);
+	}
+	
 	/**
 	 * 
 	 */
 	protected abstract Persistent createObject(ResultSet rset) throws SQLException;
 
 	/**
-	 * 
+	 * Adds the row of the new object obj to tableName. If that fails, an active unit of work rolls back and forgets obj,
+	 * as it was registered before; without one, obj is forgotten right away.
 	 */
-	protected void createObject(Persistent obj, PreparedStatement stmt, int value) throws SQLException {
-		stmt.setInt(1, value);
-		SysLog.logQuery(stmt);
-		stmt.executeUpdate();
+	protected void insertObject(Persistent obj, String tableName) throws SQLException {
+		registerNewObject(obj);
+		try {
+			objectStore.insert(tableName, obj);
+		} catch (SQLException ex) {
+			insertFailed(obj);
+			throw ex;
+		} catch (RuntimeException ex) {
+			insertFailed(obj);
+			throw ex;
+		}
+		publishObjects(Collections.singleton(obj));
+	}
+	
+	/**
+	 * Lets the active unit of work, if any, know about obj, so that this manager can forget obj on rollback.
+	 */
+	protected void registerNewObject(Persistent obj) {
+		UnitOfWork unitOfWork = UnitOfWork.getActiveUnitOfWork();
+		if (unitOfWork != null) {
+			unitOfWork.registerNew(this, obj);
+		}
 	}
 	
 	/**
 	 * 
 	 */
-	protected void createObject(Persistent obj, PreparedStatement stmt, String value) throws SQLException {
-		stmt.setString(1, value);
+	protected void insertFailed(Persistent obj) {
+		if (UnitOfWork.getActiveUnitOfWork() != null) {
+			markRollbackOnly();
+		} else {
+			forgetObject(obj);
+		}
+	}
+	
+	/**
+	 * Makes the active unit of work, if any, roll back after a write failed, as the failed statement aborted its
+	 * transaction; manager methods that only log the failure cannot let the request commit then.
+	 */
+	protected void markRollbackOnly() {
+		UnitOfWork unitOfWork = UnitOfWork.getActiveUnitOfWork();
+		if (unitOfWork != null) {
+			unitOfWork.setRollbackOnly();
+		}
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Removes obj, whose insertion was rolled back, from caches and indexes.
+	 */
+	protected void forgetObject(Persistent obj) {
+		// do nothing
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * A unit of work writes the objects of managers with lower ranks first, so that rows are written before rows referring to them.
+	 */
+	protected int getWriteRank() {
+		return 0;
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Returns the table of the objects this manager caches, or null if it caches none.
+	 */
+	public String getCacheTableName() {
+		return null;
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Returns the key this manager caches obj under; other nodes pass it to invalidateObject().
+	 */
+	public String getCacheKey(Persistent obj) {
+		return obj.getIdAsString();
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Drops the object cached under key, which another node wrote as version, so that it is read again when needed.
+	 * Called by the thread of the CacheInvalidator.
+	 */
+	protected void invalidateObject(String key, long version) {
+		// do nothing
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Drops all cached objects that can be read again, as writes of other nodes may have been missed.
+	 * Called by the thread of the CacheInvalidator.
+	 */
+	protected void invalidateAllObjects() {
+		// do nothing
+	}
+	
+	/**
+	 * Tells the other nodes, if any, that objects were written; within a transaction, they are told on commit.
+	 */
+	protected void publishObjects(Collection<? extends Persistent> objects) throws SQLException {
+		publishObjects(objects, false);
+	}
+	
+	/**
+	 * Deleted objects are published without a version, so that all nodes drop them.
+	 */
+	protected void publishObjects(Collection<? extends Persistent> objects, boolean areDeleted) throws SQLException {
+		Map<String, Long> versionsByKey = new LinkedHashMap<String, Long>();
+		for (Persistent obj : objects) {
+			versionsByKey.put(getCacheKey(obj), Long.valueOf(areDeleted ? 0 : obj.getVersion()));
+		}
+		publishVersions(versionsByKey);
+	}
+	
+	/**
+	 * Tells the other nodes, if any, that the objects cached under the keys were written as the given versions,
+	 * e.g. by a statement that wrote rows of objects not in memory.
+	 */
+	protected void publishVersions(Map<String, Long> versionsByKey) throws SQLException {
+		CacheInvalidator invalidator = cacheInvalidator;
+		String tableName = getCacheTableName();
+		if ((invalidator == null) || (tableName == null) || !objectStore.isRelational()) {
+			return;
+		}
+		
+		invalidator.publish(getWritingDatabaseConnection(), tableName, versionsByKey);
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Returns the table of the objects this manager keeps in model snapshots, or null if it keeps none.
+	 */
+	public String getSnapshotTableName() {
+		return getCacheTableName();
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Managers that cache objects of the same table need sections of their own.
+	 */
+	public String getSnapshotSectionName() {
+		return getSnapshotTableName();
+	}
+	
+	/**
+	 * @methodproperty hook
+	 */
+	public Collection<? extends Persistent> getCachedObjects() {
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * Puts the objects of this manager's section of snapshot into its cache, see restoreObjects().
+	 */
+	public void restoreSnapshot(ModelSnapshot snapshot) throws SQLException {
+		final List<Persistent> objects = new ArrayList<Persistent>();
+		snapshot.restore(getSnapshotSectionName(), shallowObjectReader, new ObjectConsumer() {
+			public void consume(Persistent obj) {
+				objects.add(obj);
+			}
+		});
+		restoreObjects(objects);
+		SysLog.logSysInfo("snapshot", getSnapshotSectionName(), "restored " + objects.size() + " objects");
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Caches the shallow objects of a snapshot; like after scanObjects(), their references need to be resolved.
+	 */
+	protected void restoreObjects(Collection<Persistent> objects) throws SQLException {
+		// do nothing
+	}
+	
+	/**
+	 * Logs the rows of objects, which were just committed, to the model snapshot, if any.
+	 */
+	protected void logCommittedObjects(Collection<? extends Persistent> objects) {
+		ModelSnapshot snapshot = modelSnapshot;
+		String tableName = getSnapshotTableName();
+		if ((snapshot != null) && (tableName != null)) {
+			for (Persistent obj : objects) {
+				snapshot.logObject(tableName, obj);
+			}
+		}
+	}
+	
+	/**
+	 * Logs objects, written as part of a transaction of the caller, as evicted; a unit of work logs them again on commit.
+	 */
+	protected void logEvictedObjects(Collection<? extends Persistent> objects) {
+		ModelSnapshot snapshot = modelSnapshot;
+		String tableName = getSnapshotTableName();
+		if ((snapshot != null) && (tableName != null)) {
+			for (Persistent obj : objects) {
+				snapshot.logEvictedObject(tableName, obj);
+			}
+		}
+	}
+	
+	/**
+	 * Logs obj, which was just written; if the write is part of a transaction of the caller, obj is logged as evicted,
+	 * as it is not known whether the transaction commits.
+	 */
+	protected void logUpdatedObject(Persistent obj) throws SQLException {
+		ModelSnapshot snapshot = modelSnapshot;
+		String tableName = getSnapshotTableName();
+		if ((snapshot == null) || (tableName == null)) {
+			return;
+		}
+		
+		if (getDatabaseConnection().getRdbmsConnection().getAutoCommit()) {
+			snapshot.logObject(tableName, obj);
+		} else {
+			snapshot.logEvictedObject(tableName, obj);
+		}
+	}
+	
+	/**
+	 * Writes the columns obj changed since it was last written with a single UPDATE of tableName;
+	 * the object is identified by the "id" column. An object that only changed some columns sends only those.
+	 * The UPDATE only applies to the version of the row obj read or last wrote, see writeObject().
+	 * If a unit of work is active, obj is only registered with it and written on commit.
+	 */
+	protected void updateObject(Persistent obj, String tableName) throws SQLException {
+		if (!obj.isDirty()) {
+			return;
+		}
+		
+		if (!objectStore.isRelational()) {
+			upsertObject(obj, tableName);
+			return;
+		}
+		
+		UnitOfWork unitOfWork = UnitOfWork.getActiveUnitOfWork();
+		if (unitOfWork != null) {
+			unitOfWork.registerDirty(this, obj, tableName);
+			return;
+		}
+		
+		Set<String> dirtyColumns = obj.resetDirtyColumns();
+		try {
+			ColumnValues values = getDirtyColumnValues(obj, dirtyColumns);
+			if (!values.getColumns().isEmpty() && !writeObject(obj, tableName, values, dirtyColumns)) {
+				obj.incWriteCount();
+				return;
+			}
+			updateDependents(obj, dirtyColumns);
+			publishObjects(Collections.singleton(obj));
+			logUpdatedObject(obj);
+		} catch (SQLException ex) {
+			obj.incWriteCount();
+			throw ex;
+		} catch (RuntimeException ex) {
+			obj.incWriteCount();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Writes values of obj to its row of tableName, if the row still has the version of obj. Otherwise another writer
+	 * changed the row since obj read or wrote it: obj merges the row as that writer left it and is written again,
+	 * see resolveConflict(). Returns false if obj could not be written.
+	 */
+	protected boolean writeObject(Persistent obj, String tableName, ColumnValues values, Set<String> dirtyColumns) throws SQLException {
+		for (int i = 0; i <= MAX_NO_CONFLICT_RETRIES; i++) {
+			PreparedStatement stmt = getVersionedUpdateStatement(obj, tableName, values);
+			SysLog.logQuery(stmt);
+			if (stmt.executeUpdate() != 0) {
+				objectWritten(obj, values);
+				return true;
+			}
+			
+			if (!resolveConflict(obj, tableName, dirtyColumns)) {
+				return false;
+			}
+			values = getDirtyColumnValues(obj, dirtyColumns);
+		}
+		
+		SysLog.logSysError("giving up on object after " + MAX_NO_CONFLICT_RETRIES + " conflicts: " + obj.getIdAsString() + "(" + obj.toString() + ")");
+		return false;
+	}
+	
+	/**
+	 * Returns the UPDATE of the columns of values, for the row of obj in tableName with the version of obj;
+	 * the row gets the next version, which is added to values.
+	 */
+	protected PreparedStatement getVersionedUpdateStatement(Persistent obj, String tableName, ColumnValues values) throws SQLException {
+		long version = obj.getVersion();
+		values.setValue(DataObject.VERSION, Long.valueOf(version + 1), Types.BIGINT);
+		PreparedStatement result = getWritingStatement(getUpdateStatementAsString(tableName, values.getColumns()));
+		int pos = values.writeOn(result, 1, values.getColumns());
+		obj.writeId(result, pos);
+		result.setLong(pos + 1, version);
+		return result;
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Called after values, including the new version, were written to the row of obj; subclasses call super.
+	 */
+	protected void objectWritten(Persistent obj, ColumnValues values) {
+		obj.setVersion(((Long) values.getValue(DataObject.VERSION)).longValue());
+	}
+	
+	/**
+	 * Reads the row of obj, which did not have the version of obj, and lets obj merge it; returns false if there is
+	 * no such row or obj cannot be merged.
+	 */
+	protected boolean resolveConflict(Persistent obj, String tableName, Set<String> dirtyColumns) throws SQLException {
+		Persistent current = readCurrentObject(obj, tableName);
+		if (current == null) {
+			SysLog.logSysError("trying to update non-existent object: " + obj.getIdAsString() + "(" + obj.toString() + ")");
+			return false;
+		}
+		
+		SysLog.logSysInfo("conflict", tableName, "object " + obj.getIdAsString() + " has version " + current.getVersion() + ", not " + obj.getVersion());
+		return mergeObject(obj, current, dirtyColumns);
+	}
+	
+	/**
+	 * Reads the row of obj from the primary; within a transaction, the row stays locked until the transaction ends.
+	 */
+	protected Persistent readCurrentObject(Persistent obj, String tableName) throws SQLException {
+		PreparedStatement stmt = getWritingStatement("SELECT * FROM " + tableName + " WHERE id = ? FOR UPDATE");
+		obj.writeId(stmt, 1);
 		SysLog.logQuery(stmt);
-		stmt.executeUpdate();
+		ResultSet rset = stmt.executeQuery();
+		return rset.next() ? shallowObjectReader.createObject(rset) : null;
 	}
 	
 	/**
-	 * 
+	 * @methodproperty hook
+	 *
+	 * Makes obj the object current, which another writer left, with the columns obj changed, and takes on its version.
+	 * An object that may have changed any column, i.e. dirtyColumns is null, keeps all its values.
+	 * Subclasses may reapply commutative changes, e.g. votes, to current instead; they return false if obj must not be written.
 	 */
-	protected void updateObject(Persistent obj, PreparedStatement stmt) throws SQLException {
-		if (obj.isDirty()) {
+	protected boolean mergeObject(Persistent obj, Persistent current, Set<String> dirtyColumns) throws SQLException {
+		if (dirtyColumns != null) {
+			ColumnValues merged = ColumnValues.getFromObject(current);
+			ColumnValues changes = ColumnValues.getFromObject(obj);
+			for (String column : dirtyColumns) {
+				if (changes.hasColumn(column)) {
+					merged.setValue(column, changes.getValue(column), changes.getSqlType(column));
+				}
+			}
+			obj.readFrom(merged.asResultSet());
+		}
+		
+		obj.setVersion(current.getVersion());
+		return true;
+	}
+	
+	/**
+	 * Writes the whole row of obj, for stores that keep rows rather than columns.
+	 */
+	protected void upsertObject(Persistent obj, String tableName) throws SQLException {
+		Set<String> dirtyColumns = obj.resetDirtyColumns();
+		try {
+			objectStore.upsert(tableName, obj);
+			updateDependents(obj, dirtyColumns);
+		} catch (SQLException ex) {
+			obj.incWriteCount();
+			throw ex;
+		} catch (RuntimeException ex) {
+			obj.incWriteCount();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Returns the values of the columns obj changed, all but "id" if dirtyColumns is null.
+	 */
+	protected ColumnValues getDirtyColumnValues(Persistent obj, Set<String> dirtyColumns) throws SQLException {
+		ColumnValues result = ColumnValues.getFromObject(obj);
+		result.removeColumn(DataObject.ID);
+		if (dirtyColumns != null) {
+			result.retainColumns(dirtyColumns);
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes all dirty objects of coll to tableName in one transaction, using batched parameterized UPDATEs.
+	 * The columns are the ones each object changed of those it writes in writeOn(ResultSet); objects are identified by the "id" column.
+	 * Write counts are reset before the values are captured, so concurrent changes leave the object dirty.
+	 * Objects whose rows another writer changed are merged and written one by one afterwards, see writeObject().
+	 * Dependents are updated only then, as updateDependents() may use statements of the cache that holds the pending batches.
+	 * Within a transaction of the caller, e.g. of a unit of work, the caller commits or rolls back; an active unit of work
+	 * is marked to roll back if the objects cannot be written.
+	 */
+	protected void updateObjects(Collection<? extends Persistent> coll, String tableName) throws SQLException {
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+		for (Persistent obj : coll) {
+			if (obj.isDirty()) {
+				dirtyObjects.add(obj);
+			}
+		}
+		
+		if (dirtyObjects.isEmpty()) {
+			return;
+		}
+		
+		if (!objectStore.isRelational()) {
+			for (Persistent obj : dirtyObjects) {
+				upsertObject(obj, tableName);
+			}
+			return;
+		}
+
+		DatabaseConnection dbc = getDatabaseConnection();
+		Connection conn = dbc.getRdbmsConnection();
+		boolean wasAutoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			int maxNoBatches = dbc.getStatementCache().getMaxSize() - 1; // preparing the next statement must not evict one with a pending batch
+			int batchSize = (maxNoBatches > 0) ? SysConfig.getDbBatchSizeAsInt() : 1;
+			Map<PreparedStatement, List<Persistent>> batches = new LinkedHashMap<PreparedStatement, List<Persistent>>();
+			BatchedObjects batchedObjects = new BatchedObjects();
+			Map<Persistent, Set<String>> dependentColumns = new IdentityHashMap<Persistent, Set<String>>();
+			for (Persistent obj : dirtyObjects) {
+				Set<String> dirtyColumns = obj.resetDirtyColumns();
+				dependentColumns.put(obj, dirtyColumns);
+				ColumnValues values = getDirtyColumnValues(obj, dirtyColumns);
+				if (values.getColumns().isEmpty()) {
+					continue;
+				}
+				
+				PreparedStatement stmt = getVersionedUpdateStatement(obj, tableName, values);
+				stmt.addBatch();
+				batchedObjects.add(obj, values, dirtyColumns);
+				
+				List<Persistent> batch = batches.get(stmt);
+				if ((batch == null) && (batches.size() >= maxNoBatches)) {
+					executeBatches(batches, batchedObjects);
+				}
+				if (batch == null) {
+					batch = new ArrayList<Persistent>();
+					batches.put(stmt, batch);
+				}
+				batch.add(obj);
+				
+				if (batch.size() >= batchSize) {
+					executeBatch(stmt, batch, batchedObjects);
+					batch.clear();
+				}
+			}
+
+			executeBatches(batches, batchedObjects);
+			for (Persistent obj : batchedObjects.staleObjects) {
+				if (!writeObject(obj, tableName, getDirtyColumnValues(obj, batchedObjects.dirtyColumns.get(obj)), batchedObjects.dirtyColumns.get(obj))) {
+					obj.incWriteCount();
+				}
+			}
+			for (Persistent obj : dirtyObjects) {
+				updateDependents(obj, dependentColumns.get(obj));
+			}
+			publishObjects(dirtyObjects);
+
+			if (wasAutoCommit) {
+				conn.commit();
+				logCommittedObjects(dirtyObjects);
+			} else {
+				logEvictedObjects(dirtyObjects);
+			}
+		} catch (SQLException ex) {
+			if (wasAutoCommit) {
+				rollbackObjects(conn, dirtyObjects);
+			} else {
+				markRollbackOnly();
+			}
+			throw ex;
+		} catch (RuntimeException ex) {
+			if (wasAutoCommit) {
+				rollbackObjects(conn, dirtyObjects);
+			} else {
+				markRollbackOnly();
+			}
+			throw ex;
+		} finally {
+			conn.setAutoCommit(wasAutoCommit);
+		}
+		
+		SysLog.logSysInfo("batch-update", tableName, "updated " + dirtyObjects.size() + " objects");
+	}
+	
+	/**
+	 * Rolls back the transaction of updateObjects() and marks the objects dirty again, so that write-behind retries them;
+	 * within a transaction of the caller, the caller restores them instead, see restoreObject(). A snapshot taken
+	 * meanwhile may hold their rolled back rows, so they are logged as evicted. Objects keep the versions they wrote;
+	 * their next write finds the rows at older versions and merges them, see writeObject().
+	 */
+	protected void rollbackObjects(Connection conn, Collection<Persistent> objects) throws SQLException {
+		conn.rollback();
+		for (Persistent obj : objects) {
+			obj.incWriteCount();
+		}
+		logEvictedObjects(objects);
+	}
+	
+	/**
+	 * @methodproperty hook
+	 *
+	 * Puts obj, whose write was rolled back with the transaction of a caller, back into the state of its row on the primary,
+	 * so that it is neither written later nor shown with changes that were not saved. If the row cannot be read,
+	 * obj is dropped from the caches, so that it is read again when needed.
+	 */
+	protected void restoreObject(Persistent obj, String tableName) {
+		obj.resetWriteCount();
+		try {
+			PreparedStatement stmt = getWritingDatabaseConnection().getReadingStatement("SELECT * FROM " + tableName + " WHERE id = ?");
 			obj.writeId(stmt, 1);
 			SysLog.logQuery(stmt);
 			ResultSet rset = stmt.executeQuery();
 			if (rset.next()) {
-				obj.writeOn(rset);
-				rset.updateRow();
-				updateDependents(obj);
+				obj.readFrom(rset);
+				readVersion(obj, rset);
 				obj.resetWriteCount();
+				return;
+			}
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+		
+		invalidateObject(getCacheKey(obj), 0);
+	}
+	
+	/**
+	 * The values and dirty columns of batched objects, and the objects whose rows had other versions
+	 */
+	protected static class BatchedObjects {
+		protected Map<Persistent, ColumnValues> values = new IdentityHashMap<Persistent, ColumnValues>();
+		protected Map<Persistent, Set<String>> dirtyColumns = new IdentityHashMap<Persistent, Set<String>>();
+		protected List<Persistent> staleObjects = new ArrayList<Persistent>();
+		
+		protected void add(Persistent obj, ColumnValues objValues, Set<String> objDirtyColumns) {
+			values.put(obj, objValues);
+			dirtyColumns.put(obj, objDirtyColumns);
+		}
+	}
+	
+	/**
+	 * Executes and removes all pending batches.
+	 */
+	protected void executeBatches(Map<PreparedStatement, List<Persistent>> batches, BatchedObjects batchedObjects) throws SQLException {
+		for (Map.Entry<PreparedStatement, List<Persistent>> entry : batches.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				executeBatch(entry.getKey(), entry.getValue(), batchedObjects);
+			}
+		}
+		batches.clear();
+	}
+	
+	/**
+	 * Objects whose rows were not updated had other versions, or no rows at all; see writeObject().
+	 */
+	protected void executeBatch(PreparedStatement stmt, List<Persistent> batch, BatchedObjects batchedObjects) throws SQLException {
+		SysLog.logQuery(stmt);
+		int[] counts = null;
+		try {
+			counts = stmt.executeBatch();
+		} catch (BatchUpdateException ex) {
+			if (ex.getNextException() != null) {
+				SysLog.logThrowable(ex.getNextException());
+			}
+			throw ex;
+		}
+		
+		for (int i = 0; i < counts.length; i++) {
+			Persistent obj = batch.get(i);
+			if (counts[i] == 0) {
+				batchedObjects.staleObjects.add(obj);
 			} else {
-				SysLog.logSysError("trying to update non-existent object: " + obj.getIdAsString() + "(" + obj.toString() + ")");
+				objectWritten(obj, batchedObjects.values.get(obj));
 			}
 		}
 	}
@@ -138,11 +835,17 @@ public abstract class ObjectManager {
 	/**
 	 * 
 	 */
-	protected void updateObjects(Collection coll, PreparedStatement stmt) throws SQLException {
-		for (Iterator i = coll.iterator(); i.hasNext(); ) {
-			Persistent obj = (Persistent) i.next();
-			updateObject(obj, stmt);
+	protected String getUpdateStatementAsString(String tableName, Collection<String> columns) {
+		StringBuffer result = new StringBuffer(256);
+		result.append("UPDATE ").append(tableName).append(" SET ");
+		for (Iterator<String> i = columns.iterator(); i.hasNext(); ) {
+			result.append('"').append(i.next()).append("\" = ?");
+			if (i.hasNext()) {
+				result.append(", ");
+			}
 		}
+		result.append(" WHERE id = ? AND \"").append(DataObject.VERSION).append("\" = ?");
+		return result.toString();
 	}
 	
 	/**
@@ -153,12 +856,29 @@ public abstract class ObjectManager {
 	}
 	
 	/**
-	 * 
+	 * Updates what depends on the given columns of obj; dirtyColumns is null if any column may have changed.
+	 * By default, this calls updateDependents(obj).
 	 */
-	protected void deleteObject(Persistent obj, PreparedStatement stmt) throws SQLException {
-		obj.writeId(stmt, 1);
-		SysLog.logQuery(stmt);
-		stmt.executeUpdate();
+	protected void updateDependents(Persistent obj, Set<String> dirtyColumns) throws SQLException {
+		updateDependents(obj);
+	}
+	
+	/**
+	 * A deleted object is logged as evicted right away; at worst, a restart reads it from the database again.
+	 */
+	protected void deleteObject(Persistent obj, String tableName) throws SQLException {
+		try {
+			objectStore.delete(tableName, obj);
+		} catch (SQLException ex) {
+			markRollbackOnly();
+			throw ex;
+		}
+		publishObjects(Collections.singleton(obj), true);
+		
+		ModelSnapshot snapshot = modelSnapshot;
+		if ((snapshot != null) && (getSnapshotTableName() != null)) {
+			snapshot.logEvictedObject(getSnapshotTableName(), obj);
+		}
 	}
 
 	/**
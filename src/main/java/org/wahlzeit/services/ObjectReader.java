@@ -0,0 +1,20 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+
+/**
+ * An ObjectReader creates a Persistent object from the current row of a ResultSet, for an ObjectStore.
+ */
+public interface ObjectReader {
+
+	/**
+	 * Returns null if the row does not describe an object.
+	 */
+	public Persistent createObject(ResultSet rset) throws SQLException;
+
+}
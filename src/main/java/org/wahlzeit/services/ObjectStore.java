@@ -0,0 +1,53 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+
+/**
+ * An ObjectStore is the storage backend of the ObjectManagers. It keeps the rows of Persistent objects by table,
+ * keyed by their "id" column; the columns of a row are the ones the object writes in writeOn(ResultSet).
+ * JdbcObjectStore keeps the rows in the database; LogObjectStore keeps them in memory and in an append-only file.
+ */
+public interface ObjectStore {
+
+	/**
+	 * Returns the object of the first row of tableName whose column has value, or null if there is none.
+	 */
+	public Persistent read(String tableName, String column, Object value, ObjectReader reader) throws SQLException;
+
+	/**
+	 * Passes the objects of all rows of tableName to consumer.
+	 */
+	public void scan(String tableName, ObjectReader reader, ObjectConsumer consumer) throws SQLException;
+
+	/**
+	 * Adds the row of the new object obj.
+	 */
+	public void insert(String tableName, Persistent obj) throws SQLException;
+
+	/**
+	 * Writes all columns of obj, inserting its row if there is none yet.
+	 */
+	public void upsert(String tableName, Persistent obj) throws SQLException;
+
+	/**
+	 *
+	 */
+	public void delete(String tableName, Persistent obj) throws SQLException;
+
+	/**
+	 * Returns true if the store is a relational database that also answers the SQL of the ObjectManagers,
+	 * e.g. set-based queries, through the DatabaseConnection of the current session.
+	 */
+	public boolean isRelational();
+
+	/**
+	 *
+	 */
+	public void close();
+
+}
@@ -6,10 +6,12 @@
 package org.wahlzeit.services;
 
 import java.sql.*;
+import java.util.*;
 
 /**
  * A Persistent object is an object that can be read from and written to some storage.
- * Also, it has a write count, which serves as a dirty flag.
+ * Also, it has a write count, which serves as a dirty flag, and tracks which of its columns changed.
+ * In a relational store, it also knows the version of its row, which every write increments.
  */
 public interface Persistent {
 	
@@ -23,16 +25,36 @@ public interface Persistent {
 	 */
 	public void incWriteCount();
 	
+	/**
+	 * Like incWriteCount(), but only marks the given columns as changed rather than all of them
+	 */
+	public void incWriteCount(String... columns);
+	
 	/**
 	 * 
 	 */
 	public void resetWriteCount();
+	
+	/**
+	 * Resets the write count and returns the columns changed since the last reset, or null if any column may have changed
+	 */
+	public Set<String> resetDirtyColumns();
 
 	/**
 	 * 
 	 */
 	public String getIdAsString();
 	
+	/**
+	 * Returns the version of the object's row as the object last read or wrote it; see ObjectManager.updateObject()
+	 */
+	public long getVersion();
+	
+	/**
+	 * 
+	 */
+	public void setVersion(long newVersion);
+	
 	/**
 	 * 
 	 */
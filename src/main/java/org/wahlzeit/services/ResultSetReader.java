@@ -0,0 +1,20 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+
+/**
+ * A ResultSetReader reads all rows of a ResultSet that a JdbcObjectStore streams through a server-side cursor.
+ */
+public interface ResultSetReader {
+
+	/**
+	 * 
+	 */
+	public void read(ResultSet rset) throws SQLException;
+
+}
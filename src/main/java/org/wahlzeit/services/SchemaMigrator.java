@@ -0,0 +1,313 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A SchemaMigrator brings the database schema up to date with the SQL scripts of the migrations directory of a ConfigDir.
+ * Scripts are named "<version>-<Name>.sql" and applied once each, in the order of their versions. The schema_migrations
+ * table records the applied versions with a checksum of their scripts; a script changed after it was applied stops startup.
+ * A script with a statement using CONCURRENTLY, e.g. to build an index without blocking writes, runs outside of a transaction, statement
+ * by statement; all other scripts run in a transaction of their own. A concurrent index build that failed halfway leaves
+ * an invalid index behind, so such scripts drop the index first, and applying them again after a failure is safe.
+ * Servers starting at the same time take turns using an advisory lock. A server waiting for the lock polls for it rather
+ * than blocking in pg_advisory_lock(), as a blocked statement holds a snapshot, and CREATE INDEX CONCURRENTLY
+ * waits for all older snapshots, so the migrating server would wait for the waiting one.
+ */
+public class SchemaMigrator {
+
+	/**
+	 *
+	 */
+	public static final String MIGRATIONS_DIR_NAME = "migrations";
+
+	/**
+	 *
+	 */
+	protected static final Pattern FILE_NAME_PATTERN = Pattern.compile("(\\d+)-(\\w+)\\.sql");
+
+	/**
+	 *
+	 */
+	protected static final Pattern CONCURRENTLY_PATTERN = Pattern.compile("\\bCONCURRENTLY\\b", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Key of the advisory lock that keeps servers starting at the same time from migrating at the same time
+	 */
+	protected static final long LOCK_KEY = 0x5741484CL;
+
+	/**
+	 * Time between tries to get the advisory lock, in milliseconds
+	 */
+	protected static final long LOCK_RETRY_INTERVAL = 500;
+
+	/**
+	 * A migration script and its version
+	 */
+	public static class Migration {
+
+		protected int version;
+		protected String fileName;
+		protected String script;
+
+		/**
+		 *
+		 */
+		public Migration(int myVersion, String myFileName, String myScript) {
+			version = myVersion;
+			fileName = myFileName;
+			script = myScript.replace("\r\n", "\n");
+		}
+
+		/**
+		 *
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 *
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+
+		/**
+		 *
+		 */
+		public String getScript() {
+			return script;
+		}
+
+		/**
+		 *
+		 */
+		public String getChecksum() {
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+				StringBuilder result = new StringBuilder(2 * digest.length);
+				for (byte b : digest) {
+					result.append(String.format("%02x", b));
+				}
+				return result.toString();
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		/**
+		 * CREATE/DROP INDEX CONCURRENTLY cannot run inside a transaction block; comments mentioning it do not count
+		 */
+		public boolean isTransactional() {
+			for (String statement : splitStatements(script)) {
+				if (CONCURRENTLY_PATTERN.matcher(statement.replaceAll("--[^\\n]*", "")).find()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 *
+	 */
+	protected ConfigDir scriptsDir;
+
+	/**
+	 *
+	 */
+	public SchemaMigrator(ConfigDir myScriptsDir) {
+		scriptsDir = myScriptsDir;
+	}
+
+	/**
+	 * Returns the migrations of the default and custom migrations directories, ordered by version.
+	 */
+	public List<Migration> getMigrations() throws SQLException {
+		Map<Integer, Migration> result = new TreeMap<Integer, Migration>();
+		addMigrations(result, scriptsDir.getAbsoluteDefaultConfigFileName(MIGRATIONS_DIR_NAME));
+		addMigrations(result, scriptsDir.getAbsoluteCustomConfigFileName(MIGRATIONS_DIR_NAME));
+		return new ArrayList<Migration>(result.values());
+	}
+
+	/**
+	 *
+	 */
+	protected void addMigrations(Map<Integer, Migration> migrations, String dirName) throws SQLException {
+		File[] files = new File(dirName).listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			Matcher matcher = FILE_NAME_PATTERN.matcher(file.getName());
+			if (!matcher.matches()) {
+				continue;
+			}
+
+			int version = Integer.parseInt(matcher.group(1));
+			Migration other = migrations.get(version);
+			if (other != null) {
+				throw new SQLException("migrations " + other.getFileName() + " and " + file.getName() + " have the same version");
+			}
+			migrations.put(version, new Migration(version, file.getName(), FileUtil.safelyReadFileAsString(file.getAbsolutePath())));
+		}
+	}
+
+	/**
+	 * Applies all migrations not yet applied to the database of conn.
+	 */
+	public void migrate(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			lock(conn, stmt);
+		} catch (SQLException ex) {
+			stmt.close();
+			throw ex;
+		}
+
+		try {
+			stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (version integer PRIMARY KEY, name text, applied_time bigint, checksum text NOT NULL)");
+
+			Map<Integer, String> appliedChecksums = new HashMap<Integer, String>();
+			ResultSet rset = stmt.executeQuery("SELECT version, checksum FROM schema_migrations");
+			while (rset.next()) {
+				appliedChecksums.put(rset.getInt("version"), rset.getString("checksum"));
+			}
+			rset.close();
+
+			for (Migration migration : getMigrations()) {
+				if (!appliedChecksums.containsKey(migration.getVersion())) {
+					apply(conn, migration);
+				} else {
+					assertIsUnchanged(migration, appliedChecksums.get(migration.getVersion()));
+				}
+			}
+		} finally {
+			stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Waits until this connection holds the advisory lock; polls in auto-commit mode, so that no snapshot is held while waiting.
+	 */
+	protected void lock(Connection conn, Statement stmt) throws SQLException {
+		boolean wasAutoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(true);
+		try {
+			for (int i = 0; !tryLock(stmt); i++) {
+				if (i == 0) {
+					SysLog.logSysInfo("migration", "waiting for another server to finish migrating");
+				}
+
+				try {
+					Thread.sleep(LOCK_RETRY_INTERVAL);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("interrupted while waiting for migration lock");
+				}
+			}
+		} finally {
+			conn.setAutoCommit(wasAutoCommit);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected boolean tryLock(Statement stmt) throws SQLException {
+		ResultSet rset = stmt.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")");
+		try {
+			return rset.next() && rset.getBoolean(1);
+		} finally {
+			rset.close();
+		}
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected void assertIsUnchanged(Migration migration, String appliedChecksum) throws SQLException {
+		if (!migration.getChecksum().equals(appliedChecksum)) {
+			throw new SQLException("migration " + migration.getFileName() + " was changed after it had been applied");
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void apply(Connection conn, Migration migration) throws SQLException {
+		long startTime = System.currentTimeMillis();
+		boolean wasAutoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(!migration.isTransactional());
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				if (migration.isTransactional()) {
+					SysLog.logQuery(migration.getScript());
+					stmt.execute(migration.getScript());
+				} else {
+					for (String query : splitStatements(migration.getScript())) {
+						SysLog.logQuery(query);
+						stmt.execute(query);
+					}
+				}
+			} finally {
+				stmt.close();
+			}
+
+			PreparedStatement insert = conn.prepareStatement("INSERT INTO schema_migrations (version, name, applied_time, checksum) VALUES (?, ?, ?, ?)");
+			insert.setInt(1, migration.getVersion());
+			insert.setString(2, migration.getFileName());
+			insert.setLong(3, System.currentTimeMillis());
+			insert.setString(4, migration.getChecksum());
+			insert.executeUpdate();
+			insert.close();
+
+			if (migration.isTransactional()) {
+				conn.commit();
+			}
+		} catch (SQLException ex) {
+			if (migration.isTransactional()) {
+				conn.rollback();
+			}
+			throw ex;
+		} finally {
+			conn.setAutoCommit(wasAutoCommit);
+		}
+
+		SysLog.logSysInfo("migration", migration.getFileName(), "applied in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * Splits script into statements at semicolons that end a line; comment-only parts are dropped.
+	 */
+	public static List<String> splitStatements(String script) {
+		List<String> result = new ArrayList<String>();
+		for (String part : script.split(";[ \\t]*(\\r?\\n|$)")) {
+			StringBuilder statement = new StringBuilder();
+			for (String line : part.split("\\r?\\n")) {
+				if (!line.trim().isEmpty() && !line.trim().startsWith("--")) {
+					statement.append(line).append('\n');
+				}
+			}
+			if (statement.length() > 0) {
+				result.add(statement.toString().trim());
+			}
+		}
+		return result;
+	}
+
+}
@@ -5,10 +5,13 @@
 
 package org.wahlzeit.services;
 
+import java.sql.SQLException;
 
 /**
  * A Session object maintains a DatabaseConnection and helps track processing time. Typically, there is one for each
- * working thread, be it a system thread or a web session.
+ * working thread, be it a system thread or a web session. If there is a replica, a session also maintains a read-only
+ * connection to it, for queries outside of transactions; after the session changed objects, it reads its own writes
+ * from the primary for SysConfig.DB_READ_YOUR_WRITES_WINDOW milliseconds.
  */
 public class Session {
 
@@ -21,6 +24,17 @@ public class Session {
 	 * Database stuff
 	 */
 	protected DatabaseConnection databaseConnection = null;
+	protected DatabaseConnection replicaConnection = null;
+	
+	/**
+	 * When the session last changed objects, in millis
+	 */
+	protected volatile long lastWriteTime = 0;
+	
+	/**
+	 * Transaction of the current request, created on demand
+	 */
+	protected UnitOfWork unitOfWork = null;
 	
 	/**
 	 * processing time for requests
@@ -84,6 +98,63 @@ public class Session {
 		return databaseConnection;
 	}
 	
+	/**
+	 * Returns the connection for queries: the replica's, unless there is none, the session is in a transaction,
+	 * or it changed objects within the read-your-writes window; the primary's otherwise.
+	 */
+	public DatabaseConnection ensureReadingDatabaseConnection() {
+		DatabaseConnectionPool replicaPool = DatabaseConnectionPool.getReplicaInstance();
+		if (replicaPool == null) {
+			return ensureDatabaseConnection();
+		}
+		
+		boolean isPinned = (System.currentTimeMillis() - lastWriteTime) < replicaPool.getReadYourWritesWindow();
+		if (isPinned || isInTransaction()) {
+			DatabaseConnection result = ensureDatabaseConnection();
+			if (result != null) {
+				result.getPool().countQuery(isPinned);
+			}
+			return result;
+		}
+		
+		if (replicaConnection == null) {
+			try {
+				replicaConnection = DatabaseConnection.ensureReplicaDatabaseConnection();
+			} catch (Throwable t) {
+				SysLog.logThrowable(t); // the primary answers queries then
+				return ensureDatabaseConnection();
+			}
+		}
+		
+		replicaPool.countQuery(false);
+		return replicaConnection;
+	}
+	
+	/**
+	 * Returns true if the primary connection is within a transaction, whose writes the replica cannot see.
+	 */
+	protected boolean isInTransaction() {
+		try {
+			return (databaseConnection != null) && !databaseConnection.getRdbmsConnection().getAutoCommit();
+		} catch (SQLException ex) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Notes that the session changed objects, or wrote to the database.
+	 */
+	public void registerWrite() {
+		lastWriteTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * 
+	 */
+	public long getLastWriteTime() {
+		return lastWriteTime;
+	}
+	
 	/**
 	 * @methodproperty hook
 	 *
@@ -96,6 +167,29 @@ public class Session {
 			DatabaseConnection.returnDatabaseConnection(databaseConnection);
 			databaseConnection = null;
 		}
+		
+		if (replicaConnection != null) {
+			DatabaseConnection.returnDatabaseConnection(replicaConnection);
+			replicaConnection = null;
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	public boolean hasUnitOfWork() {
+		return unitOfWork != null;
+	}
+	
+	/**
+	 * 
+	 */
+	public UnitOfWork getUnitOfWork() {
+		if (unitOfWork == null) {
+			unitOfWork = new UnitOfWork(this);
+		}
+		
+		return unitOfWork;
 	}
 	
 	/**
@@ -0,0 +1,107 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A SingleFlight makes concurrent loads of the same key share one load.
+ * The first thread to ask for a key runs the loader; threads asking for the key while that load is in flight
+ * wait for it and receive its result (or exception) instead of loading again. Loads of different keys do not wait for each other.
+ */
+public class SingleFlight<K, V> {
+
+	/**
+	 * Loads in flight, by key
+	 */
+	protected ConcurrentMap<K, FutureTask<V>> loads = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Statistics
+	 */
+	protected AtomicLong noLoads = new AtomicLong();
+	protected AtomicLong noCoalescedLoads = new AtomicLong();
+
+	/**
+	 * Returns the result of loading key, either by running loader or by waiting for a load of key that is in flight.
+	 */
+	public V load(final K key, final ObjectLoader<K, V> loader) throws SQLException {
+		FutureTask<V> load = new FutureTask<V>(new Callable<V>() {
+			public V call() throws SQLException {
+				return loader.load(key);
+			}
+		});
+
+		FutureTask<V> current = loads.putIfAbsent(key, load);
+		if (current != null) {
+			noCoalescedLoads.incrementAndGet();
+			return getResult(current);
+		}
+
+		try {
+			noLoads.incrementAndGet();
+			load.run();
+		} finally {
+			loads.remove(key, load);
+		}
+
+		return getResult(load);
+	}
+
+	/**
+	 * Waits for load without giving up on interrupts, as the other waiters depend on the load anyway.
+	 */
+	protected V getResult(FutureTask<V> load) throws SQLException {
+		boolean isInterrupted = false;
+		try {
+			while (true) {
+				try {
+					return load.get();
+				} catch (InterruptedException ex) {
+					isInterrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			if (isInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Number of loads that actually ran
+	 */
+	public long getNoLoads() {
+		return noLoads.get();
+	}
+
+	/**
+	 * Number of loads that were answered by a load in flight instead of running themselves
+	 */
+	public long getNoCoalescedLoads() {
+		return noCoalescedLoads.get();
+	}
+
+	/**
+	 *
+	 */
+	public int getNoLoadsInFlight() {
+		return loads.size();
+	}
+
+}
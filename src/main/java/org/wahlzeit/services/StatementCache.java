@@ -0,0 +1,192 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A StatementCache holds the prepared statements of one database connection, by query string.
+ * It is bounded and closes the least recently used statement when full, so that the server can free its plan.
+ * Statements are prepared on the server once they have been executed prepareThreshold times, so that hot queries
+ * skip parsing and planning while queries used once or twice do not take up server memory.
+ * A connection is used by one thread at a time, so the cache is not synchronized; statistics are also kept for all caches.
+ */
+public class StatementCache {
+
+	/**
+	 * Statistics of all statement caches
+	 */
+	protected static AtomicLong totalNoHits = new AtomicLong();
+	protected static AtomicLong totalNoMisses = new AtomicLong();
+	protected static AtomicLong totalNoEvictions = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public static void logTotalStatistics() {
+		SysLog.logSysInfo("statement-cache", "all", asStatisticsString(-1, totalNoHits.get(), totalNoMisses.get(), totalNoEvictions.get()));
+	}
+
+	/**
+	 *
+	 */
+	protected Connection connection;
+
+	/**
+	 *
+	 */
+	protected int maxSize;
+	protected int prepareThreshold;
+
+	/**
+	 * Statements in access order, keyed by result set concurrency and query string
+	 */
+	protected LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() <= maxSize) {
+				return false;
+			}
+
+			closeStatement(eldest.getValue());
+			noEvictions++;
+			totalNoEvictions.incrementAndGet();
+			return true;
+		}
+	};
+
+	/**
+	 * Statistics
+	 */
+	protected long noHits = 0;
+	protected long noMisses = 0;
+	protected long noEvictions = 0;
+
+	/**
+	 *
+	 */
+	public StatementCache(Connection myConnection, int myMaxSize, int myPrepareThreshold) {
+		connection = myConnection;
+		maxSize = Math.max(myMaxSize, 1);
+		prepareThreshold = myPrepareThreshold;
+	}
+
+	/**
+	 *
+	 */
+	public PreparedStatement getStatement(String query) throws SQLException {
+		return getStatement(query, ResultSet.CONCUR_READ_ONLY);
+	}
+
+	/**
+	 * Returns a statement whose result sets can update rows
+	 */
+	public PreparedStatement getUpdatingStatement(String query) throws SQLException {
+		return getStatement(query, ResultSet.CONCUR_UPDATABLE);
+	}
+
+	/**
+	 *
+	 */
+	protected PreparedStatement getStatement(String query, int concurrency) throws SQLException {
+		String key = concurrency + ":" + query;
+		PreparedStatement result = statements.get(key);
+		if (result != null) {
+			noHits++;
+			totalNoHits.incrementAndGet();
+			return result;
+		}
+
+		noMisses++;
+		totalNoMisses.incrementAndGet();
+		result = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, concurrency);
+		if (result instanceof PGStatement) {
+			((PGStatement) result).setPrepareThreshold(prepareThreshold);
+		}
+		SysLog.logCreatedObject((concurrency == ResultSet.CONCUR_UPDATABLE) ? "UpdatingStatement" : "PreparedStatement", result.toString());
+		statements.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Closes all statements.
+	 */
+	public void clear() {
+		for (PreparedStatement stmt : statements.values()) {
+			closeStatement(stmt);
+		}
+		statements.clear();
+	}
+
+	/**
+	 *
+	 */
+	protected void closeStatement(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 *
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoHits() {
+		return noHits;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoMisses() {
+		return noMisses;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoEvictions() {
+		return noEvictions;
+	}
+
+	/**
+	 *
+	 */
+	public String asStatisticsString() {
+		return asStatisticsString(statements.size(), noHits, noMisses, noEvictions);
+	}
+
+	/**
+	 *
+	 */
+	protected static String asStatisticsString(int size, long noHits, long noMisses, long noEvictions) {
+		long noLookups = Math.max(noHits + noMisses, 1);
+		return ((size >= 0) ? "size=" + size + ", " : "")
+			+ "hits=" + noHits
+			+ ", misses=" + noMisses
+			+ ", hitRate=" + ((double) noHits / noLookups)
+			+ ", evictions=" + noEvictions;
+	}
+
+}
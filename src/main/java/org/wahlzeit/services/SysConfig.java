@@ -20,6 +20,86 @@ public class SysConfig extends AbstractConfig {
 	public static final String DB_USER = "DB_USER";
 	public static final String DB_PASSWORD = "DB_PASSWORD";
 	
+	/**
+	 * Read replica for queries, see Session.ensureReadingDatabaseConnection(); an empty connection means there is none.
+	 * After a session changed objects, it reads from the primary for the read-your-writes window, in milliseconds,
+	 * which should cover the write-behind period plus the replication lag.
+	 */
+	public static final String DB_REPLICA_CONNECTION = "DB_REPLICA_CONNECTION";
+	public static final String DB_REPLICA_USER = "DB_REPLICA_USER";
+	public static final String DB_REPLICA_PASSWORD = "DB_REPLICA_PASSWORD";
+	public static final String DB_READ_YOUR_WRITES_WINDOW = "DB_READ_YOUR_WRITES_WINDOW";
+	
+	/**
+	 * Database connection pool definitions; times are in milliseconds, except for the validation timeout (seconds)
+	 */
+	public static final String DB_POOL_MIN_SIZE = "DB_POOL_MIN_SIZE";
+	public static final String DB_POOL_MAX_SIZE = "DB_POOL_MAX_SIZE";
+	public static final String DB_POOL_ACQUIRE_TIMEOUT = "DB_POOL_ACQUIRE_TIMEOUT";
+	public static final String DB_POOL_IDLE_TIMEOUT = "DB_POOL_IDLE_TIMEOUT";
+	public static final String DB_POOL_MAX_LIFETIME = "DB_POOL_MAX_LIFETIME";
+	public static final String DB_POOL_VALIDATION_INTERVAL = "DB_POOL_VALIDATION_INTERVAL";
+	public static final String DB_POOL_VALIDATION_TIMEOUT = "DB_POOL_VALIDATION_TIMEOUT";
+	
+	/**
+	 * Maximum number of statements sent to the database in one JDBC batch
+	 */
+	public static final String DB_BATCH_SIZE = "DB_BATCH_SIZE";
+	
+	/**
+	 * Number of rows fetched per round trip when streaming query results
+	 */
+	public static final String DB_FETCH_SIZE = "DB_FETCH_SIZE";
+	
+	/**
+	 * Maximum number of prepared statements cached per connection, and number of executions after which
+	 * a statement is prepared on the database server
+	 */
+	public static final String DB_STATEMENT_CACHE_SIZE = "DB_STATEMENT_CACHE_SIZE";
+	public static final String DB_PREPARE_THRESHOLD = "DB_PREPARE_THRESHOLD";
+	
+	/**
+	 * Write-behind of dirty objects: maximum delay in millis and number of changes that trigger an early flush
+	 */
+	public static final String WRITE_BEHIND_PERIOD = "WRITE_BEHIND_PERIOD";
+	public static final String WRITE_BEHIND_MAX_CHANGES = "WRITE_BEHIND_MAX_CHANGES";
+	
+	/**
+	 * Maximum number of objects kept in the manager caches; 0 means unbounded
+	 */
+	public static final String PHOTO_CACHE_SIZE = "PHOTO_CACHE_SIZE";
+	public static final String LOCATION_CACHE_SIZE = "LOCATION_CACHE_SIZE";
+	public static final String USER_CACHE_SIZE = "USER_CACHE_SIZE";
+	public static final String CAT_CACHE_SIZE = "CAT_CACHE_SIZE";
+	
+	/**
+	 * Unknown photo ids, user names, and email addresses: maximum number remembered (0 disables) and time to live in millis
+	 */
+	public static final String NEGATIVE_CACHE_SIZE = "NEGATIVE_CACHE_SIZE";
+	public static final String NEGATIVE_CACHE_TTL = "NEGATIVE_CACHE_TTL";
+	
+	/**
+	 * Number of ids reserved at once in the globals table
+	 */
+	public static final String ID_BLOCK_SIZE = "ID_BLOCK_SIZE";
+	
+	/**
+	 * Storage backend of the object managers: "jdbc" for the database, "log" for a LogObjectStore in the store directory
+	 */
+	public static final String OBJECT_STORE = "OBJECT_STORE";
+	
+	/**
+	 * Period in millis of model snapshots for warm restarts, see ModelSnapshot; 0 disables snapshots
+	 */
+	public static final String SNAPSHOT_PERIOD = "SNAPSHOT_PERIOD";
+	
+	/**
+	 * Channel on which nodes sharing the database tell each other which cached objects they wrote, see CacheInvalidator;
+	 * an empty channel means there are no other nodes. The listener polls for notifications every period, in millis.
+	 */
+	public static final String CACHE_INVALIDATION_CHANNEL = "CACHE_INVALIDATION_CHANNEL";
+	public static final String CACHE_INVALIDATION_PERIOD = "CACHE_INVALIDATION_PERIOD";
+	
 	/**
 	 * 
 	 */
@@ -84,6 +164,7 @@ public class SysConfig extends AbstractConfig {
 	protected Directory photosDir;
 	protected Directory backupDir;
 	protected Directory tempDir;
+	protected Directory storeDir;
 	
 	/**
 	 * 
@@ -108,12 +189,51 @@ public class SysConfig extends AbstractConfig {
 		photosDir = new Directory(rootDir, "data" + File.separator + "photos");
 		backupDir = new Directory(rootDir, "data" + File.separator + "backup");
 		tempDir = new Directory(rootDir, "data" + File.separator + "temp");
+		storeDir = new Directory(rootDir, "data" + File.separator + "store");
 		
 		// Database connection
 		doSetValue(SysConfig.DB_DRIVER, "org.postgresql.Driver");
 		doSetValue(SysConfig.DB_CONNECTION, "jdbc:postgresql://" + dbHostName + ":5432/wahlzeit");
 		doSetValue(SysConfig.DB_USER, "wahlzeit");
 		doSetValue(SysConfig.DB_PASSWORD, "wahlzeit");
+		doSetValue(SysConfig.DB_REPLICA_CONNECTION, "");
+		doSetValue(SysConfig.DB_REPLICA_USER, "wahlzeit");
+		doSetValue(SysConfig.DB_REPLICA_PASSWORD, "wahlzeit");
+		doSetValue(SysConfig.DB_READ_YOUR_WRITES_WINDOW, "10000");
+		
+		// Database connection pool
+		doSetValue(SysConfig.DB_POOL_MIN_SIZE, "2");
+		doSetValue(SysConfig.DB_POOL_MAX_SIZE, "20");
+		doSetValue(SysConfig.DB_POOL_ACQUIRE_TIMEOUT, "30000");
+		doSetValue(SysConfig.DB_POOL_IDLE_TIMEOUT, "600000");
+		doSetValue(SysConfig.DB_POOL_MAX_LIFETIME, "1800000");
+		doSetValue(SysConfig.DB_POOL_VALIDATION_INTERVAL, "1000");
+		doSetValue(SysConfig.DB_POOL_VALIDATION_TIMEOUT, "5");
+		doSetValue(SysConfig.DB_BATCH_SIZE, "500");
+		doSetValue(SysConfig.DB_FETCH_SIZE, "1000");
+		doSetValue(SysConfig.DB_STATEMENT_CACHE_SIZE, "100");
+		doSetValue(SysConfig.DB_PREPARE_THRESHOLD, "2");
+		
+		// Write-behind
+		doSetValue(SysConfig.WRITE_BEHIND_PERIOD, "5000");
+		doSetValue(SysConfig.WRITE_BEHIND_MAX_CHANGES, "1000");
+		
+		// Object caches; cats are not persisted, so they must not be evicted
+		doSetValue(SysConfig.PHOTO_CACHE_SIZE, "10000");
+		doSetValue(SysConfig.LOCATION_CACHE_SIZE, "10000");
+		doSetValue(SysConfig.USER_CACHE_SIZE, "10000");
+		doSetValue(SysConfig.CAT_CACHE_SIZE, "0");
+		doSetValue(SysConfig.NEGATIVE_CACHE_SIZE, "10000");
+		doSetValue(SysConfig.NEGATIVE_CACHE_TTL, "60000");
+		doSetValue(SysConfig.ID_BLOCK_SIZE, "100");
+		
+		// Storage backend
+		doSetValue(SysConfig.OBJECT_STORE, "jdbc");
+		doSetValue(SysConfig.SNAPSHOT_PERIOD, "600000");
+		
+		// Nodes sharing the database
+		doSetValue(SysConfig.CACHE_INVALIDATION_CHANNEL, "");
+		doSetValue(SysConfig.CACHE_INVALIDATION_PERIOD, "500");
 	}
 	
 	/**
@@ -164,6 +284,13 @@ public class SysConfig extends AbstractConfig {
 	public static Directory getTempDir() {
 		return getInstance().tempDir;
 	}
+	
+	/**
+	 * 
+	 */
+	public static Directory getStoreDir() {
+		return getInstance().storeDir;
+	}
 
 	/**
 	 * 
@@ -193,4 +320,214 @@ public class SysConfig extends AbstractConfig {
 		return getInstance().getValue(SysConfig.DB_PASSWORD);
 	}
 
+	/**
+	 * 
+	 */
+	public static String getDbReplicaConnectionAsString() {
+		return getInstance().getValue(SysConfig.DB_REPLICA_CONNECTION);
+	}
+	
+	/**
+	 * 
+	 */
+	public static String getDbReplicaUserAsString() {
+		return getInstance().getValue(SysConfig.DB_REPLICA_USER);
+	}
+	
+	/**
+	 * 
+	 */
+	public static String getDbReplicaPasswordAsString() {
+		return getInstance().getValue(SysConfig.DB_REPLICA_PASSWORD);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getDbReadYourWritesWindowAsLong() {
+		return getValueAsLong(SysConfig.DB_READ_YOUR_WRITES_WINDOW);
+	}
+
+	/**
+	 * 
+	 */
+	public static int getDbPoolMinSizeAsInt() {
+		return getValueAsInt(SysConfig.DB_POOL_MIN_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbPoolMaxSizeAsInt() {
+		return getValueAsInt(SysConfig.DB_POOL_MAX_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getDbPoolAcquireTimeoutAsLong() {
+		return getValueAsLong(SysConfig.DB_POOL_ACQUIRE_TIMEOUT);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getDbPoolIdleTimeoutAsLong() {
+		return getValueAsLong(SysConfig.DB_POOL_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getDbPoolMaxLifetimeAsLong() {
+		return getValueAsLong(SysConfig.DB_POOL_MAX_LIFETIME);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getDbPoolValidationIntervalAsLong() {
+		return getValueAsLong(SysConfig.DB_POOL_VALIDATION_INTERVAL);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbPoolValidationTimeoutAsInt() {
+		return getValueAsInt(SysConfig.DB_POOL_VALIDATION_TIMEOUT);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbBatchSizeAsInt() {
+		return getValueAsInt(SysConfig.DB_BATCH_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbFetchSizeAsInt() {
+		return getValueAsInt(SysConfig.DB_FETCH_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbStatementCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.DB_STATEMENT_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getDbPrepareThresholdAsInt() {
+		return getValueAsInt(SysConfig.DB_PREPARE_THRESHOLD);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getWriteBehindPeriodAsLong() {
+		return getValueAsLong(SysConfig.WRITE_BEHIND_PERIOD);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getWriteBehindMaxChangesAsInt() {
+		return getValueAsInt(SysConfig.WRITE_BEHIND_MAX_CHANGES);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getPhotoCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.PHOTO_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getLocationCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.LOCATION_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getUserCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.USER_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getCatCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.CAT_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getNegativeCacheSizeAsInt() {
+		return getValueAsInt(SysConfig.NEGATIVE_CACHE_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getNegativeCacheTtlAsLong() {
+		return getValueAsLong(SysConfig.NEGATIVE_CACHE_TTL);
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getIdBlockSizeAsInt() {
+		return getValueAsInt(SysConfig.ID_BLOCK_SIZE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static String getObjectStoreAsString() {
+		return getInstance().getValue(SysConfig.OBJECT_STORE);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getSnapshotPeriodAsLong() {
+		return getValueAsLong(SysConfig.SNAPSHOT_PERIOD);
+	}
+	
+	/**
+	 * 
+	 */
+	public static String getCacheInvalidationChannelAsString() {
+		return getInstance().getValue(SysConfig.CACHE_INVALIDATION_CHANNEL);
+	}
+	
+	/**
+	 * 
+	 */
+	public static long getCacheInvalidationPeriodAsLong() {
+		return getValueAsLong(SysConfig.CACHE_INVALIDATION_PERIOD);
+	}
+	
+	/**
+	 * 
+	 */
+	protected static int getValueAsInt(String key) {
+		return Integer.parseInt(getInstance().getValue(key));
+	}
+	
+	/**
+	 * 
+	 */
+	protected static long getValueAsLong(String key) {
+		return Long.parseLong(getInstance().getValue(key));
+	}
+
 }
@@ -6,6 +6,7 @@
 package org.wahlzeit.services;
 
 import java.sql.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Logging class for logging system-level messages.
@@ -16,6 +17,18 @@ import java.sql.*;
  */
 public class SysLog extends Log {
 	
+	/**
+	 * Queries are logged before they are executed, so this counts the queries sent to the database
+	 */
+	protected static final AtomicLong noQueries = new AtomicLong();
+	
+	/**
+	 * 
+	 */
+	public static long getNoQueries() {
+		return noQueries.get();
+	}
+	
 	/**
 	 * 
 	 */
@@ -55,6 +68,7 @@ public class SysLog extends Log {
 	 * 
 	 */
 	public static final void logQuery(Statement q) {
+		noQueries.incrementAndGet();
 		StringBuffer sb = createSysLogEntry();
 		addLogType(sb, "info");
 		addQuery(sb, q);
@@ -65,6 +79,7 @@ public class SysLog extends Log {
 	 * 
 	 */
 	public static final void logQuery(String s) {
+		noQueries.incrementAndGet();
 		StringBuffer sb = createSysLogEntry();
 		addLogType(sb, "info");
 		addField(sb, "query", s);
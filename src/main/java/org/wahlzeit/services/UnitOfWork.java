@@ -0,0 +1,295 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A UnitOfWork makes all writes of a request one transaction on the connection of its session.
+ * While it is active, the connection does not auto-commit, and ObjectManager.updateObject() registers dirty objects
+ * instead of writing them. commit() writes the registered objects in batches, manager by manager in the order of
+ * their write rank, and commits. If anything fails, rollback() undoes all writes of the request, puts the registered
+ * objects back into the state of their rows, and lets the managers forget the objects the request created.
+ * Committed objects are logged to the model snapshot, if any, only after the commit. A write that fails while the
+ * unit of work is active aborts its transaction, so it marks the unit of work rollback-only, see ObjectManager.markRollbackOnly();
+ * commit() then rolls back and fails, even if the caller of the write only logged the failure.
+ * Objects changed while the unit of work is active reach the DirtyObjectRegistry only once it has committed.
+ */
+public class UnitOfWork {
+
+	/**
+	 * Returns the active unit of work of the current thread's session, or null if there is none.
+	 */
+	public static UnitOfWork getActiveUnitOfWork() {
+		Session session = SessionManager.getThreadLocalSession();
+		if ((session == null) || !session.hasUnitOfWork()) {
+			return null;
+		}
+
+		UnitOfWork result = session.getUnitOfWork();
+		return result.isActive() ? result : null;
+	}
+
+	/**
+	 * The dirty objects of one table, and the manager that writes them
+	 */
+	protected static class TableObjects {
+		protected ObjectManager manager;
+		protected String tableName;
+		protected Set<Persistent> objects = Collections.newSetFromMap(new IdentityHashMap<Persistent, Boolean>());
+
+		protected TableObjects(ObjectManager myManager, String myTableName) {
+			manager = myManager;
+			tableName = myTableName;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected Session session;
+
+	/**
+	 *
+	 */
+	protected boolean isActive = false;
+	protected boolean isRollbackOnly = false;
+	protected Connection connection = null;
+	protected boolean wasAutoCommit = true;
+
+	/**
+	 * Dirty objects by table name, and new objects with their managers, in the order registered
+	 */
+	protected Map<String, TableObjects> dirtyObjects = new LinkedHashMap<String, TableObjects>();
+	protected List<Persistent> newObjects = new ArrayList<Persistent>();
+	protected List<ObjectManager> newObjectManagers = new ArrayList<ObjectManager>();
+
+	/**
+	 * Objects changed while active, which are handed to the DirtyObjectRegistry on commit if still dirty
+	 */
+	protected Set<Persistent> changedObjects = Collections.newSetFromMap(new IdentityHashMap<Persistent, Boolean>());
+
+	/**
+	 * Statistics
+	 */
+	protected long noCommits = 0;
+	protected long noRollbacks = 0;
+
+	/**
+	 *
+	 */
+	public UnitOfWork(Session mySession) {
+		session = mySession;
+	}
+
+	/**
+	 *
+	 */
+	public boolean isActive() {
+		return isActive;
+	}
+
+	/**
+	 *
+	 */
+	public boolean isRollbackOnly() {
+		return isRollbackOnly;
+	}
+
+	/**
+	 * Makes commit() roll back and fail.
+	 */
+	public void setRollbackOnly() {
+		assertIsActive();
+		isRollbackOnly = true;
+	}
+
+	/**
+	 * Starts a transaction on the session's connection.
+	 */
+	public void begin() throws SQLException {
+		if (isActive) {
+			throw new IllegalStateException("unit of work is already active");
+		}
+
+		DatabaseConnection dbc = session.ensureDatabaseConnection();
+		if (dbc == null) {
+			throw new SQLException("no database connection available");
+		}
+
+		connection = dbc.getRdbmsConnection();
+		wasAutoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		isActive = true;
+	}
+
+	/**
+	 * Registers obj to be written to tableName by manager on commit.
+	 */
+	public void registerDirty(ObjectManager manager, Persistent obj, String tableName) {
+		assertIsActive();
+		TableObjects tableObjects = dirtyObjects.get(tableName);
+		if (tableObjects == null) {
+			tableObjects = new TableObjects(manager, tableName);
+			dirtyObjects.put(tableName, tableObjects);
+		}
+		tableObjects.objects.add(obj);
+	}
+
+	/**
+	 * Registers obj as inserted by manager, so that the manager can forget it on rollback.
+	 */
+	public void registerNew(ObjectManager manager, Persistent obj) {
+		assertIsActive();
+		newObjects.add(obj);
+		newObjectManagers.add(manager);
+	}
+
+	/**
+	 * Registers obj as changed, e.g. without being saved, so that write-behind only writes it if this unit of work commits.
+	 */
+	public void registerChanged(Persistent obj) {
+		assertIsActive();
+		changedObjects.add(obj);
+	}
+
+	/**
+	 * Writes the registered objects and commits; rolls back and rethrows if that fails.
+	 * Objects saved while writing, e.g. dependents, are written right away, as part of the same transaction.
+	 */
+	public void commit() throws SQLException {
+		assertIsActive();
+		isActive = false;
+
+		List<TableObjects> tables = new ArrayList<TableObjects>(dirtyObjects.values());
+		Collections.sort(tables, new Comparator<TableObjects>() {
+			public int compare(TableObjects t1, TableObjects t2) {
+				return Integer.compare(t1.manager.getWriteRank(), t2.manager.getWriteRank());
+			}
+		});
+
+		try {
+			if (isRollbackOnly) {
+				throw new SQLException("unit of work was marked rollback-only after a failed write");
+			}
+
+			for (TableObjects tableObjects : tables) {
+				tableObjects.manager.updateObjects(tableObjects.objects, tableObjects.tableName);
+			}
+			connection.commit();
+			noCommits++;
+
+			for (TableObjects tableObjects : tables) {
+				tableObjects.manager.logCommittedObjects(tableObjects.objects);
+			}
+			handOverChangedObjects();
+		} catch (SQLException ex) {
+			doRollback();
+			throw ex;
+		} catch (RuntimeException ex) {
+			doRollback();
+			throw ex;
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Rolls back if still active, e.g. because the request failed before commit().
+	 */
+	public void rollback() {
+		if (!isActive) {
+			return;
+		}
+
+		isActive = false;
+		try {
+			doRollback();
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void doRollback() {
+		try {
+			connection.rollback();
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+
+		for (TableObjects tableObjects : dirtyObjects.values()) {
+			tableObjects.manager.logEvictedObjects(tableObjects.objects);
+			for (Persistent obj : tableObjects.objects) {
+				tableObjects.manager.restoreObject(obj, tableObjects.tableName);
+			}
+		}
+
+		for (int i = 0; i < newObjects.size(); i++) {
+			newObjectManagers.get(i).forgetObject(newObjects.get(i));
+		}
+
+		noRollbacks++;
+		SysLog.logSysInfo("unit-of-work", session.getName(), "rolled back " + newObjects.size() + " new objects");
+	}
+
+	/**
+	 * Lets write-behind write the changed objects that are still dirty, as they were not saved.
+	 */
+	protected void handOverChangedObjects() {
+		DirtyObjectRegistry registry = DirtyObjectRegistry.getInstance();
+		for (Persistent obj : changedObjects) {
+			if (obj.isDirty()) {
+				registry.markDirty(obj);
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void end() {
+		try {
+			connection.setAutoCommit(wasAutoCommit);
+		} catch (SQLException ex) {
+			SysLog.logThrowable(ex);
+		}
+
+		connection = null;
+		isRollbackOnly = false;
+		dirtyObjects.clear();
+		newObjects.clear();
+		newObjectManagers.clear();
+		changedObjects.clear();
+	}
+
+	/**
+	 *
+	 */
+	protected void assertIsActive() {
+		if (!isActive) {
+			throw new IllegalStateException("unit of work is not active");
+		}
+	}
+
+	/**
+	 *
+	 */
+	public long getNoCommits() {
+		return noCommits;
+	}
+
+	/**
+	 *
+	 */
+	public long getNoRollbacks() {
+		return noRollbacks;
+	}
+
+}
@@ -8,6 +8,7 @@ package org.wahlzeit.servlets;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.sql.SQLException;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -26,28 +27,35 @@ public abstract class AbstractServlet extends HttpServlet {
 	/**
 	 * 
 	 */
-	protected static int lastSessionId = 0; // system and agent are named differently
+	protected static final IdAllocator sessionIds = new IdAllocator("last_session_id"); // system and agent are named differently
 	private static final long serialVersionUID = 42L; // any does; class never serialized
 	
 	/**
 	 * 
 	 */
-	public static synchronized int getLastSessionId() {
-		return lastSessionId;
+	public static IdAllocator getSessionIdAllocator() {
+		return sessionIds;
+	}
+	
+	/**
+	 * 
+	 */
+	public static int getLastSessionId() {
+		return sessionIds.getLastId();
 	}
 	
 	/**
 	 * 
 	 */
 	public static void setLastSessionId(int newSessionId) {
-		lastSessionId = newSessionId;
+		sessionIds.setLastId(newSessionId);
 	}
 	
 	/**
 	 * 
 	 */
-	public static synchronized int getNextSessionId() {
-		return ++lastSessionId;
+	public static int getNextSessionId() {
+		return sessionIds.getNextId();
 	}
 	
 	/**
@@ -75,7 +83,8 @@ public abstract class AbstractServlet extends HttpServlet {
 	}
 		
 	/**
-	 * 
+	 * Handles the request in a unit of work, so that all its writes are committed at once, or not at all.
+	 * myPost() commits before it responds, see commitUnitOfWork(); a unit of work still active afterwards is committed here.
 	 */
 	public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		UserSession us = ensureUserSession(request);	
@@ -84,8 +93,24 @@ public abstract class AbstractServlet extends HttpServlet {
 		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
 			displayNullPage(request, response);
 		} else {
-			myPost(request, response);
-			us.returnDatabaseConnection();
+			UnitOfWork unitOfWork = us.getUnitOfWork();
+			try {
+				if (ObjectManager.hasRelationalStore()) {
+					unitOfWork.begin();
+				}
+			} catch (SQLException sex) {
+				SysLog.logThrowable(sex); // writes are committed one by one then
+			}
+			
+			try {
+				myPost(request, response);
+				if (!commitUnitOfWork(us) && !response.isCommitted()) {
+					displayErrorPage(us, request, response);
+				}
+			} finally {
+				unitOfWork.rollback();
+				us.returnDatabaseConnection();
+			}
 		}
 
 		SessionManager.dropThreadLocalSession();
@@ -97,6 +122,25 @@ public abstract class AbstractServlet extends HttpServlet {
 	protected void myPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		// do nothing
 	}
+	
+	/**
+	 * Commits the active unit of work of us, if any, so that a response only reports writes that were saved.
+	 * Returns false if the commit failed; the writes of the request are rolled back then.
+	 */
+	protected boolean commitUnitOfWork(UserSession us) {
+		UnitOfWork unitOfWork = us.getUnitOfWork();
+		if (!unitOfWork.isActive()) {
+			return true;
+		}
+		
+		try {
+			unitOfWork.commit();
+			return true;
+		} catch (SQLException sex) {
+			SysLog.logThrowable(sex);
+			return false;
+		}
+	}
 
 	/**
 	 * 
@@ -142,6 +186,18 @@ public abstract class AbstractServlet extends HttpServlet {
 		response.setStatus(HttpServletResponse.SC_OK);
 	}
 	
+	/**
+	 * Tells the user that the request could not be saved.
+	 */
+	protected void displayErrorPage(UserSession us, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("text/html");
+		response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+		PrintWriter out = response.getWriter();
+		out.print(us.cfg().getInternalProcessingError());
+		out.close();
+	}
+	
 	/**
 	 * 
 	 */
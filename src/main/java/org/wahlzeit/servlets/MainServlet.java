@@ -96,6 +96,12 @@ public class MainServlet extends AbstractServlet {
 			link = formHandler.handlePost(us, args);
 		}
 
+		if (!commitUnitOfWork(us)) {
+			displayErrorPage(us, request, response);
+			us.addProcessingTime(System.currentTimeMillis() - startTime);
+			return;
+		}
+
 		redirectRequest(response, link);
 		us.addProcessingTime(System.currentTimeMillis() - startTime);
 	}
@@ -0,0 +1,88 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * An IdRegistry maps non-negative ints to exactly one object each, e.g. a PhotoId, and creates that object on first use.
+ * It is organized like a three-level radix tree: the bits of an int select a directory, a segment within it, and a slot
+ * within that. Directories and segments are allocated on demand and never copied or replaced, so the registry grows
+ * without copying. Lookups are lock-free; slots and segments are published by compare-and-set, so if threads race
+ * to create the object for an int, all of them receive the one that was published first.
+ */
+public abstract class IdRegistry<T> {
+
+	/**
+	 * A slot or segment index takes SEGMENT_BITS bits; the directory index takes the remaining upper bits of a non-negative int
+	 */
+	public static final int SEGMENT_BITS = 10;
+	public static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	public static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	public static final int NO_DIRECTORIES = 1 << (31 - (2 * SEGMENT_BITS));
+
+	/**
+	 *
+	 */
+	protected final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<T>>> directories =
+		new AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<T>>>(NO_DIRECTORIES);
+
+	/**
+	 * Statistics
+	 */
+	protected final AtomicInteger noObjects = new AtomicInteger();
+
+	/**
+	 * Returns the object for id, creating and publishing it if there is none yet.
+	 */
+	public T get(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("negative id: " + id);
+		}
+
+		AtomicReferenceArray<AtomicReferenceArray<T>> directory = ensureElement(directories, id >>> (2 * SEGMENT_BITS));
+		AtomicReferenceArray<T> segment = ensureElement(directory, (id >>> SEGMENT_BITS) & SEGMENT_MASK);
+		int slot = id & SEGMENT_MASK;
+		T result = segment.get(slot);
+		if (result == null) {
+			T newObject = createObject(id);
+			if (segment.compareAndSet(slot, null, newObject)) {
+				noObjects.incrementAndGet();
+				result = newObject;
+			} else {
+				result = segment.get(slot);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the element at index of parent, allocating an empty segment for it if there is none yet.
+	 */
+	protected static <E> AtomicReferenceArray<E> ensureElement(AtomicReferenceArray<AtomicReferenceArray<E>> parent, int index) {
+		AtomicReferenceArray<E> result = parent.get(index);
+		if (result == null) {
+			AtomicReferenceArray<E> newSegment = new AtomicReferenceArray<E>(SEGMENT_SIZE);
+			result = parent.compareAndSet(index, null, newSegment) ? newSegment : parent.get(index);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Number of objects created and published so far
+	 */
+	public int getNoObjects() {
+		return noObjects.get();
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected abstract T createObject(int id);
+
+}
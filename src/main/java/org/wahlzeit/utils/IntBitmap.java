@@ -0,0 +1,530 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.*;
+
+/**
+ * An IntBitmap is a compressed set of non-negative ints, organized like a Roaring bitmap.
+ * Values are grouped into chunks of 65536 by their upper 16 bits. Each chunk uses a sorted array of its
+ * lower 16 bits while sparse, and a plain 8KB bitmap once it holds more than MAX_ARRAY_SIZE values.
+ * Set operations work chunk by chunk, so their cost depends on the number of values, not on the largest value.
+ */
+public class IntBitmap {
+
+	/**
+	 * Maximum cardinality of an array chunk; an array of that many chars takes as much space as a bitmap chunk
+	 */
+	protected static final int MAX_ARRAY_SIZE = 4096;
+
+	/**
+	 *
+	 */
+	public static IntBitmap valueOf(int... values) {
+		IntBitmap result = new IntBitmap();
+		for (int value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Upper 16 bits of the chunks, in ascending order, and the corresponding chunks
+	 */
+	protected char[] keys = new char[4];
+	protected Chunk[] chunks = new Chunk[4];
+	protected int noChunks = 0;
+
+	/**
+	 *
+	 */
+	public IntBitmap() {
+		// do nothing
+	}
+
+	/**
+	 *
+	 */
+	public IntBitmap(IntBitmap other) {
+		keys = Arrays.copyOf(other.keys, Math.max(other.noChunks, 4));
+		chunks = new Chunk[keys.length];
+		noChunks = other.noChunks;
+		for (int i = 0; i < noChunks; i++) {
+			chunks[i] = other.chunks[i].copy();
+		}
+	}
+
+	/**
+	 * @return true if value was not in bitmap before
+	 */
+	public boolean add(int value) {
+		assertIsValidValue(value);
+
+		char key = getHighBits(value);
+		int i = indexOfKey(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertChunk(i, key, new ArrayChunk());
+		}
+
+		int oldCardinality = chunks[i].getCardinality();
+		chunks[i] = chunks[i].add(getLowBits(value));
+		return chunks[i].getCardinality() > oldCardinality;
+	}
+
+	/**
+	 * @return true if value was in bitmap before
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int i = indexOfKey(getHighBits(value));
+		if (i < 0) {
+			return false;
+		}
+
+		int oldCardinality = chunks[i].getCardinality();
+		chunks[i] = chunks[i].remove(getLowBits(value));
+		int newCardinality = chunks[i].getCardinality();
+		if (newCardinality == 0) {
+			removeChunk(i);
+		}
+		return newCardinality < oldCardinality;
+	}
+
+	/**
+	 *
+	 */
+	public boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int i = indexOfKey(getHighBits(value));
+		return (i >= 0) && chunks[i].contains(getLowBits(value));
+	}
+
+	/**
+	 *
+	 */
+	public int getCardinality() {
+		int result = 0;
+		for (int i = 0; i < noChunks; i++) {
+			result += chunks[i].getCardinality();
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public boolean isEmpty() {
+		return noChunks == 0;
+	}
+
+	/**
+	 * @return new bitmap holding the values contained in both this and other
+	 */
+	public IntBitmap and(IntBitmap other) {
+		IntBitmap result = new IntBitmap();
+		int i = 0;
+		int j = 0;
+		while ((i < noChunks) && (j < other.noChunks)) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Chunk chunk = chunks[i].and(other.chunks[j]);
+				if (chunk.getCardinality() > 0) {
+					result.insertChunk(result.noChunks, keys[i], chunk);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return new bitmap holding the values contained in this or other
+	 */
+	public IntBitmap or(IntBitmap other) {
+		IntBitmap result = new IntBitmap();
+		int i = 0;
+		int j = 0;
+		while ((i < noChunks) || (j < other.noChunks)) {
+			if ((j == other.noChunks) || ((i < noChunks) && (keys[i] < other.keys[j]))) {
+				result.insertChunk(result.noChunks, keys[i], chunks[i].copy());
+				i++;
+			} else if ((i == noChunks) || (keys[i] > other.keys[j])) {
+				result.insertChunk(result.noChunks, other.keys[j], other.chunks[j].copy());
+				j++;
+			} else {
+				result.insertChunk(result.noChunks, keys[i], chunks[i].or(other.chunks[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return all values in ascending order
+	 */
+	public int[] toArray() {
+		int[] result = new int[getCardinality()];
+		int pos = 0;
+		for (int i = 0; i < noChunks; i++) {
+			pos = chunks[i].copyTo(keys[i] << 16, result, pos);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public boolean equals(Object other) {
+		if (!(other instanceof IntBitmap)) {
+			return false;
+		}
+
+		return Arrays.equals(toArray(), ((IntBitmap) other).toArray());
+	}
+
+	/**
+	 *
+	 */
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	/**
+	 *
+	 */
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	/**
+	 *
+	 */
+	protected int indexOfKey(char key) {
+		int low = 0;
+		int high = noChunks - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key) {
+				low = mid + 1;
+			} else if (keys[mid] > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 *
+	 */
+	protected void insertChunk(int i, char key, Chunk chunk) {
+		if (noChunks == keys.length) {
+			keys = Arrays.copyOf(keys, noChunks * 2);
+			chunks = Arrays.copyOf(chunks, noChunks * 2);
+		}
+
+		System.arraycopy(keys, i, keys, i + 1, noChunks - i);
+		System.arraycopy(chunks, i, chunks, i + 1, noChunks - i);
+		keys[i] = key;
+		chunks[i] = chunk;
+		noChunks++;
+	}
+
+	/**
+	 *
+	 */
+	protected void removeChunk(int i) {
+		System.arraycopy(keys, i + 1, keys, i, noChunks - i - 1);
+		System.arraycopy(chunks, i + 1, chunks, i, noChunks - i - 1);
+		noChunks--;
+		chunks[noChunks] = null;
+	}
+
+	/**
+	 *
+	 */
+	protected static char getHighBits(int value) {
+		return (char) (value >>> 16);
+	}
+
+	/**
+	 *
+	 */
+	protected static char getLowBits(int value) {
+		return (char) value;
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected static void assertIsValidValue(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("IntBitmap only holds non-negative values: " + value);
+		}
+	}
+
+	/**
+	 * Holds the lower 16 bits of all values in one chunk; add, remove, and, or may return a different representation
+	 */
+	protected static abstract class Chunk {
+
+		protected int cardinality = 0;
+
+		public int getCardinality() {
+			return cardinality;
+		}
+
+		public abstract Chunk add(char value);
+
+		public abstract Chunk remove(char value);
+
+		public abstract boolean contains(char value);
+
+		public abstract Chunk and(Chunk other);
+
+		public abstract Chunk or(Chunk other);
+
+		public abstract Chunk copy();
+
+		/**
+		 * Copies all values, combined with high, to dest starting at pos; returns the next free position
+		 */
+		public abstract int copyTo(int high, int[] dest, int pos);
+
+	}
+
+	/**
+	 * A sparse chunk, storing its values in a sorted array
+	 */
+	protected static class ArrayChunk extends Chunk {
+
+		protected char[] values;
+
+		public ArrayChunk() {
+			this(new char[4], 0);
+		}
+
+		public ArrayChunk(char[] myValues, int myCardinality) {
+			values = myValues;
+			cardinality = myCardinality;
+		}
+
+		public Chunk add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				return this;
+			}
+
+			if (cardinality == MAX_ARRAY_SIZE) {
+				return toBitmapChunk().add(value);
+			}
+
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), MAX_ARRAY_SIZE));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		public Chunk remove(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		public boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		public Chunk and(Chunk other) {
+			char[] result = new char[Math.min(cardinality, other.getCardinality())];
+			int pos = 0;
+			if (other instanceof ArrayChunk) {
+				char[] otherValues = ((ArrayChunk) other).values;
+				int i = 0;
+				int j = 0;
+				while ((i < cardinality) && (j < other.cardinality)) {
+					if (values[i] < otherValues[j]) {
+						i++;
+					} else if (values[i] > otherValues[j]) {
+						j++;
+					} else {
+						result[pos++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						result[pos++] = values[i];
+					}
+				}
+			}
+			return new ArrayChunk(result, pos);
+		}
+
+		public Chunk or(Chunk other) {
+			if (!(other instanceof ArrayChunk)) {
+				return other.or(this);
+			}
+
+			char[] otherValues = ((ArrayChunk) other).values;
+			char[] result = new char[cardinality + other.cardinality];
+			int pos = 0;
+			int i = 0;
+			int j = 0;
+			while ((i < cardinality) || (j < other.cardinality)) {
+				if ((j == other.cardinality) || ((i < cardinality) && (values[i] < otherValues[j]))) {
+					result[pos++] = values[i++];
+				} else if ((i == cardinality) || (values[i] > otherValues[j])) {
+					result[pos++] = otherValues[j++];
+				} else {
+					result[pos++] = values[i];
+					i++;
+					j++;
+				}
+			}
+
+			ArrayChunk union = new ArrayChunk(result, pos);
+			return (pos > MAX_ARRAY_SIZE) ? union.toBitmapChunk() : union;
+		}
+
+		public Chunk copy() {
+			return new ArrayChunk(Arrays.copyOf(values, Math.max(cardinality, 4)), cardinality);
+		}
+
+		public int copyTo(int high, int[] dest, int pos) {
+			for (int i = 0; i < cardinality; i++) {
+				dest[pos++] = high | values[i];
+			}
+			return pos;
+		}
+
+		protected BitmapChunk toBitmapChunk() {
+			BitmapChunk result = new BitmapChunk();
+			for (int i = 0; i < cardinality; i++) {
+				result.add(values[i]);
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * A dense chunk, storing one bit per possible value
+	 */
+	protected static class BitmapChunk extends Chunk {
+
+		protected long[] words = new long[1024];
+
+		public Chunk add(char value) {
+			long mask = 1L << value;
+			if ((words[value >>> 6] & mask) == 0) {
+				words[value >>> 6] |= mask;
+				cardinality++;
+			}
+			return this;
+		}
+
+		public Chunk remove(char value) {
+			long mask = 1L << value;
+			if ((words[value >>> 6] & mask) != 0) {
+				words[value >>> 6] &= ~mask;
+				cardinality--;
+			}
+			return (cardinality <= MAX_ARRAY_SIZE) ? toArrayChunk() : this;
+		}
+
+		public boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		public Chunk and(Chunk other) {
+			if (!(other instanceof BitmapChunk)) {
+				return other.and(this);
+			}
+
+			BitmapChunk result = new BitmapChunk();
+			long[] otherWords = ((BitmapChunk) other).words;
+			for (int i = 0; i < words.length; i++) {
+				result.words[i] = words[i] & otherWords[i];
+				result.cardinality += Long.bitCount(result.words[i]);
+			}
+			return (result.cardinality <= MAX_ARRAY_SIZE) ? result.toArrayChunk() : result;
+		}
+
+		public Chunk or(Chunk other) {
+			BitmapChunk result = (BitmapChunk) copy();
+			if (other instanceof BitmapChunk) {
+				long[] otherWords = ((BitmapChunk) other).words;
+				result.cardinality = 0;
+				for (int i = 0; i < words.length; i++) {
+					result.words[i] |= otherWords[i];
+					result.cardinality += Long.bitCount(result.words[i]);
+				}
+			} else {
+				ArrayChunk otherChunk = (ArrayChunk) other;
+				for (int i = 0; i < otherChunk.cardinality; i++) {
+					result.add(otherChunk.values[i]);
+				}
+			}
+			return result;
+		}
+
+		public Chunk copy() {
+			BitmapChunk result = new BitmapChunk();
+			result.words = words.clone();
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		public int copyTo(int high, int[] dest, int pos) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					dest[pos++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return pos;
+		}
+
+		protected ArrayChunk toArrayChunk() {
+			char[] values = new char[Math.max(cardinality, 4)];
+			int pos = 0;
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[pos++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayChunk(values, cardinality);
+		}
+
+	}
+
+}
@@ -1,6 +1,10 @@
+DROP TABLE IF EXISTS schema_migrations;
 DROP TABLE IF EXISTS globals;
 DROP TABLE IF EXISTS cases;
+DROP TABLE IF EXISTS photo_tags;
+DROP TABLE IF EXISTS tag_dictionary;
 DROP TABLE IF EXISTS tags;
+DROP FUNCTION IF EXISTS mirror_tags();
 DROP TABLE IF EXISTS photos;
 DROP TABLE IF EXISTS users;
 DROP TABLE IF EXISTS locations;
@@ -0,0 +1,43 @@
+--Stores every tag string once and refers to it by id, instead of one text row per tag and photo.
+--The composite primary key answers lookups by tag, the reverse index lookups by photo; both rule out duplicates.
+CREATE TABLE tag_dictionary (
+	id serial PRIMARY KEY,
+	text text NOT NULL UNIQUE
+);
+
+CREATE TABLE photo_tags (
+	tag_id integer NOT NULL REFERENCES tag_dictionary(id),
+	photo_id integer NOT NULL,
+	PRIMARY KEY (tag_id, photo_id)
+);
+
+CREATE INDEX photo_tags_photo_id_idx ON photo_tags (photo_id, tag_id);
+
+--Servers not yet upgraded keep writing the old tags table; mirror their writes until all servers use photo_tags.
+CREATE FUNCTION mirror_tags() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO tag_dictionary (text) VALUES (NEW.tag) ON CONFLICT (text) DO NOTHING;
+		INSERT INTO photo_tags (tag_id, photo_id)
+			SELECT id, NEW.photo_id FROM tag_dictionary WHERE text = NEW.tag
+			ON CONFLICT DO NOTHING;
+		RETURN NEW;
+	END IF;
+	DELETE FROM photo_tags
+		WHERE photo_id = OLD.photo_id AND tag_id = (SELECT id FROM tag_dictionary WHERE text = OLD.tag);
+	RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER mirror_tags AFTER INSERT OR DELETE ON tags
+	FOR EACH ROW WHEN (pg_trigger_depth() = 0) EXECUTE PROCEDURE mirror_tags();
+
+--Backfill from the old table; duplicate rows collapse into one.
+INSERT INTO tag_dictionary (text)
+	SELECT DISTINCT tag FROM tags WHERE tag IS NOT NULL
+	ON CONFLICT (text) DO NOTHING;
+
+INSERT INTO photo_tags (tag_id, photo_id)
+	SELECT DISTINCT d.id, t.photo_id FROM tags t JOIN tag_dictionary d ON d.text = t.tag
+	WHERE t.photo_id IS NOT NULL
+	ON CONFLICT DO NOTHING;
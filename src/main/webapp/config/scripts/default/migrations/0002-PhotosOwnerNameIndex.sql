@@ -0,0 +1,3 @@
+--Photos of a user, e.g. findPhotosByOwner() and copying owner fields to all photos of a user
+DROP INDEX CONCURRENTLY IF EXISTS photos_owner_name_idx;
+CREATE INDEX CONCURRENTLY photos_owner_name_idx ON photos (owner_name);
@@ -0,0 +1,3 @@
+--Photos with a given status, e.g. findPhotosByStatus()
+DROP INDEX CONCURRENTLY IF EXISTS photos_status_idx;
+CREATE INDEX CONCURRENTLY photos_status_idx ON photos (status);
@@ -0,0 +1,3 @@
+--Users by name, e.g. on login
+DROP INDEX CONCURRENTLY IF EXISTS users_name_as_tag_idx;
+CREATE INDEX CONCURRENTLY users_name_as_tag_idx ON users (name_as_tag);
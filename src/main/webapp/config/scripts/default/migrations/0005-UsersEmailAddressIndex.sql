@@ -0,0 +1,4 @@
+--Users by email address, e.g. getUserByEmailAddress()
+--Looked up when users who forgot their name ask for it by email address
+DROP INDEX CONCURRENTLY IF EXISTS users_email_address_idx;
+CREATE INDEX CONCURRENTLY users_email_address_idx ON users (email_address);
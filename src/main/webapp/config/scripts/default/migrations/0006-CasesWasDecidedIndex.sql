@@ -0,0 +1,3 @@
+--Open cases, loaded on startup; only the few undecided cases are indexed
+DROP INDEX CONCURRENTLY IF EXISTS cases_was_decided_idx;
+CREATE INDEX CONCURRENTLY cases_was_decided_idx ON cases (was_decided) WHERE was_decided = FALSE;
@@ -0,0 +1,6 @@
+--Every write of a row increments its version; an update only applies to the version it was read as, see ObjectManager.
+--Adding a column with a constant default does not rewrite the tables.
+ALTER TABLE users ADD COLUMN version bigint NOT NULL DEFAULT 0;
+ALTER TABLE photos ADD COLUMN version bigint NOT NULL DEFAULT 0;
+ALTER TABLE locations ADD COLUMN version bigint NOT NULL DEFAULT 0;
+ALTER TABLE cases ADD COLUMN version bigint NOT NULL DEFAULT 0;
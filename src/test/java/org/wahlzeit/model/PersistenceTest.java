@@ -5,17 +5,40 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.wahlzeit.agents.AgentManager;
+import org.wahlzeit.agents.WriteBehindAgent;
 import org.wahlzeit.main.ServiceMain;
+import org.wahlzeit.services.DatabaseConnection;
+import org.wahlzeit.services.DirtyObjectRegistry;
 import org.wahlzeit.services.EmailAddress;
+import org.wahlzeit.services.IdAllocator;
 import org.wahlzeit.services.Language;
+import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.services.SysLog;
+import org.wahlzeit.services.SysSession;
+import org.wahlzeit.services.UnitOfWork;
 
 import java.io.File;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PersistenceTest {
@@ -160,6 +183,606 @@ public class PersistenceTest {
         assertEquals(photo.getLocation().getId(), l.getId());
     }
 
+    //Changes several cached photos and writes them back in one batch, then clears the cache to read them from the database.
+    @Test
+    public void savePhotosInBatchTest() throws Exception {
+        PhotoManager pm = PhotoManager.getInstance();
+        String pathname = System.getProperty("user.dir");
+        List<Photo> photos = new LinkedList<Photo>();
+        for (int i = 1; i <= 3; i++) {
+            Photo p = pm.createPhoto(new File(pathname + "/src/testData/TESTPIC" + i + ".jpg"));
+            p.setOwnerName("BATCH OWNER " + i);
+            p.setOwnerId(1);
+            p.setOwnerEmailAddress(EmailAddress.getFromString("owner" + i + "@batch.com"));
+            p.setOwnerHomePage(new URL("https:\\\\www.batch.com"));
+            p.setTags(new Tags("batch"));
+            p.addToPraise(i);
+            photos.add(p);
+        }
+
+        pm.savePhotos(); //All dirty photos should be in the database now
+        for (Photo p : photos) {
+            assertTrue(!p.isDirty());
+        }
+
+        pm.photoCache.clear();
+
+        for (int i = 1; i <= 3; i++) {
+            Photo photo = pm.getPhotoFromId(photos.get(i - 1).getId());
+            assertEquals(photo.getOwnerName(), "BATCH OWNER " + i);
+            assertEquals(photo.getPraise(), (10.0 + i) / 2, 0.0);
+        }
+    }
+
+    //Saves a tagged photo and checks that the tag index answers filters like the tags table does.
+    @Test
+    public void filterPhotosByTagIndexTest() throws Exception {
+        PhotoManager pm = PhotoManager.getInstance();
+        String pathname = System.getProperty("user.dir");
+        Photo photo = pm.createPhoto(new File(pathname + "/src/testData/TESTPIC2.jpg"));
+        photo.setOwnerName("INDEX OWNER");
+        photo.setOwnerId(1);
+        photo.setOwnerEmailAddress(EmailAddress.getFromString("owner@index.com"));
+        photo.setOwnerHomePage(new URL("https:\\\\www.index.com"));
+        photo.setTags(new Tags("indexed, bitmap"));
+        pm.savePhoto(photo);
+        assertTrue(PhotoTagIndex.getInstance().isLoaded());
+
+        PhotoFilter filter = new PhotoFilter();
+        filter.setUserName("INDEX OWNER");
+        filter.setTags(new Tags("bitmap"));
+        List<PhotoId> ids = pm.getFilteredPhotoIds(filter);
+        assertTrue(ids.contains(photo.getId()));
+        assertEquals(new HashSet<PhotoId>(pm.getFilteredPhotoIdsFromDatabase(filter)), new HashSet<PhotoId>(ids));
+
+        filter.setTags(new Tags("bitmap, nosuchtag"));
+        assertTrue(pm.getFilteredPhotoIds(filter).isEmpty());
+
+        photo.setTags(new Tags("indexed"));
+        pm.savePhoto(photo);
+        filter.setTags(new Tags("bitmap"));
+        assertTrue(!pm.getFilteredPhotoIds(filter).contains(photo.getId()));
+    }
+
+    //Streams all locations with a tiny fetch size, so the load needs several round trips to the database.
+    @Test
+    public void loadLocationsStreamingTest() throws Exception {
+        LocationManager lm = LocationManager.getInstance();
+        for (int i = 0; i < 3; i++) {
+            lm.saveLocation(lm.createLocation("Stream " + i, i, i, i));
+        }
+        lm.locationCache.clear();
+
+        String fetchSize = SysConfig.getInstance().getValue(SysConfig.DB_FETCH_SIZE);
+        SysConfig.getInstance().setValue(SysConfig.DB_FETCH_SIZE, "2");
+        List<Location> locations = new LinkedList<Location>();
+        try {
+            lm.loadLocations(locations);
+        } finally {
+            SysConfig.getInstance().setValue(SysConfig.DB_FETCH_SIZE, fetchSize);
+        }
+
+        Set<LocationId> ids = new HashSet<LocationId>();
+        for (Location l : locations) {
+            assertTrue(ids.add(l.getId()));
+            assertTrue(lm.locationCache.get(l.getId()) == l);
+        }
+        assertTrue(locations.size() >= 3);
+    }
+
+    //Loads all users twice, with more users and photos in the database the second time; both loads need the same number of queries.
+    @Test
+    public void loadUsersWithConstantQueriesTest() throws Exception {
+        int noQueries1 = countQueriesForLoadUsers();
+        addUsersWithPhotos(3);
+        int noQueries2 = countQueriesForLoadUsers();
+        addUsersWithPhotos(5);
+        int noQueries3 = countQueriesForLoadUsers();
+
+        assertEquals(noQueries1, noQueries2);
+        assertEquals(noQueries2, noQueries3);
+    }
+
+    //Reads a user without its photos, then changes an owner field, which must reach the photos that are not in memory.
+    @Test
+    public void lazyUserPhotosTest() throws Exception {
+        String name = addUsersWithPhotos(1).get(0).getName();
+        UserManager um = UserManager.getInstance();
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        um.users.clear();
+        cpm.photoCache.clear();
+
+        User user = um.getUserByName(name);
+        assertEquals(2, user.getNoPhotos());
+        assertTrue(cpm.photoCache.isEmpty());
+
+        user.setLanguage(Language.GERMAN);
+        assertTrue(cpm.photoCache.isEmpty());
+        um.saveUser(user);
+
+        Photo[] photos = user.getPhotos();
+        assertEquals(2, photos.length);
+        for (Photo photo : photos) {
+            assertEquals(Language.GERMAN, photo.getOwnerLanguage());
+        }
+    }
+
+    //Changes an owner field of a user whose photos are in memory; saving the user must update the photos in memory
+    //without making them dirty, and at the versions of their rows, so that their next write needs no conflict resolution.
+    @Test
+    public void residentUserPhotosTest() throws Exception {
+        User user = addUsersWithPhotos(1).get(0);
+        UserManager um = UserManager.getInstance();
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        Photo[] photos = user.getPhotos();
+        user.setLanguage(Language.GERMAN);
+        for (Photo photo : photos) {
+            assertFalse(photo.isDirty());
+        }
+        um.saveUser(user);
+
+        for (Photo photo : photos) {
+            assertFalse(photo.isDirty());
+            assertEquals(Language.GERMAN, photo.getOwnerLanguage());
+            assertTrue(photo == cpm.getPhotoFromId(photo.getId()));
+        }
+
+        long noQueries = SysLog.getNoQueries();
+        photos[0].addToPraise(7);
+        cpm.savePhoto(photos[0]);
+        assertEquals(1, SysLog.getNoQueries() - noQueries);
+    }
+
+    //Hammers the manager caches with gets and adds from 64 threads; each object must be read from the database only once,
+    //all threads must get the same instance, and no added location may get lost.
+    @Test
+    public void concurrentManagerAccessTest() throws Exception {
+        final UserManager um = UserManager.getInstance();
+        final CatPhotoManager cpm = CatPhotoManager.getInstance();
+        final LocationManager lm = LocationManager.getInstance();
+        final List<String> userNames = new ArrayList<String>();
+        final List<PhotoId> photoIds = new ArrayList<PhotoId>();
+        Set<LocationId> locationIds = new HashSet<LocationId>();
+        for (User user : addUsersWithPhotos(4)) {
+            userNames.add(user.getName());
+            for (Photo photo : user.getPhotos()) {
+                photoIds.add(photo.getId());
+                locationIds.add(photo.getLocation().getId());
+            }
+        }
+        um.users.clear();
+        cpm.photoCache.clear();
+        lm.locationCache.clear();
+        long noUserLoads = um.users.getNoLoads();
+        long noPhotoLoads = cpm.photoCache.getNoLoads();
+        long noLocationLoads = lm.locationCache.getNoLoads();
+
+        final int noThreads = 64;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final ConcurrentMap<Object, Object> firstResults = new ConcurrentHashMap<Object, Object>();
+        final Queue<Location> addedLocations = new ConcurrentLinkedQueue<Location>();
+        Thread[] threads = new Thread[noThreads];
+        for (int t = 0; t < noThreads; t++) {
+            final int threadNo = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    SysSession session = new SysSession("stress" + threadNo);
+                    SessionManager.setThreadLocalSession(session);
+                    try {
+                        //Take the connection before starting, so no thread waits for the pool while loading
+                        session.ensureDatabaseConnection();
+                        startSignal.await();
+                        for (int i = 0; i < 20; i++) {
+                            PhotoId photoId = photoIds.get((threadNo + i) % photoIds.size());
+                            Photo photo = cpm.getPhotoFromId(photoId);
+                            assertSameAsFirst(photoId, photo);
+                            assertSameAsFirst(photo.getLocation().getId(), lm.getLocationFromId(photo.getLocation().getId()));
+                            String userName = userNames.get((threadNo + i) % userNames.size());
+                            assertSameAsFirst(userName, um.getUserByName(userName));
+                            if ((i % 5) == 0) {
+                                addedLocations.add(lm.createLocation("Stress " + threadNo, threadNo, i, 0));
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failures.add(ex);
+                    } finally {
+                        session.returnDatabaseConnection();
+                        SessionManager.dropThreadLocalSession();
+                    }
+                }
+
+                protected void assertSameAsFirst(Object key, Object result) {
+                    Object first = firstResults.putIfAbsent(key, result);
+                    if ((result == null) || ((first != null) && (first != result))) {
+                        throw new AssertionError("different or no object for " + key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(userNames.size(), um.users.getNoLoads() - noUserLoads);
+        assertEquals(photoIds.size(), cpm.photoCache.getNoLoads() - noPhotoLoads);
+        assertEquals(noThreads * 4, addedLocations.size());
+        //createLocation() checks that the new id is unknown, which is a miss as well
+        assertEquals(locationIds.size() + addedLocations.size(), lm.locationCache.getNoLoads() - noLocationLoads);
+        for (Location location : addedLocations) {
+            assertTrue(lm.locationCache.containsKey(location.getId()));
+        }
+    }
+
+    //Looks up an unknown user name and email address repeatedly; only the first lookups may query the database,
+    //and adding the user must make both known right away.
+    @Test
+    public void negativeCacheTest() throws Exception {
+        UserManager um = UserManager.getInstance();
+        String name = "unknown" + System.nanoTime();
+        EmailAddress emailAddress = EmailAddress.getFromString(name + "@bulk.com");
+        assertFalse(um.hasUserByName(name));
+        assertNull(um.getUserByEmailAddress(emailAddress));
+
+        long noSavedUserQueries = um.users.getNegativeCache().getNoSavedQueries();
+        long noSavedEmailQueries = um.getUnknownEmailAddresses().getNoSavedQueries();
+        for (int i = 0; i < 10; i++) {
+            assertFalse(um.hasUserByName(name));
+            assertNull(um.getUserByEmailAddress(emailAddress));
+        }
+        assertEquals(10, um.users.getNegativeCache().getNoSavedQueries() - noSavedUserQueries);
+        assertEquals(10, um.getUnknownEmailAddresses().getNoSavedQueries() - noSavedEmailQueries);
+
+        User user = new User(name, "secret", emailAddress, 0);
+        user.setHomePage(new URL("http://bulk.com"));
+        um.addUser(user);
+        um.saveUser(user);
+        assertTrue(um.hasUserByName(name));
+        assertEquals(user, um.getUserByEmailAddress(emailAddress));
+    }
+
+    //Hands out ids from two allocators of the same column, as two servers sharing the database would;
+    //the ids must not collide, and the globals table must only be written once per block.
+    @Test
+    public void idBlockAllocationTest() throws Exception {
+        IdAllocator first = new IdAllocator("last_case_id");
+        IdAllocator second = new IdAllocator("last_case_id");
+        first.setBlockSize(10);
+        second.setBlockSize(10);
+
+        Set<Integer> ids = new HashSet<Integer>();
+        int maxId = 0;
+        for (int i = 0; i < 25; i++) {
+            int firstId = first.getNextId();
+            int secondId = second.getNextId();
+            assertTrue(ids.add(firstId));
+            assertTrue(ids.add(secondId));
+            maxId = Math.max(maxId, Math.max(firstId, secondId));
+        }
+        assertEquals(3, first.getNoReservations());
+        assertEquals(3, second.getNoReservations());
+
+        Connection conn = SessionManager.getDatabaseConnection().getRdbmsConnection();
+        Statement stmt = conn.createStatement();
+        ResultSet rset = stmt.executeQuery("SELECT last_case_id FROM globals WHERE id = 0");
+        assertTrue(rset.next());
+        assertTrue(rset.getInt(1) >= maxId);
+        stmt.close();
+
+        int noReservations = PhotoId.getIdAllocator().getNoReservations();
+        for (int i = 0; i < PhotoId.getIdAllocator().getBlockSize(); i++) {
+            PhotoId.getNextIdAsInt();
+        }
+        assertEquals(noReservations + 1, PhotoId.getIdAllocator().getNoReservations());
+    }
+
+    //Hands out photo and location ids from a second allocator of the same column, as another server sharing the database
+    //would; its block lies above the ids reserved here, yet each server must resolve the other's ids and load its rows.
+    @Test
+    public void idBlockLookupTest() throws Exception {
+        int ownPhotoId = PhotoId.getNextIdAsInt();
+        IdAllocator otherPhotoIds = new IdAllocator("last_photo_id");
+        int otherPhotoId = otherPhotoIds.getNextId();
+        assertTrue(otherPhotoId > PhotoId.getMaxIdAsInt());
+        assertEquals(otherPhotoId, PhotoId.getIdFromInt(otherPhotoId).asInt());
+        assertEquals(ownPhotoId, PhotoId.getIdFromInt(ownPhotoId).asInt());
+
+        LocationManager lm = LocationManager.getInstance();
+        Location ownLocation = lm.createLocation("Here", 1, 1, 1);
+        IdAllocator otherLocationIds = new IdAllocator("last_location_id");
+        int otherLocationId = otherLocationIds.getNextId();
+        assertTrue(otherLocationId > LocationId.getMaxIdAsInt());
+        Location otherLocation = new Location(LocationId.getIdFromInt(otherLocationId), "There", 2, 2, 2);
+        lm.addLocation(otherLocation);
+        lm.saveLocation(ownLocation);
+        lm.saveLocation(otherLocation);
+        lm.locationCache.clear();
+
+        assertTrue(otherLocation.isEqual(lm.getLocationFromId(LocationId.getIdFromInt(otherLocationId))));
+        assertTrue(ownLocation.isEqual(lm.getLocationFromId(LocationId.getIdFromInt(ownLocation.getId().asInt()))));
+    }
+
+    //Changes the width of saved photos behind their back, then only their praise; saving the photos must send the praise
+    //columns in a single UPDATE without tags, so the width from the database must survive, both for single and batched saves.
+    @Test
+    public void columnMinimalUpdateTest() throws Exception {
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        Photo[] photos = addUsersWithPhotos(1).get(0).getPhotos();
+        Connection conn = SessionManager.getDatabaseConnection().getRdbmsConnection();
+        Statement stmt = conn.createStatement();
+        for (Photo photo : photos) {
+            assertFalse(photo.isDirty());
+            stmt.executeUpdate("UPDATE photos SET width = 4711 WHERE id = " + photo.getId().asInt());
+            photo.addToPraise(7);
+        }
+        stmt.close();
+
+        long noQueries = SysLog.getNoQueries();
+        cpm.savePhoto(photos[0]);
+        assertEquals(1, SysLog.getNoQueries() - noQueries);
+        cpm.savePhotos(Arrays.asList(photos));
+        cpm.photoCache.clear();
+
+        for (Photo photo : photos) {
+            assertFalse(photo.isDirty());
+            Photo readPhoto = cpm.getPhotoFromId(photo.getId());
+            assertEquals(4711, readPhoto.getWidth());
+            assertEquals(photo.getPraise(), readPhoto.getPraise(), 0.0);
+        }
+    }
+
+    //Changes the tags of a saved photo; saving it must only delete and insert the tags that changed,
+    //and saving it with the same tags again must not write any tags.
+    @Test
+    public void incrementalTagUpdateTest() throws Exception {
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        Photo photo = addUsersWithPhotos(1).get(0).getPhotos()[0];
+        photo.setTags(new Tags("kept, removed"));
+        cpm.savePhoto(photo);
+
+        photo.setTags(new Tags("kept, added"));
+        long noQueries = SysLog.getNoQueries();
+        cpm.savePhoto(photo);
+        assertEquals(5, SysLog.getNoQueries() - noQueries); // UPDATE, SELECT, DELETE, INSERT into dictionary and photo_tags
+        Set<String> tags = cpm.readStoredTags(photo.getId().asInt());
+        assertTrue(tags.contains("tg:kept"));
+        assertTrue(tags.contains("tg:added"));
+        assertFalse(tags.contains("tg:removed"));
+
+        photo.setTags(new Tags("kept, added"));
+        noQueries = SysLog.getNoQueries();
+        cpm.savePhoto(photo);
+        assertEquals(2, SysLog.getNoQueries() - noQueries); // UPDATE, SELECT
+        assertEquals(tags, cpm.readStoredTags(photo.getId().asInt()));
+    }
+
+    //Flags a photo and opens a case in a unit of work, as a request would; nothing may be visible to other connections
+    //before commit, all of it afterwards. A second unit of work is rolled back and must leave neither its case nor its
+    //photo change behind, while the photo stays dirty.
+    @Test
+    public void unitOfWorkTest() throws Exception {
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        PhotoCaseManager pcm = PhotoCaseManager.getInstance();
+        Photo photo = addUsersWithPhotos(1).get(0).getPhotos()[0];
+        SysSession session = new SysSession("unit-of-work");
+        SessionManager.setThreadLocalSession(session);
+        DatabaseConnection other = DatabaseConnection.ensureDatabaseConnection();
+        try {
+            UnitOfWork unitOfWork = session.getUnitOfWork();
+            unitOfWork.begin();
+            photo.setStatus(photo.getStatus().asFlagged(true));
+            cpm.savePhoto(photo);
+            PhotoCase photoCase = new PhotoCase(photo);
+            photoCase.setFlagger("flagger@bulk.com");
+            pcm.addPhotoCase(photoCase);
+            assertFalse(isFlaggedInDatabase(other, photo));
+            assertEquals(0, countCasesInDatabase(other, photoCase));
+            unitOfWork.commit();
+            assertFalse(unitOfWork.isActive());
+            assertFalse(photo.isDirty());
+            assertTrue(isFlaggedInDatabase(other, photo));
+            assertEquals(1, countCasesInDatabase(other, photoCase));
+
+            unitOfWork.begin();
+            photo.setStatus(photo.getStatus().asFlagged(false));
+            cpm.savePhoto(photo);
+            PhotoCase rolledBackCase = new PhotoCase(photo);
+            pcm.addPhotoCase(rolledBackCase);
+            assertTrue(pcm.openPhotoCases.containsKey(rolledBackCase.getId()));
+            unitOfWork.rollback();
+            assertFalse(pcm.openPhotoCases.containsKey(rolledBackCase.getId()));
+            assertEquals(0, countCasesInDatabase(other, rolledBackCase));
+            assertTrue(isFlaggedInDatabase(other, photo));
+            assertTrue(photo.isDirty());
+            cpm.savePhoto(photo);
+            assertFalse(isFlaggedInDatabase(other, photo));
+        } finally {
+            DatabaseConnection.returnDatabaseConnection(other);
+            session.returnDatabaseConnection();
+            SessionManager.dropThreadLocalSession();
+        }
+    }
+
+    //Adds the same photo case twice in a unit of work; the second insert fails and is only logged, yet the unit of work
+    //must not commit, and must leave the case neither in the database nor among the open cases.
+    @Test
+    public void failedWriteInUnitOfWorkTest() throws Exception {
+        PhotoCaseManager pcm = PhotoCaseManager.getInstance();
+        Photo photo = addUsersWithPhotos(1).get(0).getPhotos()[0];
+        SysSession session = new SysSession("failed-unit-of-work");
+        SessionManager.setThreadLocalSession(session);
+        DatabaseConnection other = DatabaseConnection.ensureDatabaseConnection();
+        try {
+            UnitOfWork unitOfWork = session.getUnitOfWork();
+            unitOfWork.begin();
+            PhotoCase photoCase = new PhotoCase(photo);
+            pcm.addPhotoCase(photoCase);
+            pcm.addPhotoCase(photoCase);
+            assertTrue(unitOfWork.isRollbackOnly());
+
+            boolean hasCommitted = true;
+            try {
+                unitOfWork.commit();
+            } catch (SQLException ex) {
+                hasCommitted = false;
+            }
+            assertFalse(hasCommitted);
+            assertFalse(unitOfWork.isActive());
+            assertFalse(pcm.openPhotoCases.containsKey(photoCase.getId()));
+            assertEquals(0, countCasesInDatabase(other, photoCase));
+        } finally {
+            DatabaseConnection.returnDatabaseConnection(other);
+            session.returnDatabaseConnection();
+            SessionManager.dropThreadLocalSession();
+        }
+    }
+
+    protected boolean isFlaggedInDatabase(DatabaseConnection dbc, Photo photo) throws Exception {
+        Statement stmt = dbc.getRdbmsConnection().createStatement();
+        ResultSet rset = stmt.executeQuery("SELECT status FROM photos WHERE id = " + photo.getId().asInt());
+        assertTrue(rset.next());
+        boolean result = PhotoStatus.getFromInt(rset.getInt(1)).isFlagged();
+        stmt.close();
+        return result;
+    }
+
+    protected int countCasesInDatabase(DatabaseConnection dbc, PhotoCase photoCase) throws Exception {
+        Statement stmt = dbc.getRdbmsConnection().createStatement();
+        ResultSet rset = stmt.executeQuery("SELECT COUNT(*) FROM cases WHERE id = " + photoCase.getId().asInt());
+        assertTrue(rset.next());
+        int result = rset.getInt(1);
+        stmt.close();
+        return result;
+    }
+
+    //Looks photos up by owner, location, and status; the photo index answers these lookups,
+    //so cached photos need no query, and changes of status and location are found right away.
+    @Test
+    public void photoIndexTest() throws Exception {
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        User user = addUsersWithPhotos(1).get(0);
+        List<Photo> photos = Arrays.asList(user.getPhotos());
+        Photo photo = photos.get(0);
+        Location otherLocation = photos.get(1).getLocation();
+
+        long noQueries = SysLog.getNoQueries();
+        assertEquals(new HashSet<Photo>(photos), cpm.findPhotosByOwner(user.getName()));
+        assertEquals(noQueries, SysLog.getNoQueries());
+
+        assertEquals(Arrays.asList(photo), cpm.findPhotosByLocation(photo.getLocation().getId()));
+        photo.setLocation(otherLocation);
+        assertEquals(2, cpm.findPhotosByLocation(otherLocation.getId()).size());
+
+        //Only checks the index, as reading all photos of a status would include broken photos of earlier tests
+        PhotoIndex index = PhotoIndex.getInstance();
+        int photoId = photo.getId().asInt();
+        assertFalse(index.getPhotoIdsByStatus(PhotoStatus.INVISIBLE).contains(photoId));
+        photo.setStatus(PhotoStatus.INVISIBLE);
+        assertTrue(index.getPhotoIdsByStatus(PhotoStatus.INVISIBLE).contains(photoId));
+        assertFalse(index.getPhotoIdsByStatus(PhotoStatus.VISIBLE).contains(photoId));
+        cpm.savePhoto(photo);
+
+        cpm.photoCache.clear();
+        Set<Photo> readPhotos = cpm.findPhotosByOwner(user.getName());
+        assertEquals(2, readPhotos.size());
+        for (Photo readPhoto : readPhotos) {
+            assertEquals(otherLocation.getId(), readPhoto.getLocation().getId());
+        }
+    }
+
+    protected List<User> addUsersWithPhotos(int noUsers) throws Exception {
+        List<User> result = new LinkedList<User>();
+        UserManager um = UserManager.getInstance();
+        CatPhotoManager cpm = CatPhotoManager.getInstance();
+        String pathname = System.getProperty("user.dir");
+        for (int i = 0; i < noUsers; i++) {
+            String name = "bulk" + System.nanoTime();
+            User user = new User(name, "secret", EmailAddress.getFromString(name + "@bulk.com"), 0);
+            um.addUser(user);
+            for (int j = 1; j <= 2; j++) {
+                Photo photo = cpm.createPhoto(new File(pathname + "/src/testData/TESTPIC" + j + ".jpg"));
+                photo.setLocation(LocationManager.getInstance().createLocation("Bulk " + j, j, j, j));
+                user.addPhoto(photo);
+                cpm.savePhoto(photo);
+            }
+            um.saveUser(user);
+            result.add(user);
+        }
+        return result;
+    }
+
+    protected int countQueriesForLoadUsers() {
+        UserManager.getInstance().users.clear();
+        CatPhotoManager.getInstance().photoCache.clear();
+        LocationManager.getInstance().locationCache.clear();
+
+        long noQueries = SysLog.getNoQueries();
+        List<User> users = new LinkedList<User>();
+        UserManager.getInstance().loadUsers(users);
+        for (User user : users) {
+            if (user.getName().startsWith("bulk")) {
+                assertEquals(2, user.getNoPhotos());
+            }
+        }
+        return (int) (SysLog.getNoQueries() - noQueries);
+    }
+
+    //Praises cached photos without saving them; the write-behind agent has to write them back.
+    @Test
+    public void writeBehindTest() throws Exception {
+        PhotoManager pm = PhotoManager.getInstance();
+        String pathname = System.getProperty("user.dir");
+        Photo photo = pm.createPhoto(new File(pathname + "/src/testData/TESTPIC3.jpg"));
+        photo.setOwnerName("WRITE BEHIND OWNER");
+        photo.setOwnerId(1);
+        photo.setOwnerEmailAddress(EmailAddress.getFromString("owner@writebehind.com"));
+        photo.setOwnerHomePage(new URL("https:\\\\www.writebehind.com"));
+        photo.addToPraise(7);
+        assertTrue(DirtyObjectRegistry.getInstance().getNoDirtyObjects() > 0);
+
+        WriteBehindAgent agent = (WriteBehindAgent) AgentManager.getInstance().getAgent(WriteBehindAgent.NAME);
+        agent.flush();
+        assertTrue(!photo.isDirty());
+        assertEquals(0, DirtyObjectRegistry.getInstance().getNoDirtyObjects());
+
+        pm.photoCache.clear();
+
+        Photo readPhoto = pm.getPhotoFromId(photo.getId());
+        assertEquals(readPhoto.getOwnerName(), "WRITE BEHIND OWNER");
+        assertEquals(readPhoto.getPraise(), 17.0 / 2, 0.0);
+    }
+
+    //Praises a photo in units of work without saving it; write-behind may only get the praise of the committed one.
+    @Test
+    public void writeBehindInUnitOfWorkTest() throws Exception {
+        Photo photo = addUsersWithPhotos(1).get(0).getPhotos()[0];
+        WriteBehindAgent agent = (WriteBehindAgent) AgentManager.getInstance().getAgent(WriteBehindAgent.NAME);
+        SysSession session = new SysSession("write-behind-unit-of-work");
+        SessionManager.setThreadLocalSession(session);
+        try {
+            UnitOfWork unitOfWork = session.getUnitOfWork();
+            unitOfWork.begin();
+            photo.addToPraise(9);
+            assertTrue(photo.isDirty());
+            unitOfWork.rollback();
+            agent.flush();
+            assertTrue(photo.isDirty());
+
+            unitOfWork.begin();
+            photo.addToPraise(7);
+            unitOfWork.commit();
+            agent.flush();
+            assertFalse(photo.isDirty());
+        } finally {
+            session.returnDatabaseConnection();
+            SessionManager.dropThreadLocalSession();
+        }
+    }
+
     //Creates both a normal Photo and a Cat Photo, saves them and attempts to read them as both CatPhoto and normal Photo
     @Test
     public void checkPhotoAndCatPhotoDifference() throws Exception{
@@ -0,0 +1,77 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the CacheInvalidator class.
+ */
+public class CacheInvalidatorTest {
+
+	/**
+	 *
+	 */
+	protected static class TestManager extends ObjectManager {
+		protected String tableName;
+		protected List<String> invalidatedKeys = new ArrayList<String>();
+
+		public TestManager(String myTableName) {
+			tableName = myTableName;
+		}
+
+		protected Persistent createObject(ResultSet rset) throws SQLException {
+			return null;
+		}
+
+		public String getCacheTableName() { return tableName; }
+
+		protected void invalidateObject(String key, long version) {
+			invalidatedKeys.add(key + "@" + version);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPassesNotificationsOfOtherNodesToManagersOfTable() {
+		CacheInvalidator invalidator = new CacheInvalidator("test_cache");
+		CacheInvalidator otherInvalidator = new CacheInvalidator("test_cache");
+		TestManager manager = new TestManager("photos");
+		TestManager otherManager = new TestManager("photos");
+		TestManager userManager = new TestManager("users");
+		invalidator.addManager(manager);
+		invalidator.addManager(otherManager);
+		invalidator.addManager(userManager);
+
+		invalidator.handleNotification(otherInvalidator.asPayload("photos", "x1abc", 7));
+		invalidator.handleNotification(otherInvalidator.asPayload("users", "some user", 0));
+		invalidator.handleNotification(invalidator.asPayload("photos", "x1abd", 1));
+		invalidator.handleNotification("broken");
+
+		assertEquals(Arrays.asList("x1abc@7"), manager.invalidatedKeys);
+		assertEquals(Arrays.asList("x1abc@7"), otherManager.invalidatedKeys);
+		assertEquals(Arrays.asList("some user@0"), userManager.invalidatedKeys);
+		assertEquals(3, invalidator.getNoReceived());
+		assertEquals(2, invalidator.getNoInvalidated());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsInvalidChannel() {
+		new CacheInvalidator("cache; DROP TABLE users");
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for routing statements of the DatabaseConnection class.
+ */
+public class DatabaseConnectionTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testQueriesMayGoToReplica() {
+		assertTrue(DatabaseConnection.isQuery("SELECT * FROM photos WHERE id = ?"));
+		assertTrue(DatabaseConnection.isQuery("  select id, owner_name FROM photos"));
+		assertTrue(DatabaseConnection.isQuery("SELECT d.text FROM photo_tags p JOIN tag_dictionary d ON d.id = p.tag_id WHERE p.photo_id = ?"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWritesGoToPrimary() {
+		assertFalse(DatabaseConnection.isQuery("UPDATE photos SET \"praise_sum\" = ? WHERE id = ?"));
+		assertFalse(DatabaseConnection.isQuery("INSERT INTO photo_tags (tag_id, photo_id) SELECT id, ? FROM tag_dictionary WHERE text = ANY(?)"));
+		assertFalse(DatabaseConnection.isQuery("DELETE FROM photos WHERE id = ?"));
+		assertFalse(DatabaseConnection.isQuery("SELECT * FROM globals WHERE id = 0 FOR UPDATE"));
+		assertFalse(DatabaseConnection.isQuery("WITH t AS (DELETE FROM photos RETURNING id) SELECT * FROM t"));
+	}
+
+}
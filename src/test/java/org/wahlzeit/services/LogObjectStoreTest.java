@@ -0,0 +1,144 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the LogObjectStore class.
+ */
+public class LogObjectStoreTest {
+
+	/**
+	 *
+	 */
+	protected static class TestObject extends DataObject {
+		protected int id;
+		protected String name;
+
+		public TestObject(int myId, String myName) {
+			id = myId;
+			name = myName;
+		}
+
+		public String getIdAsString() { return String.valueOf(id); }
+		public void readFrom(ResultSet rset) throws SQLException { id = rset.getInt("id"); name = rset.getString("name"); }
+		public void writeOn(ResultSet rset) throws SQLException { rset.updateInt("id", id); rset.updateString("name", name); }
+		public void writeId(PreparedStatement stmt, int pos) throws SQLException { stmt.setInt(pos, id); }
+	}
+
+	/**
+	 *
+	 */
+	protected static final ObjectReader READER = new ObjectReader() {
+		public Persistent createObject(ResultSet rset) throws SQLException {
+			TestObject result = new TestObject(0, null);
+			result.readFrom(rset);
+			return result;
+		}
+	};
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplaysLogOnOpen() throws Exception {
+		File file = createLogFile();
+		LogObjectStore store = openStore(file);
+		store.insert("tests", new TestObject(1, "one"));
+		store.upsert("tests", new TestObject(2, "two"));
+		store.upsert("tests", new TestObject(1, "uno"));
+		store.delete("tests", new TestObject(2, "two"));
+		store.close();
+
+		store = openStore(file);
+		assertEquals("uno", ((TestObject) store.read("tests", "id", 1, READER)).name);
+		assertNull(store.read("tests", "id", 2, READER));
+		assertEquals(1, store.getNoRows("tests"));
+		assertEquals(1, store.getMaxId("tests"));
+		store.close();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadsByOtherColumns() throws Exception {
+		LogObjectStore store = openStore(createLogFile());
+		store.upsert("tests", new TestObject(1, "one"));
+		assertEquals(1, ((TestObject) store.read("tests", "name", "one", READER)).id);
+
+		store.upsert("tests", new TestObject(1, "uno"));
+		assertNull(store.read("tests", "name", "one", READER));
+		assertEquals(1, ((TestObject) store.read("tests", "name", "uno", READER)).id);
+
+		final List<Persistent> objects = new ArrayList<Persistent>();
+		store.scan("tests", READER, new ObjectConsumer() {
+			public void consume(Persistent obj) {
+				objects.add(obj);
+			}
+		});
+		assertEquals(1, objects.size());
+		store.close();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCutsOffBrokenRecord() throws Exception {
+		File file = createLogFile();
+		LogObjectStore store = openStore(file);
+		store.upsert("tests", new TestObject(1, "one"));
+		store.upsert("tests", new TestObject(2, "two"));
+		store.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		store = openStore(file);
+		assertEquals(1, store.getNoRows("tests"));
+		store.upsert("tests", new TestObject(3, "three"));
+		store.close();
+
+		store = openStore(file);
+		assertEquals(2, store.getNoRows("tests"));
+		assertEquals("three", ((TestObject) store.read("tests", "id", 3, READER)).name);
+		store.close();
+	}
+
+	/**
+	 *
+	 */
+	protected File createLogFile() throws Exception {
+		File result = File.createTempFile("objects", ".log");
+		result.delete();
+		result.deleteOnExit();
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected LogObjectStore openStore(File file) throws Exception {
+		LogObjectStore result = new LogObjectStore(file);
+		result.open();
+		return result;
+	}
+
+}
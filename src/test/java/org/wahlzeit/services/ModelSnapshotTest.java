@@ -0,0 +1,147 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ModelSnapshot class.
+ */
+public class ModelSnapshotTest {
+
+	/**
+	 *
+	 */
+	protected static class TestManager extends ObjectManager {
+		protected String section;
+		protected Map<String, LogObjectStoreTest.TestObject> cache = new LinkedHashMap<String, LogObjectStoreTest.TestObject>();
+
+		public TestManager(String mySection) {
+			section = mySection;
+		}
+
+		protected Persistent createObject(ResultSet rset) throws SQLException {
+			return LogObjectStoreTest.READER.createObject(rset);
+		}
+
+		public String getSnapshotTableName() { return "tests"; }
+		public String getSnapshotSectionName() { return section; }
+		public Collection<? extends Persistent> getCachedObjects() { return cache.values(); }
+
+		protected void restoreObjects(Collection<Persistent> objects) {
+			for (Persistent obj : objects) {
+				cache.put(obj.getIdAsString(), (LogObjectStoreTest.TestObject) obj);
+			}
+		}
+
+		public void add(LogObjectStoreTest.TestObject obj) {
+			cache.put(obj.getIdAsString(), obj);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRestoresLoggedRows() throws Exception {
+		File dir = createDir();
+		TestManager manager = new TestManager("tests");
+		TestManager otherManager = new TestManager("other-tests");
+		manager.add(new LogObjectStoreTest.TestObject(1, "one"));
+		manager.add(new LogObjectStoreTest.TestObject(2, "two"));
+		manager.add(new LogObjectStoreTest.TestObject(3, "three"));
+		otherManager.add(new LogObjectStoreTest.TestObject(1, "one"));
+
+		ModelSnapshot snapshot = new ModelSnapshot(dir);
+		snapshot.save(Arrays.asList(manager, otherManager), Collections.singletonMap("last_test_id", 3));
+		snapshot.logObject("tests", new LogObjectStoreTest.TestObject(1, "uno"));
+		snapshot.logEvictedObject("tests", new LogObjectStoreTest.TestObject(2, "two"));
+		snapshot.close();
+
+		snapshot = new ModelSnapshot(dir);
+		assertTrue(snapshot.load());
+		assertEquals(Integer.valueOf(3), snapshot.getGlobals().get("last_test_id"));
+
+		TestManager restoredManager = new TestManager("tests");
+		TestManager restoredOtherManager = new TestManager("other-tests");
+		restoredManager.restoreSnapshot(snapshot);
+		restoredOtherManager.restoreSnapshot(snapshot);
+		assertEquals(2, restoredManager.cache.size());
+		assertEquals("uno", restoredManager.cache.get("1").name);
+		assertFalse(restoredManager.cache.containsKey("2"));
+		assertEquals("uno", restoredOtherManager.cache.get("1").name);
+		snapshot.close();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIgnoresSnapshotWithoutLog() throws Exception {
+		File dir = createDir();
+		TestManager manager = new TestManager("tests");
+		manager.add(new LogObjectStoreTest.TestObject(1, "one"));
+
+		ModelSnapshot snapshot = new ModelSnapshot(dir);
+		assertFalse(snapshot.load());
+		snapshot.save(Arrays.asList(manager), Collections.singletonMap("last_test_id", 1));
+		snapshot.close();
+
+		new File(dir, ModelSnapshot.LOG_FILE_NAME).delete();
+		assertFalse(new ModelSnapshot(dir).load());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCutsOffBrokenLogRecord() throws Exception {
+		File dir = createDir();
+		TestManager manager = new TestManager("tests");
+		manager.add(new LogObjectStoreTest.TestObject(1, "one"));
+		manager.add(new LogObjectStoreTest.TestObject(2, "two"));
+
+		ModelSnapshot snapshot = new ModelSnapshot(dir);
+		snapshot.save(Arrays.asList(manager), Collections.singletonMap("last_test_id", 2));
+		snapshot.logObject("tests", new LogObjectStoreTest.TestObject(1, "uno"));
+		snapshot.logObject("tests", new LogObjectStoreTest.TestObject(2, "dos"));
+		snapshot.close();
+
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, ModelSnapshot.LOG_FILE_NAME), "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		snapshot = new ModelSnapshot(dir);
+		assertTrue(snapshot.load());
+		TestManager restoredManager = new TestManager("tests");
+		restoredManager.restoreSnapshot(snapshot);
+		assertEquals("uno", restoredManager.cache.get("1").name);
+		assertEquals("two", restoredManager.cache.get("2").name);
+		snapshot.close();
+	}
+
+	/**
+	 *
+	 */
+	protected File createDir() throws Exception {
+		File result = File.createTempFile("snapshot", "");
+		result.delete();
+		result.mkdirs();
+		result.deleteOnExit();
+		return result;
+	}
+
+}
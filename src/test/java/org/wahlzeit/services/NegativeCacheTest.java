@@ -0,0 +1,87 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the NegativeCache class.
+ */
+public class NegativeCacheTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMissingKeysExpire() throws Exception {
+		NegativeCache<String> cache = new NegativeCache<String>("test", 10, 50);
+		cache.putMissing("x1abc");
+		assertTrue(cache.isMissing("x1abc"));
+		assertFalse(cache.isMissing("x1abd"));
+		assertEquals(1, cache.getNoSavedQueries());
+
+		Thread.sleep(100);
+		assertFalse(cache.isMissing("x1abc"));
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInvalidate() {
+		NegativeCache<String> cache = new NegativeCache<String>("test", 10, 60000);
+		cache.putMissing("name");
+		cache.invalidate("name");
+		assertFalse(cache.isMissing("name"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSizeIsBounded() {
+		NegativeCache<Integer> cache = new NegativeCache<Integer>("test", 100, 60000);
+		for (int i = 0; i < 1000; i++) {
+			cache.putMissing(i);
+		}
+		assertTrue(cache.size() <= 100);
+		assertTrue(cache.isMissing(999));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOldestKeysAreRemovedFirst() {
+		NegativeCache<Integer> cache = new NegativeCache<Integer>("test", 3, 60000);
+		cache.putMissing(1);
+		cache.putMissing(2);
+		cache.putMissing(3);
+		cache.putMissing(1);
+		cache.putMissing(4);
+		assertEquals(3, cache.size());
+		assertFalse(cache.isMissing(2));
+		assertTrue(cache.isMissing(1));
+		assertTrue(cache.isMissing(3));
+		assertTrue(cache.isMissing(4));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDisabledCacheRemembersNothing() {
+		NegativeCache<String> cache = new NegativeCache<String>("test");
+		cache.putMissing("name");
+		assertFalse(cache.isMissing("name"));
+	}
+
+}
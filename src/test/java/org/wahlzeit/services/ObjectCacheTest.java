@@ -0,0 +1,331 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ObjectCache class.
+ */
+public class ObjectCacheTest {
+
+	/**
+	 *
+	 */
+	protected static class TestObject extends DataObject {
+		public String getIdAsString() { return "test"; }
+		public void readFrom(ResultSet rset) { }
+		public void writeOn(ResultSet rset) { }
+		public void writeId(PreparedStatement stmt, int pos) { }
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test", 2);
+		TestObject first = new TestObject();
+		cache.put(1, first);
+		cache.put(2, new TestObject());
+		assertSame(first, cache.get(1));
+
+		cache.put(3, new TestObject());
+		assertEquals(2, cache.size());
+		assertTrue(cache.containsKey(1));
+		assertFalse(cache.containsKey(2));
+		assertTrue(cache.containsKey(3));
+		assertEquals(1, cache.getNoEvictions());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testNeverEvictsDirtyObjects() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test", 1);
+		TestObject dirty = new TestObject();
+		dirty.incWriteCount();
+		cache.put(1, dirty);
+		cache.put(2, new TestObject());
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.containsKey(2));
+
+		cache.put(3, new TestObject());
+		assertEquals(2, cache.size());
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.containsKey(3));
+
+		dirty.resetWriteCount();
+		cache.setMaxSize(1);
+		assertEquals(1, cache.size());
+		assertFalse(cache.containsKey(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsCleanObjectsAmongManyDirty() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test", 100);
+		List<TestObject> dirtyObjects = new ArrayList<TestObject>();
+		for (int i = 0; i < 1000; i++) {
+			TestObject dirty = new TestObject();
+			dirty.incWriteCount();
+			dirtyObjects.add(dirty);
+			cache.put(i, dirty);
+		}
+		for (int i = 1000; i < 2000; i++) {
+			cache.put(i, new TestObject());
+		}
+
+		assertTrue(cache.size() <= 1000 + 1000 / ObjectCache.EVICTION_DIVISOR + 1);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(cache.containsKey(i));
+		}
+
+		for (TestObject dirty : dirtyObjects) {
+			dirty.resetWriteCount();
+		}
+		cache.setMaxSize(100);
+		assertTrue(cache.size() <= 100);
+		assertTrue(cache.containsKey(1999));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInvalidateKeepsDirtyObjects() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		TestObject dirty = new TestObject();
+		dirty.incWriteCount();
+		cache.put(1, dirty);
+		cache.put(2, new TestObject());
+
+		assertFalse(cache.invalidate(1, 0));
+		assertTrue(cache.invalidate(2, 0));
+		assertTrue(cache.invalidate(3, 0));
+		assertTrue(cache.containsKey(1));
+		assertFalse(cache.containsKey(2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInvalidateKeepsObjectsOfLaterVersions() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		TestObject obj = new TestObject();
+		obj.setVersion(3);
+		cache.put(1, obj);
+
+		assertFalse(cache.invalidate(1, 3));
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.invalidate(1, 4));
+		assertFalse(cache.containsKey(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInvalidateAllKeepsDirtyObjects() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		cache.getNegativeCache().configure(10, 60000);
+		cache.getNegativeCache().putMissing(3);
+		TestObject dirty = new TestObject();
+		dirty.incWriteCount();
+		cache.put(1, dirty);
+		cache.put(2, new TestObject());
+
+		assertEquals(1, cache.invalidateAll());
+		assertTrue(cache.containsKey(1));
+		assertFalse(cache.containsKey(2));
+		assertFalse(cache.getNegativeCache().isMissing(3));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUnboundedCacheDoesNotEvict() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, new TestObject());
+		}
+		assertEquals(1000, cache.size());
+		assertEquals(0, cache.getNoEvictions());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testStatistics() {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test", 10);
+		assertNull(cache.get(1));
+		cache.recordLoad(2000000);
+		cache.put(1, new TestObject());
+		cache.get(1);
+		cache.get(1);
+		cache.get(1);
+
+		assertEquals(3, cache.getNoHits());
+		assertEquals(1, cache.getNoMisses());
+		assertEquals(0.75, cache.getHitRate(), 0.0);
+		assertEquals(0.25, cache.getMissRate(), 0.0);
+		assertEquals(1, cache.getNoLoads());
+		assertEquals(2.0, cache.getAverageLoadTime(), 0.0);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentAccessLoadsOnceAndLosesNothing() throws Exception {
+		final int noThreads = 64;
+		final int noKeys = 100;
+		final int noIterations = 1000;
+		final ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		final AtomicInteger[] noLoads = new AtomicInteger[noKeys];
+		for (int i = 0; i < noKeys; i++) {
+			noLoads[i] = new AtomicInteger();
+		}
+		final ObjectLoader<Integer, TestObject> loader = new ObjectLoader<Integer, TestObject>() {
+			public TestObject load(Integer key) {
+				noLoads[key].incrementAndGet();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return new TestObject();
+			}
+		};
+
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		Thread[] threads = new Thread[noThreads];
+		for (int t = 0; t < noThreads; t++) {
+			final int threadNo = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						Random random = new Random(threadNo);
+						startSignal.await();
+						for (int i = 0; i < noIterations; i++) {
+							if ((i % 10) == 0) {
+								cache.put(noKeys + (threadNo * noIterations) + i, new TestObject());
+							} else {
+								Integer key = random.nextInt(noKeys);
+								TestObject first = cache.getOrLoad(key, loader);
+								if (first != cache.get(key)) {
+									throw new AssertionError("different objects for key " + key);
+								}
+							}
+						}
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		startSignal.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		for (int i = 0; i < noKeys; i++) {
+			assertEquals(1, noLoads[i].get());
+		}
+		assertEquals(noKeys + (noThreads * noIterations / 10), cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentPutsStayBounded() throws Exception {
+		final ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test", 1000);
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		Thread[] threads = new Thread[64];
+		for (int t = 0; t < threads.length; t++) {
+			final int threadNo = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 1000; i++) {
+							cache.put((threadNo * 1000) + i, new TestObject());
+							cache.get((threadNo * 1000) + (i / 2));
+						}
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		cache.setMaxSize(1000);
+		assertTrue(cache.size() <= 1000);
+		assertTrue(cache.getNoEvictions() >= (64 * 1000) - 1000);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemembersMissingKeysUntilAdded() throws Exception {
+		ObjectCache<Integer, TestObject> cache = new ObjectCache<Integer, TestObject>("test");
+		cache.getNegativeCache().configure(10, 60000);
+		final AtomicInteger noLoads = new AtomicInteger();
+		ObjectLoader<Integer, TestObject> loader = new ObjectLoader<Integer, TestObject>() {
+			public TestObject load(Integer key) {
+				noLoads.incrementAndGet();
+				return null;
+			}
+		};
+
+		assertNull(cache.getOrLoad(1, loader));
+		assertNull(cache.getOrLoad(1, loader));
+		assertNull(cache.getOrLoad(1, loader));
+		assertEquals(1, noLoads.get());
+		assertEquals(2, cache.getNegativeCache().getNoSavedQueries());
+
+		TestObject object = new TestObject();
+		cache.put(1, object);
+		assertSame(object, cache.getOrLoad(1, loader));
+		cache.remove(1);
+		assertNull(cache.getOrLoad(1, loader));
+		assertEquals(2, noLoads.get());
+	}
+
+}
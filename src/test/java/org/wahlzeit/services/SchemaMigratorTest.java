@@ -0,0 +1,109 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the SchemaMigrator class.
+ */
+public class SchemaMigratorTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMigrationsAreOrderedByVersion() throws Exception {
+		File rootDir = Files.createTempDirectory("scripts").toFile();
+		writeMigration(rootDir, ConfigDir.DEFAULT_DIR_NAME, "0010-Later.sql", "SELECT 10;");
+		writeMigration(rootDir, ConfigDir.DEFAULT_DIR_NAME, "0002-Earlier.sql", "SELECT 2;");
+		writeMigration(rootDir, ConfigDir.CUSTOM_DIR_NAME, "0005-Custom.sql", "SELECT 5;");
+		writeMigration(rootDir, ConfigDir.DEFAULT_DIR_NAME, "README.txt", "not a migration");
+
+		List<SchemaMigrator.Migration> migrations = new SchemaMigrator(new ConfigDir(rootDir.getPath(), "scripts")).getMigrations();
+		assertEquals(3, migrations.size());
+		assertEquals(2, migrations.get(0).getVersion());
+		assertEquals("0005-Custom.sql", migrations.get(1).getFileName());
+		assertEquals(10, migrations.get(2).getVersion());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDuplicateVersionsAreRejected() throws Exception {
+		File rootDir = Files.createTempDirectory("scripts").toFile();
+		writeMigration(rootDir, ConfigDir.DEFAULT_DIR_NAME, "0003-One.sql", "SELECT 1;");
+		writeMigration(rootDir, ConfigDir.CUSTOM_DIR_NAME, "0003-Other.sql", "SELECT 2;");
+		try {
+			new SchemaMigrator(new ConfigDir(rootDir.getPath(), "scripts")).getMigrations();
+			fail("duplicate version not rejected");
+		} catch (SQLException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChecksumIgnoresLineEndings() {
+		SchemaMigrator.Migration unix = new SchemaMigrator.Migration(1, "0001-A.sql", "SELECT 1;\nSELECT 2;\n");
+		SchemaMigrator.Migration windows = new SchemaMigrator.Migration(1, "0001-A.sql", "SELECT 1;\r\nSELECT 2;\r\n");
+		SchemaMigrator.Migration changed = new SchemaMigrator.Migration(1, "0001-A.sql", "SELECT 1;\nSELECT 3;\n");
+		assertEquals(unix.getChecksum(), windows.getChecksum());
+		assertFalse(unix.getChecksum().equals(changed.getChecksum()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentIndexesRunStatementByStatement() {
+		String script = "--Comment\nDROP INDEX CONCURRENTLY IF EXISTS a_idx;\nCREATE INDEX CONCURRENTLY a_idx\n\tON a (b);\n";
+		SchemaMigrator.Migration migration = new SchemaMigrator.Migration(2, "0002-Index.sql", script);
+		assertFalse(migration.isTransactional());
+		assertTrue(new SchemaMigrator.Migration(1, "0001-Table.sql", "CREATE TABLE a (b integer);").isTransactional());
+
+		List<String> statements = SchemaMigrator.splitStatements(script);
+		assertEquals(2, statements.size());
+		assertEquals("DROP INDEX CONCURRENTLY IF EXISTS a_idx", statements.get(0));
+		assertEquals("CREATE INDEX CONCURRENTLY a_idx\n\tON a (b)", statements.get(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCommentsDoNotMakeScriptsNonTransactional() {
+		String script = "--Not built concurrently, as the table is new\nCREATE TABLE a (b integer); -- concurrently\nCREATE INDEX a_idx ON a (b);\n";
+		assertTrue(new SchemaMigrator.Migration(3, "0003-Table.sql", script).isTransactional());
+		assertFalse(new SchemaMigrator.Migration(4, "0004-Index.sql", "CREATE INDEX concurrently a_idx ON a (b);\n").isTransactional());
+	}
+
+	/**
+	 *
+	 */
+	protected void writeMigration(File rootDir, String dirName, String fileName, String script) throws Exception {
+		File dir = new File(rootDir, "scripts" + File.separator + dirName + File.separator + SchemaMigrator.MIGRATIONS_DIR_NAME);
+		dir.mkdirs();
+		FileWriter writer = new FileWriter(new File(dir, fileName));
+		writer.write(script);
+		writer.close();
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the SingleFlight class.
+ */
+public class SingleFlightTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentLoadsOfSameKeyAreCoalesced() throws Exception {
+		final int noWaiters = 9;
+		final SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+		final Object loadedObject = new Object();
+		final AtomicInteger noLoads = new AtomicInteger();
+		final CountDownLatch loadStarted = new CountDownLatch(1);
+		final ObjectLoader<String, Object> loader = new ObjectLoader<String, Object>() {
+			public Object load(String key) {
+				noLoads.incrementAndGet();
+				loadStarted.countDown();
+				long deadline = System.currentTimeMillis() + 10000;
+				while ((singleFlight.getNoCoalescedLoads() < noWaiters) && (System.currentTimeMillis() < deadline)) {
+					Thread.yield();
+				}
+				return loadedObject;
+			}
+		};
+
+		final Queue<Object> results = new ConcurrentLinkedQueue<Object>();
+		Thread[] threads = new Thread[noWaiters + 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results.add(singleFlight.load("hot", loader));
+					} catch (SQLException ex) {
+						results.add(ex);
+					}
+				}
+			};
+		}
+
+		threads[0].start();
+		loadStarted.await();
+		for (int i = 1; i < threads.length; i++) {
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, noLoads.get());
+		assertEquals(1, singleFlight.getNoLoads());
+		assertEquals(noWaiters, singleFlight.getNoCoalescedLoads());
+		assertEquals(0, singleFlight.getNoLoadsInFlight());
+		assertEquals(threads.length, results.size());
+		for (Object result : results) {
+			assertSame(loadedObject, result);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSequentialLoadsAreNotCoalesced() throws Exception {
+		SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+		final AtomicInteger noLoads = new AtomicInteger();
+		ObjectLoader<String, Object> loader = new ObjectLoader<String, Object>() {
+			public Object load(String key) {
+				return noLoads.incrementAndGet();
+			}
+		};
+
+		assertEquals(1, singleFlight.load("key", loader));
+		assertEquals(2, singleFlight.load("key", loader));
+		assertEquals(0, singleFlight.getNoCoalescedLoads());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testExceptionIsPassedOn() {
+		SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+		try {
+			singleFlight.load("key", new ObjectLoader<String, Object>() {
+				public Object load(String key) throws SQLException {
+					throw new SQLException("no database");
+				}
+			});
+			fail("exception expected");
+		} catch (SQLException ex) {
+			assertEquals("no database", ex.getMessage());
+		}
+		assertTrue(singleFlight.getNoLoadsInFlight() == 0);
+	}
+
+}
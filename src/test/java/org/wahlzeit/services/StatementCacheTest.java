@@ -0,0 +1,99 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the StatementCache class, using a fake connection that only creates and closes statements.
+ */
+public class StatementCacheTest {
+
+	/**
+	 *
+	 */
+	protected Set<String> closedQueries = new HashSet<String>();
+	protected int noPrepares = 0;
+
+	/**
+	 *
+	 */
+	@Test
+	public void testHitsReuseStatements() throws Exception {
+		StatementCache cache = new StatementCache(createConnection(), 10, 1);
+		PreparedStatement stmt = cache.getStatement("SELECT 1");
+		assertTrue(stmt == cache.getStatement("SELECT 1"));
+		assertFalse(stmt == cache.getUpdatingStatement("SELECT 1"));
+		assertEquals(1, cache.getNoHits());
+		assertEquals(2, cache.getNoMisses());
+		assertEquals(2, noPrepares);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyUsedStatementIsClosed() throws Exception {
+		StatementCache cache = new StatementCache(createConnection(), 2, 1);
+		cache.getStatement("SELECT 1");
+		cache.getStatement("SELECT 2");
+		cache.getStatement("SELECT 1");
+		cache.getStatement("SELECT 3");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getNoEvictions());
+		assertTrue(closedQueries.contains("SELECT 2"));
+		assertFalse(closedQueries.contains("SELECT 1"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(closedQueries.contains("SELECT 1"));
+		assertTrue(closedQueries.contains("SELECT 3"));
+	}
+
+	/**
+	 *
+	 */
+	protected Connection createConnection() {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("prepareStatement")) {
+					noPrepares++;
+					return createStatement((String) args[0]);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	protected PreparedStatement createStatement(final String query) {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("close")) {
+					closedQueries.add(query);
+				} else if (method.getName().equals("toString")) {
+					return query;
+				}
+				return null;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the IdRegistry class.
+ */
+public class IdRegistryTest {
+
+	/**
+	 *
+	 */
+	protected static class TestObject {
+		protected int id;
+
+		protected TestObject(int myId) {
+			id = myId;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class TestRegistry extends IdRegistry<TestObject> {
+		protected AtomicInteger noCreatedObjects = new AtomicInteger();
+
+		protected TestObject createObject(int id) {
+			noCreatedObjects.incrementAndGet();
+			return new TestObject(id);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReturnsSameObjectForId() {
+		TestRegistry registry = new TestRegistry();
+		TestObject first = registry.get(1);
+		assertEquals(1, first.id);
+		assertSame(first, registry.get(1));
+		assertEquals(1, registry.getNoObjects());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testHandlesIdsAcrossSegmentsAndDirectories() {
+		TestRegistry registry = new TestRegistry();
+		int[] ids = { 0, IdRegistry.SEGMENT_MASK, IdRegistry.SEGMENT_SIZE, 1 << (2 * IdRegistry.SEGMENT_BITS), Integer.MAX_VALUE };
+		for (int id : ids) {
+			assertEquals(id, registry.get(id).id);
+		}
+		for (int id : ids) {
+			assertSame(registry.get(id), registry.get(id));
+		}
+		assertEquals(ids.length, registry.getNoObjects());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRejectsNegativeIds() {
+		try {
+			new TestRegistry().get(-1);
+			fail("exception expected");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentGetsPublishOneObjectPerId() throws Exception {
+		final int noIds = 10000;
+		final TestRegistry registry = new TestRegistry();
+		final TestObject[][] results = new TestObject[64][noIds];
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		Thread[] threads = new Thread[results.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int threadNo = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						startSignal.await();
+						for (int i = 0; i < noIds; i++) {
+							int id = ((threadNo % 2) == 0) ? i : noIds - 1 - i;
+							results[threadNo][id] = registry.get(id);
+						}
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		startSignal.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(noIds, registry.getNoObjects());
+		assertTrue(registry.noCreatedObjects.get() >= noIds);
+		for (int i = 0; i < noIds; i++) {
+			for (int t = 0; t < threads.length; t++) {
+				assertSame(registry.get(i), results[t][i]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * SPDX-FileCopyrightText: 2006-2009 Dirk Riehle <dirk@riehle.org> https://dirkriehle.com
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the IntBitmap class.
+ */
+public class IntBitmapTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddRemoveContains() {
+		IntBitmap bitmap = new IntBitmap();
+		assertTrue(bitmap.isEmpty());
+
+		assertTrue(bitmap.add(7));
+		assertFalse(bitmap.add(7));
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.contains(7));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(8));
+		assertEquals(2, bitmap.getCardinality());
+
+		assertTrue(bitmap.remove(7));
+		assertFalse(bitmap.remove(7));
+		assertFalse(bitmap.contains(7));
+		assertArrayEquals(new int[] { 70000 }, bitmap.toArray());
+
+		assertTrue(bitmap.remove(70000));
+		assertTrue(bitmap.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddNegativeValue() {
+		new IntBitmap().add(-1);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAndOr() {
+		IntBitmap b1 = IntBitmap.valueOf(1, 2, 3, 65536, 200000);
+		IntBitmap b2 = IntBitmap.valueOf(2, 3, 4, 200000, 300000);
+
+		assertArrayEquals(new int[] { 2, 3, 200000 }, b1.and(b2).toArray());
+		assertArrayEquals(new int[] { 1, 2, 3, 4, 65536, 200000, 300000 }, b1.or(b2).toArray());
+		assertTrue(b1.and(new IntBitmap()).isEmpty());
+		assertEquals(b1, b1.or(new IntBitmap()));
+	}
+
+	/**
+	 * Compares dense and sparse chunks against a TreeSet
+	 */
+	@Test
+	public void testAgainstTreeSet() {
+		Random random = new Random(42);
+		IntBitmap b1 = new IntBitmap();
+		IntBitmap b2 = new IntBitmap();
+		TreeSet<Integer> s1 = new TreeSet<Integer>();
+		TreeSet<Integer> s2 = new TreeSet<Integer>();
+
+		for (int i = 0; i < 20000; i++) {
+			int v1 = random.nextInt(10000); // dense
+			int v2 = random.nextInt(200000); // sparse
+			b1.add(v1);
+			s1.add(v1);
+			b2.add(v2);
+			s2.add(v2);
+		}
+
+		for (int i = 0; i < 5000; i++) {
+			int v = random.nextInt(10000);
+			assertEquals(s1.remove(v), b1.remove(v));
+		}
+
+		assertArrayEquals(asArray(s1), b1.toArray());
+		assertArrayEquals(asArray(s2), b2.toArray());
+
+		TreeSet<Integer> intersection = new TreeSet<Integer>(s1);
+		intersection.retainAll(s2);
+		assertArrayEquals(asArray(intersection), b1.and(b2).toArray());
+		assertArrayEquals(asArray(intersection), b2.and(b1).toArray());
+
+		TreeSet<Integer> union = new TreeSet<Integer>(s1);
+		union.addAll(s2);
+		assertArrayEquals(asArray(union), b1.or(b2).toArray());
+		assertEquals(union.size(), b2.or(b1).getCardinality());
+	}
+
+	/**
+	 *
+	 */
+	protected int[] asArray(TreeSet<Integer> set) {
+		int[] result = new int[set.size()];
+		int i = 0;
+		for (Integer value : set) {
+			result[i++] = value;
+		}
+		return result;
+	}
+
+}